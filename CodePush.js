@@ -46,7 +46,8 @@ async function checkForUpdate(deploymentKey = null, handleBinaryVersionMismatchC
     queryPackage = localPackage;
   } else {
     queryPackage = { appVersion: config.appVersion };
-    if (Platform.OS === "ios" && config.packageHash) {
+    // Android can only apply diff updates against the binary's contents if they can be copied out of the APK.
+    if ((Platform.OS === "ios" || config.canApplyDiffToBinary) && config.packageHash) {
       queryPackage.packageHash = config.packageHash;
     }
   }
@@ -67,9 +68,9 @@ async function checkForUpdate(deploymentKey = null, handleBinaryVersionMismatchC
    *    client app is resilient to a potential issue with the update check.
    * 4) The server said there is an update, but the update's hash is the same as that
    *    of the binary's currently running version. This should only happen in Android -
-   *    unlike iOS, we don't attach the binary's hash to the updateCheck request
-   *    because we want to avoid having to install diff updates against the binary's
-   *    version, which we can't do yet on Android.
+   *    unlike iOS, we only attach the binary's hash to the updateCheck request if the
+   *    binary's contents can be found in the APK, since diff updates against the
+   *    binary's version can't be installed otherwise.
    */
   if (!update || update.updateAppVersion ||
       localPackage && (update.packageHash === localPackage.packageHash) ||
@@ -176,52 +177,105 @@ const notifyApplicationReady = (() => {
 async function notifyApplicationReadyInternal() {
   await NativeCodePush.notifyApplicationReady();
   const statusReport = await NativeCodePush.getNewStatusReport();
-  statusReport && tryReportStatus(statusReport); // Don't wait for this to complete.
+  if (statusReport) {
+    tryReportStatus(statusReport); // Don't wait for this to complete.
+  } else if (await hasQueuedStatusReports()) {
+    // Reports are held back while failed deliveries are backed off.
+    retryStatusReportsOnResume();
+  }
 
   return statusReport;
 }
 
 async function tryReportStatus(statusReport, resumeListener) {
   const config = await getConfiguration();
-  const previousLabelOrAppVersion = statusReport.previousLabelOrAppVersion;
-  const previousDeploymentKey = statusReport.previousDeploymentKey || config.deploymentKey;
+  let currentStatusReport = statusReport;
   try {
-    if (statusReport.appVersion) {
-      log(`Reporting binary update (${statusReport.appVersion})`);
-
-      const sdk = getPromisifiedSdk(requestFetchAdapter, config);
-      await sdk.reportStatusDeploy(/* deployedPackage */ null, /* status */ null, previousLabelOrAppVersion, previousDeploymentKey);
-    } else {
-      const label = statusReport.package.label;
-      if (statusReport.status === "DeploymentSucceeded") {
-        log(`Reporting CodePush update success (${label})`);
-      } else {
-        log(`Reporting CodePush update rollback (${label})`);
+    await reportOrDiscardStatus(currentStatusReport, config);
+
+    // The native module may keep a queue of reports which could not be delivered earlier,
+    // so send the next batch of them while the server is known to be reachable.
+    if (NativeCodePush.getStatusReportBatch) {
+      const statusReports = await NativeCodePush.getStatusReportBatch();
+      for (const queuedStatusReport of statusReports) {
+        currentStatusReport = queuedStatusReport;
+        await reportOrDiscardStatus(currentStatusReport, config);
       }
-
-      config.deploymentKey = statusReport.package.deploymentKey;
-      const sdk = getPromisifiedSdk(requestFetchAdapter, config);
-      await sdk.reportStatusDeploy(statusReport.package, statusReport.status, previousLabelOrAppVersion, previousDeploymentKey);
     }
 
-    NativeCodePush.recordStatusReported(statusReport);
     resumeListener && AppState.removeEventListener("change", resumeListener);
   } catch (e) {
-    log(`Report status failed: ${JSON.stringify(statusReport)}`);
-    NativeCodePush.saveStatusReportForRetry(statusReport);
+    log(`Report status failed: ${JSON.stringify(currentStatusReport)}`);
+    NativeCodePush.saveStatusReportForRetry(currentStatusReport);
     // Try again when the app resumes
     if (!resumeListener) {
-      resumeListener = async (newState) => {
-        if (newState !== "active") return;
-        const refreshedStatusReport = await NativeCodePush.getNewStatusReport();
-        if (refreshedStatusReport) {
-          tryReportStatus(refreshedStatusReport, resumeListener);
-        } else {
-          AppState.removeEventListener("change", resumeListener);
-        }
-      };
-      AppState.addEventListener("change", resumeListener);
+      retryStatusReportsOnResume();
+    }
+  }
+}
+
+function retryStatusReportsOnResume() {
+  const resumeListener = async (newState) => {
+    if (newState !== "active") return;
+    const refreshedStatusReport = await NativeCodePush.getNewStatusReport();
+    if (refreshedStatusReport) {
+      tryReportStatus(refreshedStatusReport, resumeListener);
+    } else if (!(await hasQueuedStatusReports())) {
+      AppState.removeEventListener("change", resumeListener);
+    }
+  };
+  AppState.addEventListener("change", resumeListener);
+}
+
+// Only the Android module keeps a queue of reports, which it holds back while failed
+// deliveries are backed off.
+async function hasQueuedStatusReports() {
+  return NativeCodePush.hasQueuedStatusReports ? await NativeCodePush.hasQueuedStatusReports() : false;
+}
+
+// A report the server rejected would be rejected again, so it is dropped instead of blocking
+// the reports queued behind it.
+async function reportOrDiscardStatus(statusReport, config) {
+  try {
+    await reportStatus(statusReport, config);
+  } catch (e) {
+    if (!NativeCodePush.discardStatusReport || !isRejectedByServer(e)) {
+      throw e;
+    }
+
+    log(`Status report was rejected by the server, dropping it: ${JSON.stringify(statusReport)}`);
+    NativeCodePush.discardStatusReport(statusReport);
+    return;
+  }
+
+  NativeCodePush.recordStatusReported(statusReport);
+}
+
+// The acquisition SDK reports unsuccessful responses as "<status code>: <body>". Timeouts (408)
+// and rate limiting (429) are worth retrying.
+function isRejectedByServer(error) {
+  const message = (error && error.message) || "";
+  return /^4\d\d:/.test(message) && !/^(408|429):/.test(message);
+}
+
+async function reportStatus(statusReport, config) {
+  const previousLabelOrAppVersion = statusReport.previousLabelOrAppVersion;
+  const previousDeploymentKey = statusReport.previousDeploymentKey || config.deploymentKey;
+  if (statusReport.appVersion) {
+    log(`Reporting binary update (${statusReport.appVersion})`);
+
+    const sdk = getPromisifiedSdk(requestFetchAdapter, config);
+    await sdk.reportStatusDeploy(/* deployedPackage */ null, /* status */ null, previousLabelOrAppVersion, previousDeploymentKey);
+  } else {
+    const label = statusReport.package.label;
+    if (statusReport.status === "DeploymentSucceeded") {
+      log(`Reporting CodePush update success (${label})`);
+    } else {
+      log(`Reporting CodePush update rollback (${label})`);
     }
+
+    const sdk = getPromisifiedSdk(requestFetchAdapter, { ...config, deploymentKey: statusReport.package.deploymentKey });
+    await sdk.reportStatusDeploy(statusReport.package, statusReport.status, previousLabelOrAppVersion, previousDeploymentKey);
   }
 }
 
@@ -292,6 +346,7 @@ async function syncInternal(options = {}, syncStatusChangeCallback, downloadProg
   let resolvedInstallMode;
   const syncOptions = {
     deploymentKey: null,
+    downloadProgressOptions: null,
     ignoreFailedUpdates: true,
     installMode: CodePush.InstallMode.ON_NEXT_RESTART,
     mandatoryInstallMode: CodePush.InstallMode.IMMEDIATE,
@@ -347,7 +402,7 @@ async function syncInternal(options = {}, syncStatusChangeCallback, downloadProg
 
     const doDownloadAndInstall = async () => {
       syncStatusChangeCallback(CodePush.SyncStatus.DOWNLOADING_PACKAGE);
-      const localPackage = await remotePackage.download(downloadProgressCallback);
+      const localPackage = await remotePackage.download(downloadProgressCallback, syncOptions.downloadProgressOptions);
 
       // Determine the correct install mode based on whether the update is mandatory or not.
       resolvedInstallMode = localPackage.isMandatory ? syncOptions.mandatoryInstallMode : syncOptions.installMode;
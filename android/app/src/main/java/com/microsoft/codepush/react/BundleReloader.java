@@ -0,0 +1,29 @@
+package com.microsoft.codepush.react;
+
+import com.facebook.react.ReactInstanceManager;
+
+/**
+ * Restarts the React context with a new JS bundle, e.g. after an update was installed.
+ *
+ * By default, CodePush points the {@link ReactInstanceManager} to the new bundle through
+ * reflection. Hosts which can do this without reflection (e.g. because they create the
+ * ReactInstanceManager themselves) can register their own implementation with
+ * {@link CodePush#setBundleReloader(BundleReloader)}, which is then tried first.
+ * If no strategy succeeds, the current Activity is recreated, which is much slower.
+ */
+public interface BundleReloader {
+
+  /**
+   * A short name of the strategy, used in logs and metrics.
+   */
+  String getName();
+
+  /**
+   * Makes instanceManager load the bundle at latestJSBundleFile (either a file path, or an
+   * "assets://" URL for the bundle shipped with the binary) and starts recreating the React
+   * context. Called on the UI thread.
+   *
+   * @return false if this strategy cannot be used, so that the next one is tried.
+   */
+  boolean reload(ReactInstanceManager instanceManager, String latestJSBundleFile) throws Exception;
+}
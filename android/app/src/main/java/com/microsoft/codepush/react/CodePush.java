@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.provider.Settings;
 import android.support.annotation.NonNull;
 
 import com.facebook.react.ReactInstanceManager;
@@ -27,6 +28,8 @@ public class CodePush implements ReactPackage {
     private static boolean sNeedToReportRollback = false;
     private static boolean sTestConfigurationFlag = false;
     private static String sAppVersion = null;
+    // The build time is compiled into the APK, so it cannot change while the process is running.
+    private static Long sBinaryResourcesModifiedTime = null;
 
     private boolean mDidUpdate = false;
 
@@ -47,6 +50,7 @@ public class CodePush implements ReactPackage {
     private static String mPublicKey;
 
     private static ReactInstanceHolder mReactInstanceHolder;
+    private static BundleReloader mBundleReloader;
     private static CodePush mCurrentInstance;
 
     public CodePush(String deploymentKey, Context context) {
@@ -61,6 +65,8 @@ public class CodePush implements ReactPackage {
         mContext = context.getApplicationContext();
 
         mUpdateManager = new CodePushUpdateManager(context.getFilesDir().getAbsolutePath());
+        mUpdateManager.setBinaryContents(new CodePushBinaryContents(mContext));
+        mUpdateManager.setDisplayDensity(getDisplayDensity());
         mTelemetryManager = new CodePushTelemetryManager(mContext);
         mDeploymentKey = deploymentKey;
         mIsDebugMode = isDebugMode;
@@ -79,6 +85,7 @@ public class CodePush implements ReactPackage {
 
         clearDebugCacheIfNeeded();
         initializeUpdateAfterRestart();
+        scheduleGarbageCollection();
     }
 
     public CodePush(String deploymentKey, Context context, boolean isDebugMode, @NonNull String serverUrl) {
@@ -134,6 +141,18 @@ public class CodePush implements ReactPackage {
         return mDidUpdate;
     }
 
+    // Sends the queued status reports that are due, without waiting for the JS side to do
+    // it, and returns how many were delivered. Does network I/O, so call it from a background
+    // thread, e.g. a periodic job.
+    public int flushStatusReports() {
+        String clientUniqueId = Settings.Secure.getString(mContext.getContentResolver(), Settings.Secure.ANDROID_ID);
+        return mTelemetryManager.flushStatusReports(mServerUrl, mDeploymentKey, clientUniqueId);
+    }
+
+    public CodePushMetrics getMetrics() {
+        return mUpdateManager.getMetrics();
+    }
+
     public String getAppVersion() {
         return sAppVersion;
     }
@@ -147,13 +166,18 @@ public class CodePush implements ReactPackage {
     }
 
     long getBinaryResourcesModifiedTime() {
+        if (sBinaryResourcesModifiedTime != null) {
+            return sBinaryResourcesModifiedTime;
+        }
+
         try {
             String packageName = this.mContext.getPackageName();
             int codePushApkBuildTimeId = this.mContext.getResources().getIdentifier(CodePushConstants.CODE_PUSH_APK_BUILD_TIME_KEY, "string", packageName);
             // replace double quotes needed for correct restoration of long value from strings.xml
             // https://github.com/Microsoft/cordova-plugin-code-push/issues/264
-            String codePushApkBuildTime = this.mContext.getResources().getString(codePushApkBuildTimeId).replaceAll("\"","");
-            return Long.parseLong(codePushApkBuildTime);
+            String codePushApkBuildTime = this.mContext.getResources().getString(codePushApkBuildTimeId).replace("\"","");
+            sBinaryResourcesModifiedTime = Long.parseLong(codePushApkBuildTime);
+            return sBinaryResourcesModifiedTime;
         } catch (Exception e) {
             throw new CodePushUnknownException("Error in getting binary resources modified time", e);
         }
@@ -193,16 +217,40 @@ public class CodePush implements ReactPackage {
         this.mAssetsBundleFileName = assetsBundleFileName;
         String binaryJsBundleUrl = CodePushConstants.ASSETS_BUNDLE_PREFIX + assetsBundleFileName;
 
+        // Fast path, which saves parsing the package metadata on the main thread. If the
+        // descriptor does not match the binary anymore, the checks below take care of it.
+        CodePushStartupDescriptor startupDescriptor = mUpdateManager.getStartupDescriptor();
+        if (startupDescriptor != null) {
+            if (startupDescriptor.getPackageHash() == null) {
+                CodePushUtils.logBundleUrl(binaryJsBundleUrl);
+                sIsRunningBinaryVersion = true;
+                return binaryJsBundleUrl;
+            } else if (isPackageBundleLatest(startupDescriptor.getBinaryModifiedTime(), startupDescriptor.getAppVersion())) {
+                String packageFilePath = mUpdateManager.getPackageBundlePath(startupDescriptor.getPackageHash(),
+                        startupDescriptor.getRelativeBundlePath(), assetsBundleFileName);
+                mUpdateManager.extractArchivedPackageFiles(startupDescriptor.getPackageHash(), getDisplayDensity());
+                CodePushUtils.logBundleUrl(packageFilePath);
+                sIsRunningBinaryVersion = false;
+                return packageFilePath;
+            }
+        }
+
         String packageFilePath = mUpdateManager.getCurrentPackageBundlePath(this.mAssetsBundleFileName);
         if (packageFilePath == null) {
             // There has not been any downloaded updates.
+            if (mUpdateManager.getCurrentPackageHash() == null) {
+                saveStartupDescriptor();
+            }
+
             CodePushUtils.logBundleUrl(binaryJsBundleUrl);
             sIsRunningBinaryVersion = true;
             return binaryJsBundleUrl;
         }
 
-        JSONObject packageMetadata = this.mUpdateManager.getCurrentPackage();
+        CodePushPackage packageMetadata = this.mUpdateManager.getCurrentPackage();
         if (isPackageBundleLatest(packageMetadata)) {
+            mUpdateManager.extractArchivedPackageFiles(packageMetadata.getPackageHash(), getDisplayDensity());
+            saveStartupDescriptor();
             CodePushUtils.logBundleUrl(packageFilePath);
             sIsRunningBinaryVersion = false;
             return packageFilePath;
@@ -219,6 +267,18 @@ public class CodePush implements ReactPackage {
         }
     }
 
+    // The metadata checks above passed without a usable descriptor, so save one for the next launch
+    // without adding the write to this one.
+    private void saveStartupDescriptor() {
+        CodePushTaskScheduler.getInstance().schedule(CodePushTaskScheduler.Lane.MAINTENANCE, CodePushTaskScheduler.Priority.NORMAL,
+                "saveStartupDescriptor", new Runnable() {
+                    @Override
+                    public void run() {
+                        mUpdateManager.saveStartupDescriptor();
+                    }
+                }, null);
+    }
+
     public String getServerUrl() {
         return mServerUrl;
     }
@@ -230,7 +290,7 @@ public class CodePush implements ReactPackage {
 
         JSONObject pendingUpdate = mSettingsManager.getPendingUpdate();
         if (pendingUpdate != null) {
-            JSONObject packageMetadata = this.mUpdateManager.getCurrentPackage();
+            CodePushPackage packageMetadata = this.mUpdateManager.getCurrentPackage();
             if (packageMetadata == null || !isPackageBundleLatest(packageMetadata) && hasBinaryVersionChanged(packageMetadata)) {
                 CodePushUtils.log("Skipping initializeUpdateAfterRestart(), binary version is newer");
                 return;
@@ -273,25 +333,29 @@ public class CodePush implements ReactPackage {
         return sIsRunningBinaryVersion;
     }
 
-    private boolean isPackageBundleLatest(JSONObject packageMetadata) {
+    private boolean isPackageBundleLatest(CodePushPackage packageMetadata) {
         try {
             Long binaryModifiedDateDuringPackageInstall = null;
-            String binaryModifiedDateDuringPackageInstallString = packageMetadata.optString(CodePushConstants.BINARY_MODIFIED_TIME_KEY, null);
+            String binaryModifiedDateDuringPackageInstallString = packageMetadata.getBinaryModifiedTime();
             if (binaryModifiedDateDuringPackageInstallString != null) {
                 binaryModifiedDateDuringPackageInstall = Long.parseLong(binaryModifiedDateDuringPackageInstallString);
             }
-            String packageAppVersion = packageMetadata.optString("appVersion", null);
-            long binaryResourcesModifiedTime = this.getBinaryResourcesModifiedTime();
+            String packageAppVersion = packageMetadata.getAppVersion();
             return binaryModifiedDateDuringPackageInstall != null &&
-                    binaryModifiedDateDuringPackageInstall == binaryResourcesModifiedTime &&
-                    (isUsingTestConfiguration() || sAppVersion.equals(packageAppVersion));
+                    isPackageBundleLatest(binaryModifiedDateDuringPackageInstall, packageAppVersion);
         } catch (NumberFormatException e) {
             throw new CodePushUnknownException("Error in reading binary modified date from package metadata", e);
         }
     }
 
-    private boolean hasBinaryVersionChanged(JSONObject packageMetadata) {
-        String packageAppVersion = packageMetadata.optString("appVersion", null);
+    private boolean isPackageBundleLatest(long binaryModifiedDateDuringPackageInstall, String packageAppVersion) {
+        long binaryResourcesModifiedTime = this.getBinaryResourcesModifiedTime();
+        return binaryModifiedDateDuringPackageInstall == binaryResourcesModifiedTime &&
+                (isUsingTestConfiguration() || sAppVersion.equals(packageAppVersion));
+    }
+
+    private boolean hasBinaryVersionChanged(CodePushPackage packageMetadata) {
+        String packageAppVersion = packageMetadata.getAppVersion();
         return !sAppVersion.equals(packageAppVersion);
     }
 
@@ -304,7 +368,7 @@ public class CodePush implements ReactPackage {
     }
 
     private void rollbackPackage() {
-        JSONObject failedPackage = mUpdateManager.getCurrentPackage();
+        CodePushPackage failedPackage = mUpdateManager.getCurrentPackage();
         mSettingsManager.saveFailedUpdate(failedPackage);
         mUpdateManager.rollbackPackage();
         mSettingsManager.removePendingUpdate();
@@ -323,10 +387,59 @@ public class CodePush implements ReactPackage {
         mDeploymentKey = deploymentKey;
     }
 
+    public void setDiskBudget(long diskBudget) {
+        mUpdateManager.setDiskBudget(diskBudget);
+    }
+
+    public void setDownloadPreemptionEnabled(boolean isDownloadPreemptionEnabled) {
+        mUpdateManager.setDownloadPreemptionEnabled(isDownloadPreemptionEnabled);
+    }
+
+    public void setDownloadSegmentCount(int downloadSegmentCount) {
+        mUpdateManager.setDownloadSegmentCount(downloadSegmentCount);
+    }
+
+    public void setMetricsEnabled(boolean isMetricsEnabled) {
+        mUpdateManager.getMetrics().setEnabled(isMetricsEnabled);
+    }
+
+    public void setMetricsListener(CodePushMetrics.Listener metricsListener) {
+        mUpdateManager.getMetrics().setListener(metricsListener);
+    }
+
+    public void setStreamingUnzipEnabled(boolean isStreamingUnzipEnabled) {
+        mUpdateManager.setStreamingUnzipEnabled(isStreamingUnzipEnabled);
+    }
+
+    public void setUnzipThreadCount(int unzipThreadCount) {
+        mUpdateManager.setUnzipThreadCount(unzipThreadCount);
+    }
+
+    public void setZipPackageStorageEnabled(boolean isZipPackageStorageEnabled) {
+        mUpdateManager.setZipPackageStorageEnabled(isZipPackageStorageEnabled);
+    }
+
+    // The screen density that React Native picks the images of a bundle for.
+    private float getDisplayDensity() {
+        return mContext.getResources().getDisplayMetrics().density;
+    }
+
     public static void setUsingTestConfiguration(boolean shouldUseTestConfiguration) {
         sTestConfigurationFlag = shouldUseTestConfiguration;
     }
 
+    // Runs after the downloads and installs which are already queued, so it never races them.
+    void scheduleGarbageCollection() {
+        CodePushTaskScheduler.getInstance().schedule(CodePushTaskScheduler.Lane.MUTATION, CodePushTaskScheduler.Priority.LOW,
+                "collectGarbage", new Runnable() {
+                    @Override
+                    public void run() {
+                        // While an update is pending, it may still be rolled back to the previous package.
+                        mUpdateManager.collectGarbage(mSettingsManager.getPendingUpdate() != null);
+                    }
+                }, null);
+    }
+
     public void clearUpdates() {
         mUpdateManager.clearUpdates();
         mSettingsManager.removePendingUpdate();
@@ -337,6 +450,15 @@ public class CodePush implements ReactPackage {
         mReactInstanceHolder = reactInstanceHolder;
     }
 
+    // Registers a reloader which is tried before the reflection based one, see BundleReloader.
+    public static void setBundleReloader(BundleReloader bundleReloader) {
+        mBundleReloader = bundleReloader;
+    }
+
+    static BundleReloader getBundleReloader() {
+        return mBundleReloader;
+    }
+
     static ReactInstanceManager getReactInstanceManager() {
         if (mReactInstanceHolder == null) {
             return null;
@@ -0,0 +1,234 @@
+package com.microsoft.codepush.react;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// The contents of the "CodePush" folder that the binary ships with: the JS bundle in the APK's
+// assets, and the images that "react-native bundle" generated into its resources. The build lists
+// them with their hashes in the "CodePushManifest" asset (see generateBundledResourcesHash.js), so
+// that a diff update against the binary can be applied when there is no current package yet: the
+// files are copied out of the APK into the new package, as if they were the current package.
+public class CodePushBinaryContents {
+
+    private static final String RESOURCES_FOLDER_PREFIX = "res/";
+    // aapt appends the minimum API level of their qualifiers to some resource folders in the APK,
+    // such as "drawable-mdpi-v4" for "drawable-mdpi".
+    private static final Pattern VERSION_QUALIFIER = Pattern.compile("-v\\d+$");
+
+    private final Context mContext;
+    // The hash of each file by its path within a package, or null if the binary has no manifest.
+    private Map<String, String> mFileHashes;
+    private Boolean mIsAvailable;
+
+    public CodePushBinaryContents(Context context) {
+        mContext = context;
+    }
+
+    // Whether the binary has a manifest and every file in it can be found. Resources can be missing
+    // when the APK was split by density or its resource paths were shortened.
+    public synchronized boolean isAvailable() {
+        if (mIsAvailable == null) {
+            mIsAvailable = canFindAllFiles();
+        }
+
+        return mIsAvailable;
+    }
+
+    // Copies the binary's contents, except for skippedFilePaths, into packageFolderPath and adds
+    // their hashes to packageManifest. Every file is verified against the binary's manifest, since
+    // the build can still change resources after the manifest was written (e.g. by crunching PNGs).
+    public void materialize(String packageFolderPath, Set<String> skippedFilePaths, CodePushUpdateManifest packageManifest) throws IOException {
+        Map<String, String> fileHashes = getFileHashes();
+        if (fileHashes == null) {
+            throw new CodePushInvalidUpdateException("Update is invalid - it is a diff update against the binary, but the binary's contents are not known.");
+        }
+
+        List<ZipFile> apkFiles = new ArrayList<>();
+        try {
+            Map<String, ZipEntry> resourceEntries = new HashMap<>();
+            Map<String, ZipFile> resourceApkFiles = new HashMap<>();
+            indexResources(apkFiles, resourceEntries, resourceApkFiles);
+            MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+            for (Map.Entry<String, String> fileHash : fileHashes.entrySet()) {
+                String filePath = fileHash.getKey();
+                if (skippedFilePaths.contains(filePath)) {
+                    continue;
+                }
+
+                InputStream input = openFile(filePath, resourceEntries, resourceApkFiles);
+                if (input == null) {
+                    throw new CodePushInvalidUpdateException("Update is invalid - \"" + filePath + "\" could not be found in the binary.");
+                }
+
+                File destFile = new File(packageFolderPath, filePath);
+                destFile.getParentFile().mkdirs();
+                FileUtils.copyStreamToFile(input, destFile, messageDigest);
+                String hash = CodePushUpdateUtils.getHashString(messageDigest);
+                if (!hash.equals(fileHash.getValue())) {
+                    throw new CodePushInvalidUpdateException("Update is invalid - \"" + filePath + "\" in the binary does not match the binary's manifest.");
+                }
+
+                packageManifest.addFileHash(filePath, hash);
+            }
+        } finally {
+            closeApkFiles(apkFiles);
+        }
+    }
+
+    private synchronized Map<String, String> getFileHashes() {
+        if (mFileHashes == null) {
+            InputStream input = null;
+            try {
+                input = mContext.getAssets().open(CodePushConstants.CODE_PUSH_MANIFEST_FILE_NAME);
+            } catch (IOException e) {
+                // The binary was built without the manifest.
+                return null;
+            }
+
+            try {
+                JSONArray manifest = new JSONArray(CodePushUtils.getStringFromInputStream(input));
+                Map<String, String> fileHashes = new HashMap<>();
+                for (int i = 0; i < manifest.length(); i++) {
+                    String entry = manifest.getString(i);
+                    int separatorIndex = entry.lastIndexOf(':');
+                    fileHashes.put(entry.substring(0, separatorIndex), entry.substring(separatorIndex + 1));
+                }
+
+                mFileHashes = fileHashes;
+            } catch (IOException | JSONException e) {
+                CodePushUtils.log("Unable to read the binary's manifest: " + e.getMessage());
+                return null;
+            }
+        }
+
+        return mFileHashes;
+    }
+
+    private boolean canFindAllFiles() {
+        Map<String, String> fileHashes = getFileHashes();
+        if (fileHashes == null) {
+            return false;
+        }
+
+        List<ZipFile> apkFiles = new ArrayList<>();
+        try {
+            Map<String, ZipEntry> resourceEntries = new HashMap<>();
+            Map<String, ZipFile> resourceApkFiles = new HashMap<>();
+            indexResources(apkFiles, resourceEntries, resourceApkFiles);
+            for (String filePath : fileHashes.keySet()) {
+                String relativePath = getRelativePath(filePath);
+                boolean isFound;
+                if (relativePath != null && isResource(relativePath)) {
+                    // Only look the resource up, it is read from the APK when it is needed.
+                    isFound = resourceEntries.containsKey(relativePath);
+                } else {
+                    InputStream input = openFile(filePath, resourceEntries, resourceApkFiles);
+                    isFound = input != null;
+                    if (input != null) input.close();
+                }
+
+                if (!isFound) {
+                    CodePushUtils.log("Diff updates against the binary are not possible, \"" + filePath + "\" is not in the binary.");
+                    return false;
+                }
+            }
+
+            return true;
+        } catch (IOException e) {
+            CodePushUtils.log("Diff updates against the binary are not possible: " + e.getMessage());
+            return false;
+        } finally {
+            closeApkFiles(apkFiles);
+        }
+    }
+
+    // Opens the file at filePath within a package, or returns null if the binary doesn't have it.
+    private InputStream openFile(String filePath, Map<String, ZipEntry> resourceEntries, Map<String, ZipFile> resourceApkFiles) throws IOException {
+        String relativePath = getRelativePath(filePath);
+        if (relativePath == null) {
+            return null;
+        }
+
+        if (isResource(relativePath)) {
+            ZipEntry entry = resourceEntries.get(relativePath);
+            return entry != null ? resourceApkFiles.get(relativePath).getInputStream(entry) : null;
+        }
+
+        try {
+            return mContext.getAssets().open(relativePath);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Opens the APK and its splits, and indexes their resource files by their path relative to the
+    // resources folder the manifest was created from.
+    private void indexResources(List<ZipFile> apkFiles, Map<String, ZipEntry> resourceEntries, Map<String, ZipFile> resourceApkFiles) throws IOException {
+        ApplicationInfo applicationInfo = mContext.getApplicationInfo();
+        List<String> apkPaths = new ArrayList<>();
+        apkPaths.add(applicationInfo.sourceDir);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && applicationInfo.splitSourceDirs != null) {
+            for (String splitSourceDir : applicationInfo.splitSourceDirs) {
+                apkPaths.add(splitSourceDir);
+            }
+        }
+
+        for (String apkPath : apkPaths) {
+            ZipFile apkFile = new ZipFile(apkPath);
+            apkFiles.add(apkFile);
+            Enumeration<? extends ZipEntry> entries = apkFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                int folderEnd = name.indexOf('/', RESOURCES_FOLDER_PREFIX.length());
+                if (entry.isDirectory() || !name.startsWith(RESOURCES_FOLDER_PREFIX) || folderEnd == -1) {
+                    continue;
+                }
+
+                String folderName = name.substring(RESOURCES_FOLDER_PREFIX.length(), folderEnd);
+                String relativePath = VERSION_QUALIFIER.matcher(folderName).replaceFirst("") + name.substring(folderEnd);
+                resourceEntries.put(relativePath, entry);
+                resourceApkFiles.put(relativePath, apkFile);
+            }
+        }
+    }
+
+    private static void closeApkFiles(List<ZipFile> apkFiles) {
+        for (ZipFile apkFile : apkFiles) {
+            try {
+                apkFile.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Returns the path of a manifest entry within the "CodePush" folder, or null if it is outside of it.
+    private static String getRelativePath(String filePath) {
+        String prefix = CodePushConstants.CODE_PUSH_FOLDER_PREFIX + "/";
+        return filePath.startsWith(prefix) ? filePath.substring(prefix.length()) : null;
+    }
+
+    // The JS bundle is an asset, everything in a folder was generated into the resources.
+    private static boolean isResource(String relativePath) {
+        return relativePath.indexOf('/') != -1;
+    }
+}
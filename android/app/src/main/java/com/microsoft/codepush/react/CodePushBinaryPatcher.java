@@ -0,0 +1,128 @@
+package com.microsoft.codepush.react;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+// Applies the binary patches listed in the "patchedFiles" section of a diff update. The format
+// is the one of bsdiff, with the control, diff and extra blocks interleaved so that a patch can
+// be applied in one pass over the patch file (scripts/generateBinaryPatch.js creates them):
+//
+//   "CPPATCH1"              magic
+//   int64                   size of the new file
+//   repeated until the new file is complete:
+//     int64 diffLength, int64 extraLength, int64 seekAdjustment
+//     diffLength bytes      added (mod 256) to the old file's bytes at the current old position
+//     extraLength bytes     copied to the new file as they are
+//                           the old position then moves by diffLength + seekAdjustment
+//
+// All integers are big-endian. The patch itself is not compressed, the update archive already
+// deflates it. Memory use doesn't depend on the file sizes, the old file is read through a
+// fixed window and the new file is written as it is produced.
+public class CodePushBinaryPatcher {
+
+    private static final byte[] MAGIC = { 'C', 'P', 'P', 'A', 'T', 'C', 'H', '1' };
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    // Writes the result of applying patchFile to oldFile into newFile, and returns its hash.
+    public static String applyPatch(File oldFile, File patchFile, File newFile) throws IOException {
+        RandomAccessFile oldInput = null;
+        DataInputStream patchInput = null;
+        OutputStream newOutput = null;
+        try {
+            oldInput = new RandomAccessFile(oldFile, "r");
+            patchInput = new DataInputStream(new BufferedInputStream(new FileInputStream(patchFile), BUFFER_SIZE));
+            newOutput = new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE);
+            return applyPatch(oldInput, patchInput, newOutput);
+        } catch (EOFException e) {
+            throw new CodePushInvalidUpdateException("The patch " + patchFile.getName() + " is truncated.");
+        } finally {
+            try {
+                if (oldInput != null) oldInput.close();
+                if (patchInput != null) patchInput.close();
+                if (newOutput != null) newOutput.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    private static String applyPatch(RandomAccessFile oldInput, DataInputStream patchInput, OutputStream newOutput) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        patchInput.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new CodePushInvalidUpdateException("Unsupported patch format.");
+            }
+        }
+
+        long oldSize = oldInput.length();
+        long newSize = patchInput.readLong();
+        if (newSize < 0) {
+            throw new CodePushInvalidUpdateException("The patch is corrupted.");
+        }
+
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        byte[] patchBuffer = new byte[BUFFER_SIZE];
+        // oldBuffer holds the bytes of the old file from oldBufferPosition on.
+        byte[] oldBuffer = new byte[BUFFER_SIZE];
+        long oldBufferPosition = 0;
+        int oldBufferLength = 0;
+        long oldPosition = 0;
+        long newPosition = 0;
+        while (newPosition < newSize) {
+            long diffLength = patchInput.readLong();
+            long extraLength = patchInput.readLong();
+            long seekAdjustment = patchInput.readLong();
+            if (diffLength < 0 || extraLength < 0 || diffLength > newSize - newPosition ||
+                    extraLength > newSize - newPosition - diffLength ||
+                    (diffLength > 0 && (oldPosition < 0 || diffLength > oldSize - oldPosition))) {
+                throw new CodePushInvalidUpdateException("The patch is corrupted.");
+            }
+
+            while (diffLength > 0) {
+                int length = (int) Math.min(diffLength, BUFFER_SIZE);
+                patchInput.readFully(patchBuffer, 0, length);
+                if (oldPosition < oldBufferPosition || oldPosition + length > oldBufferPosition + oldBufferLength) {
+                    // Refill the window. Old positions mostly move forward, so it starts at the requested one.
+                    oldBufferPosition = oldPosition;
+                    oldBufferLength = (int) Math.min(BUFFER_SIZE, oldSize - oldPosition);
+                    oldInput.seek(oldBufferPosition);
+                    oldInput.readFully(oldBuffer, 0, oldBufferLength);
+                }
+
+                int offset = (int) (oldPosition - oldBufferPosition);
+                for (int i = 0; i < length; i++) {
+                    patchBuffer[i] += oldBuffer[offset + i];
+                }
+
+                newOutput.write(patchBuffer, 0, length);
+                messageDigest.update(patchBuffer, 0, length);
+                oldPosition += length;
+                newPosition += length;
+                diffLength -= length;
+            }
+
+            while (extraLength > 0) {
+                int length = (int) Math.min(extraLength, BUFFER_SIZE);
+                patchInput.readFully(patchBuffer, 0, length);
+                newOutput.write(patchBuffer, 0, length);
+                messageDigest.update(patchBuffer, 0, length);
+                newPosition += length;
+                extraLength -= length;
+            }
+
+            oldPosition += seekAdjustment;
+        }
+
+        return CodePushUpdateUtils.getHashString(messageDigest);
+    }
+}
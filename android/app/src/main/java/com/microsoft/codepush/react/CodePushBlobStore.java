@@ -0,0 +1,101 @@
+package com.microsoft.codepush.react;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.util.Map;
+
+// Content-addressed store of update files, keyed by their SHA-256 hash. Package folders
+// are made of hard links into the store, so a file that is shared by several packages
+// (e.g. the assets that a diff update keeps) exists on disk only once. A blob whose only
+// remaining link is the one in the store is no longer used by any package, and is
+// deleted by collectGarbage.
+public class CodePushBlobStore {
+
+    private final String mBlobsFolderPath;
+
+    public CodePushBlobStore(String blobsFolderPath) {
+        mBlobsFolderPath = blobsFolderPath;
+    }
+
+    // Hard links are created through android.system.Os, which was added in API 21.
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(mBlobsFolderPath, hash);
+    }
+
+    // Makes every file of the package a link to the blob with the same contents, adding
+    // the blobs that do not exist yet.
+    public void addPackageFiles(String packageFolderPath, CodePushUpdateManifest manifest) {
+        new File(mBlobsFolderPath).mkdirs();
+        for (Map.Entry<String, String> fileHash : manifest.getFileHashes().entrySet()) {
+            File file = new File(packageFolderPath, fileHash.getKey());
+            File blobFile = getBlobFile(fileHash.getValue());
+            try {
+                if (!blobFile.exists()) {
+                    Os.link(file.getAbsolutePath(), blobFile.getAbsolutePath());
+                    continue;
+                }
+
+                StructStat fileStat = Os.stat(file.getAbsolutePath());
+                StructStat blobStat = Os.stat(blobFile.getAbsolutePath());
+                if (fileStat.st_ino != blobStat.st_ino || fileStat.st_dev != blobStat.st_dev) {
+                    // Replace the duplicate with a link to the existing blob.
+                    File linkFile = new File(file.getAbsolutePath() + ".link");
+                    linkFile.delete();
+                    Os.link(blobFile.getAbsolutePath(), linkFile.getAbsolutePath());
+                    Os.rename(linkFile.getAbsolutePath(), file.getAbsolutePath());
+                }
+            } catch (ErrnoException e) {
+                // The package is still complete, the file is just not shared.
+                CodePushUtils.log("Unable to add " + file.getAbsolutePath() + " to the blob store: " + e.getMessage());
+            }
+        }
+    }
+
+    // Creates destinationFile as a link to the blob with the given hash. Returns false if
+    // there is no such blob or the link could not be created.
+    public boolean linkFile(String hash, File destinationFile) {
+        File blobFile = getBlobFile(hash);
+        if (!blobFile.exists()) {
+            return false;
+        }
+
+        try {
+            Os.link(blobFile.getAbsolutePath(), destinationFile.getAbsolutePath());
+            return true;
+        } catch (ErrnoException e) {
+            CodePushUtils.log("Unable to link " + destinationFile.getAbsolutePath() + " to the blob store: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Deletes the blobs that are not linked from any package folder anymore.
+    public void collectGarbage() {
+        File[] blobFiles = new File(mBlobsFolderPath).listFiles();
+        if (blobFiles == null) {
+            return;
+        }
+
+        int deletedBlobCount = 0;
+        for (File blobFile : blobFiles) {
+            try {
+                if (Os.stat(blobFile.getAbsolutePath()).st_nlink <= 1 && blobFile.delete()) {
+                    deletedBlobCount++;
+                }
+            } catch (ErrnoException e) {
+                CodePushUtils.log("Unable to stat " + blobFile.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+
+        if (deletedBlobCount > 0) {
+            CodePushUtils.log("Deleted " + deletedBlobCount + " unused blobs.");
+        }
+    }
+}
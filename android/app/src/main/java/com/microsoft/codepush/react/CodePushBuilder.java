@@ -9,6 +9,14 @@ public class CodePushBuilder {
     private boolean mIsDebugMode;
     private String mServerUrl;
     private Integer mPublicKeyResourceDescriptor;
+    private long mDiskBudget = 0;
+    private int mDownloadSegmentCount = 1;
+    private boolean mIsDownloadPreemptionEnabled = false;
+    private boolean mIsStreamingUnzipEnabled = false;
+    private boolean mIsZipPackageStorageEnabled = false;
+    private int mUnzipThreadCount = CodePushConstants.DEFAULT_UNZIP_THREAD_COUNT;
+    private boolean mIsMetricsEnabled = false;
+    private CodePushMetrics.Listener mMetricsListener;
 
     public CodePushBuilder(String deploymentKey, Context context) {
         this.mDeploymentKey = deploymentKey;
@@ -31,7 +39,56 @@ public class CodePushBuilder {
         return this;
     }
 
+    public CodePushBuilder setDiskBudget(long diskBudget) {
+        this.mDiskBudget = diskBudget;
+        return this;
+    }
+
+    public CodePushBuilder setDownloadPreemptionEnabled(boolean isDownloadPreemptionEnabled) {
+        this.mIsDownloadPreemptionEnabled = isDownloadPreemptionEnabled;
+        return this;
+    }
+
+    public CodePushBuilder setDownloadSegmentCount(int downloadSegmentCount) {
+        this.mDownloadSegmentCount = downloadSegmentCount;
+        return this;
+    }
+
+    public CodePushBuilder setStreamingUnzipEnabled(boolean isStreamingUnzipEnabled) {
+        this.mIsStreamingUnzipEnabled = isStreamingUnzipEnabled;
+        return this;
+    }
+
+    public CodePushBuilder setUnzipThreadCount(int unzipThreadCount) {
+        this.mUnzipThreadCount = unzipThreadCount;
+        return this;
+    }
+
+    public CodePushBuilder setZipPackageStorageEnabled(boolean isZipPackageStorageEnabled) {
+        this.mIsZipPackageStorageEnabled = isZipPackageStorageEnabled;
+        return this;
+    }
+
+    public CodePushBuilder setMetricsEnabled(boolean isMetricsEnabled) {
+        this.mIsMetricsEnabled = isMetricsEnabled;
+        return this;
+    }
+
+    public CodePushBuilder setMetricsListener(CodePushMetrics.Listener metricsListener) {
+        this.mMetricsListener = metricsListener;
+        return this;
+    }
+
     public CodePush build() {
-        return new CodePush(this.mDeploymentKey, this.mContext, this.mIsDebugMode, this.mServerUrl, this.mPublicKeyResourceDescriptor);
+        CodePush codePush = new CodePush(this.mDeploymentKey, this.mContext, this.mIsDebugMode, this.mServerUrl, this.mPublicKeyResourceDescriptor);
+        codePush.setDiskBudget(this.mDiskBudget);
+        codePush.setDownloadPreemptionEnabled(this.mIsDownloadPreemptionEnabled);
+        codePush.setDownloadSegmentCount(this.mDownloadSegmentCount);
+        codePush.setStreamingUnzipEnabled(this.mIsStreamingUnzipEnabled);
+        codePush.setUnzipThreadCount(this.mUnzipThreadCount);
+        codePush.setZipPackageStorageEnabled(this.mIsZipPackageStorageEnabled);
+        codePush.setMetricsEnabled(this.mIsMetricsEnabled);
+        codePush.setMetricsListener(this.mMetricsListener);
+        return codePush;
     }
 }
@@ -0,0 +1,396 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Builds the files listed in the "chunkedFiles" section of a diff update:
+//
+//   {"path": "CodePush/index.android.bundle", "hash": "<SHA-256 of the file>",
+//    "url": "<where the whole file can be fetched>", "chunks": [["<chunk hash>", <length>], ...]}
+//
+// Every chunk that can be found anywhere in the current package is copied from there, see
+// CodePushChunker. The missing ones are fetched from url with range requests, where neighbouring
+// chunks are coalesced into one request as long as the bytes in between are few enough.
+public class CodePushChunkAssembler {
+
+    // Bytes that are fetched again rather than starting another request.
+    private static final int RANGE_MERGE_GAP = 1024 * 16;
+    private static final int RANGE_THREAD_COUNT = 4;
+
+    private final CodePushDownloadHandler mDownloadHandler;
+    private final CodePushMetrics mMetrics;
+
+    public CodePushChunkAssembler(CodePushDownloadHandler downloadHandler, CodePushMetrics metrics) {
+        mDownloadHandler = downloadHandler;
+        mMetrics = metrics;
+    }
+
+    // Writes the chunked files into the update contents, where they are merged like any other
+    // changed file, and adds them to their manifest. Returns the number of assembled files.
+    // The missing chunks of all files are reported to progressCallback as one download, whose
+    // total is known before the first request. progressCallback can abort it by throwing, e.g.
+    // when it was cancelled.
+    public int assembleChunkedFiles(String diffManifestFilePath, String currentPackageFolderPath, String updateContentsFolderPath,
+                                    CodePushUpdateManifest updateContentsManifest, DownloadProgressCallback progressCallback) throws IOException {
+        JSONObject diffManifest = CodePushUtils.getJsonObjectFromFile(diffManifestFilePath);
+        JSONArray chunkedFileEntries = diffManifest.optJSONArray(CodePushConstants.DIFF_MANIFEST_CHUNKED_FILES_KEY);
+        if (chunkedFileEntries == null || chunkedFileEntries.length() == 0) {
+            return 0;
+        }
+
+        long startTime = mMetrics.start();
+        List<ChunkedFile> chunkedFiles = new ArrayList<>();
+        Map<String, ChunkSource> chunkSources = new HashMap<>();
+        Set<Integer> chunkLengths = new HashSet<>();
+        try {
+            for (int i = 0; i < chunkedFileEntries.length(); i++) {
+                ChunkedFile chunkedFile = new ChunkedFile(chunkedFileEntries.getJSONObject(i));
+                for (int j = 0; j < chunkedFile.chunkHashes.length; j++) {
+                    chunkSources.put(chunkedFile.chunkHashes[j], null);
+                    chunkLengths.add(chunkedFile.chunkLengths[j]);
+                }
+
+                chunkedFiles.add(chunkedFile);
+            }
+        } catch (JSONException e) {
+            throw new CodePushUnknownException("Unable to read chunked files during diff update", e);
+        }
+
+        findLocalChunks(new File(currentPackageFolderPath), chunkSources, chunkLengths);
+
+        // The local chunks of every file are copied first, so that the bytes to fetch are known
+        // before the first request.
+        List<List<long[]>> missingRanges = new ArrayList<>();
+        long missingBytes = 0;
+        for (ChunkedFile chunkedFile : chunkedFiles) {
+            File newFile = new File(updateContentsFolderPath, chunkedFile.path);
+            newFile.getParentFile().mkdirs();
+            List<long[]> ranges = copyLocalChunks(chunkedFile, chunkSources, newFile);
+            for (long[] range : ranges) {
+                missingBytes += range[1] - range[0];
+            }
+
+            missingRanges.add(ranges);
+        }
+
+        FetchProgress fetchProgress = new FetchProgress(missingBytes, progressCallback);
+        for (int i = 0; i < chunkedFiles.size(); i++) {
+            ChunkedFile chunkedFile = chunkedFiles.get(i);
+            File newFile = new File(updateContentsFolderPath, chunkedFile.path);
+            fetchRanges(chunkedFile, missingRanges.get(i), newFile, fetchProgress);
+            String hash = CodePushUpdateUtils.computeFileHash(newFile);
+            if (!hash.equals(chunkedFile.hash)) {
+                newFile.delete();
+                throw new CodePushInvalidUpdateException("Update is invalid - the assembled \"" + chunkedFile.path + "\" does not match its expected hash.");
+            }
+
+            updateContentsManifest.addFileHash(chunkedFile.path, hash);
+        }
+
+        long fetchedBytes = fetchProgress.getFetchedBytes();
+        mMetrics.record(CodePushMetrics.Phase.CHUNK_SYNC, startTime, fetchedBytes, chunkedFiles.size());
+        return chunkedFiles.size();
+    }
+
+    // Fills in chunkSources with the chunks that the files in folder contain. Only the chunks
+    // with one of the wanted lengths are hashed, which skips most chunks of unrelated files.
+    private static void findLocalChunks(File folder, final Map<String, ChunkSource> chunkSources, final Set<Integer> chunkLengths) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        byte[] buffer = new byte[CodePushChunker.MAX_CHUNK_SIZE];
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                findLocalChunks(file, chunkSources, chunkLengths);
+                continue;
+            }
+
+            if (file.getName().equals(CodePushConstants.PACKAGE_FILE_NAME) || file.getName().equals(CodePushConstants.PACKAGE_MANIFEST_FILE_NAME)) {
+                continue;
+            }
+
+            final List<long[]> candidates = new ArrayList<>();
+            InputStream input = null;
+            try {
+                input = new FileInputStream(file);
+                CodePushChunker.findChunks(input, false, new CodePushChunker.ChunkListener() {
+                    @Override
+                    public void onChunk(long offset, int length, String hash) {
+                        if (chunkLengths.contains(length)) {
+                            candidates.add(new long[] { offset, length });
+                        }
+                    }
+                });
+            } finally {
+                try {
+                    if (input != null) input.close();
+                } catch (IOException e) {
+                    throw new CodePushUnknownException("Error closing IO resources.", e);
+                }
+            }
+
+            if (candidates.isEmpty()) {
+                continue;
+            }
+
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                for (long[] candidate : candidates) {
+                    int length = (int) candidate[1];
+                    randomAccessFile.seek(candidate[0]);
+                    randomAccessFile.readFully(buffer, 0, length);
+                    messageDigest.update(buffer, 0, length);
+                    String hash = CodePushChunker.getChunkHash(messageDigest);
+                    if (chunkSources.containsKey(hash) && chunkSources.get(hash) == null) {
+                        chunkSources.put(hash, new ChunkSource(file, candidate[0]));
+                    }
+                }
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    // Creates newFile with the length of chunkedFile and copies the local chunks into it. Returns the
+    // ranges of newFile which are missing, as [start, end) pairs.
+    private static List<long[]> copyLocalChunks(ChunkedFile chunkedFile, Map<String, ChunkSource> chunkSources, File newFile) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(newFile, "rw");
+        Map<File, RandomAccessFile> sourceFiles = new HashMap<>();
+        try {
+            randomAccessFile.setLength(chunkedFile.length);
+            FileChannel channel = randomAccessFile.getChannel();
+            byte[] buffer = new byte[CodePushChunker.MAX_CHUNK_SIZE];
+            List<long[]> ranges = new ArrayList<>();
+            long offset = 0;
+            for (int i = 0; i < chunkedFile.chunkHashes.length; i++) {
+                int length = chunkedFile.chunkLengths[i];
+                ChunkSource chunkSource = chunkSources.get(chunkedFile.chunkHashes[i]);
+                if (chunkSource != null) {
+                    RandomAccessFile sourceFile = sourceFiles.get(chunkSource.file);
+                    if (sourceFile == null) {
+                        sourceFile = new RandomAccessFile(chunkSource.file, "r");
+                        sourceFiles.put(chunkSource.file, sourceFile);
+                    }
+
+                    sourceFile.seek(chunkSource.offset);
+                    sourceFile.readFully(buffer, 0, length);
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+                    long position = offset;
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                } else {
+                    // Neighbouring missing chunks are coalesced into one request.
+                    long[] lastRange = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                    if (lastRange != null && offset - lastRange[1] <= RANGE_MERGE_GAP) {
+                        lastRange[1] = offset + length;
+                    } else {
+                        ranges.add(new long[] { offset, offset + length });
+                    }
+                }
+
+                offset += length;
+            }
+
+            return ranges;
+        } finally {
+            randomAccessFile.close();
+            for (RandomAccessFile sourceFile : sourceFiles.values()) {
+                sourceFile.close();
+            }
+        }
+    }
+
+    private void fetchRanges(ChunkedFile chunkedFile, List<long[]> ranges, File newFile, final FetchProgress fetchProgress) throws IOException {
+        if (ranges.isEmpty()) {
+            return;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(newFile, "rw");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final URL url = new URL(chunkedFile.url);
+            final AtomicBoolean isWholeFileFetched = new AtomicBoolean(false);
+            List<Callable<Void>> fetchTasks = new ArrayList<>();
+            for (final long[] range : ranges) {
+                fetchTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        fetchRange(url, range[0], range[1] - 1, channel, isWholeFileFetched, fetchProgress);
+                        return null;
+                    }
+                });
+            }
+
+            CodePushUtils.log("Fetching " + ranges.size() + " ranges of " + chunkedFile.path + ".");
+            // The first range goes alone, so that a server which ignores ranges sends the file only once.
+            FileUtils.runTasks(fetchTasks.subList(0, 1), 1);
+            FileUtils.runTasks(fetchTasks.subList(1, fetchTasks.size()), RANGE_THREAD_COUNT);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    // Writes the bytes start to end (inclusive) of url into channel at the same position. A server
+    // that ignores the range sends the whole file, which is written as well, and makes the
+    // remaining ranges unnecessary.
+    private void fetchRange(URL url, long start, long end, FileChannel channel, AtomicBoolean isWholeFileFetched,
+                            FetchProgress fetchProgress) throws IOException {
+        byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+        for (int attempt = 1; !isWholeFileFetched.get(); attempt++) {
+            HttpURLConnection connection = null;
+            InputStream bin = null;
+            long position = start;
+            long lastPosition = end;
+            try {
+                // Stops here if the download was cancelled while this range was waiting.
+                fetchProgress.add(0);
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+                int responseCode = connection.getResponseCode();
+                boolean isWholeFile = responseCode == HttpURLConnection.HTTP_OK;
+                if (isWholeFile) {
+                    position = 0;
+                    lastPosition = channel.size() - 1;
+                } else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                    if (CodePushDownloadHandler.getContentRangeStart(connection) != start) {
+                        throw new IOException("Received " + connection.getHeaderField("Content-Range") + " instead of bytes " + start + "-" + end + " of " + url + ".");
+                    }
+                } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                    throw new IOException("Unable to fetch bytes " + start + "-" + end + " of " + url + " (response code " + responseCode + ").");
+                } else {
+                    // Client errors are not going away by retrying.
+                    throw new CodePushUnknownException("Received unexpected response code " + responseCode +
+                            " while fetching bytes " + start + "-" + end + " of " + url);
+                }
+
+                bin = new BufferedInputStream(connection.getInputStream());
+                int numBytesRead;
+                while (position <= lastPosition && (numBytesRead = bin.read(data, 0, (int) Math.min(data.length, lastPosition - position + 1))) >= 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, numBytesRead);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+
+                    fetchProgress.add(numBytesRead);
+                }
+
+                if (position <= lastPosition) {
+                    throw new IOException("Connection closed at byte " + position + ", expected range to end at " + lastPosition);
+                }
+
+                if (isWholeFile) {
+                    isWholeFileFetched.set(true);
+                }
+
+                return;
+            } catch (IOException e) {
+                if (attempt >= CodePushConstants.DOWNLOAD_MAX_ATTEMPTS) {
+                    throw e;
+                }
+
+                try {
+                    Thread.sleep(mDownloadHandler.getRetryDelay(attempt));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            } finally {
+                try {
+                    if (bin != null) bin.close();
+                    if (connection != null) connection.disconnect();
+                } catch (IOException e) {
+                    throw new CodePushUnknownException("Error closing IO resources.", e);
+                }
+            }
+        }
+    }
+
+    // Adds up the bytes fetched by the parallel range requests of all files, and reports them
+    // to the progress callback one at a time. Bytes that are fetched again after an interrupted
+    // request count twice.
+    private static class FetchProgress {
+        private final long mMissingBytes;
+        private final DownloadProgressCallback mProgressCallback;
+        private long mFetchedBytes;
+
+        FetchProgress(long missingBytes, DownloadProgressCallback progressCallback) {
+            mMissingBytes = missingBytes;
+            mProgressCallback = progressCallback;
+        }
+
+        synchronized void add(long byteCount) {
+            mFetchedBytes += byteCount;
+            mProgressCallback.call(Math.max(mMissingBytes, mFetchedBytes), mFetchedBytes);
+        }
+
+        synchronized long getFetchedBytes() {
+            return mFetchedBytes;
+        }
+    }
+
+    private static class ChunkedFile {
+        final String path;
+        final String hash;
+        final String url;
+        final String[] chunkHashes;
+        final int[] chunkLengths;
+        final long length;
+
+        ChunkedFile(JSONObject entry) throws JSONException {
+            path = entry.getString(CodePushConstants.CHUNKED_FILE_PATH_KEY);
+            hash = entry.getString(CodePushConstants.CHUNKED_FILE_HASH_KEY);
+            url = entry.getString(CodePushConstants.CHUNKED_FILE_URL_KEY);
+            JSONArray chunks = entry.getJSONArray(CodePushConstants.CHUNKED_FILE_CHUNKS_KEY);
+            chunkHashes = new String[chunks.length()];
+            chunkLengths = new int[chunks.length()];
+            long totalLength = 0;
+            for (int i = 0; i < chunks.length(); i++) {
+                JSONArray chunk = chunks.getJSONArray(i);
+                chunkHashes[i] = chunk.getString(0);
+                chunkLengths[i] = chunk.getInt(1);
+                if (chunkLengths[i] <= 0 || chunkLengths[i] > CodePushChunker.MAX_CHUNK_SIZE) {
+                    throw new CodePushInvalidUpdateException("Update is invalid - \"" + path + "\" has a chunk of " + chunkLengths[i] + " bytes.");
+                }
+
+                totalLength += chunkLengths[i];
+            }
+
+            length = totalLength;
+        }
+    }
+
+    private static class ChunkSource {
+        final File file;
+        final long offset;
+
+        ChunkSource(File file, long offset) {
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+}
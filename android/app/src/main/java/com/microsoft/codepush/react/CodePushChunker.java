@@ -0,0 +1,130 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+// Splits files into content-defined chunks, so that an insertion or deletion only changes the
+// chunks around it instead of shifting every fixed-size block after it. Boundaries are found with
+// a Gear rolling hash and FastCDC's normalized chunking: no boundary within the first
+// MIN_CHUNK_SIZE bytes, a harder condition until AVERAGE_CHUNK_SIZE and an easier one after it,
+// and a forced boundary at MAX_CHUNK_SIZE.
+//
+// The chunk index of a "chunkedFiles" entry in a diff update must be created with exactly these
+// parameters and Gear table, createChunkIndex() is the reference implementation, and
+// scripts/generateChunkIndex.js creates the same index.
+public class CodePushChunker {
+
+    public static final int MIN_CHUNK_SIZE = 1024 * 2;
+    public static final int AVERAGE_CHUNK_SIZE = 1024 * 8;
+    public static final int MAX_CHUNK_SIZE = 1024 * 64;
+
+    // Chunks are identified by the first 16 bytes of their SHA-256, as hex. A collision can only
+    // make an update fail, since assembled files are verified with their full hash.
+    private static final int CHUNK_HASH_LENGTH = 32;
+
+    // Gear hashes shift left, so the high bits depend on the most bytes. 15 and 11 bits for the
+    // average chunk size of 8 KB.
+    private static final long MASK_BEFORE_AVERAGE = 0xFFFE000000000000L;
+    private static final long MASK_AFTER_AVERAGE = 0xFFE0000000000000L;
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    // Random values from SplitMix64, seeded with "CodePush" in ASCII.
+    private static final long[] GEAR = new long[256];
+    static {
+        long seed = 0x436F646550757368L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    public interface ChunkListener {
+        // hash is null unless the chunks are hashed.
+        void onChunk(long offset, int length, String hash) throws IOException;
+    }
+
+    // Reports the chunks of input in order. Finding the boundaries is a lot cheaper than hashing
+    // the chunks, so callers that only need some of the hashes can skip them here.
+    public static void findChunks(InputStream input, boolean isHashingChunks, ChunkListener listener) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        MessageDigest messageDigest = isHashingChunks ? CodePushUpdateUtils.createHashDigest() : null;
+        long chunkOffset = 0;
+        int chunkLength = 0;
+        long hash = 0;
+        int bytesRead;
+        while ((bytesRead = input.read(buffer)) != -1) {
+            // Where the bytes of the current chunk start within buffer.
+            int chunkStart = 0;
+            for (int i = 0; i < bytesRead; i++) {
+                chunkLength++;
+                if (chunkLength <= MIN_CHUNK_SIZE) {
+                    continue;
+                }
+
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                long mask = chunkLength < AVERAGE_CHUNK_SIZE ? MASK_BEFORE_AVERAGE : MASK_AFTER_AVERAGE;
+                if ((hash & mask) == 0 || chunkLength == MAX_CHUNK_SIZE) {
+                    String chunkHash = null;
+                    if (messageDigest != null) {
+                        messageDigest.update(buffer, chunkStart, i + 1 - chunkStart);
+                        chunkHash = getChunkHash(messageDigest);
+                    }
+
+                    listener.onChunk(chunkOffset, chunkLength, chunkHash);
+                    chunkOffset += chunkLength;
+                    chunkLength = 0;
+                    hash = 0;
+                    chunkStart = i + 1;
+                }
+            }
+
+            if (messageDigest != null) {
+                messageDigest.update(buffer, chunkStart, bytesRead - chunkStart);
+            }
+        }
+
+        if (chunkLength > 0) {
+            listener.onChunk(chunkOffset, chunkLength, messageDigest != null ? getChunkHash(messageDigest) : null);
+        }
+    }
+
+    // Returns the chunk index of file as used by "chunkedFiles": an array of [hash, length] pairs.
+    public static JSONArray createChunkIndex(File file) throws IOException {
+        final JSONArray chunkIndex = new JSONArray();
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            findChunks(input, true, new ChunkListener() {
+                @Override
+                public void onChunk(long offset, int length, String hash) {
+                    JSONArray chunk = new JSONArray();
+                    chunk.put(hash);
+                    chunk.put(length);
+                    chunkIndex.put(chunk);
+                }
+            });
+        } finally {
+            try {
+                if (input != null) input.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+
+        return chunkIndex;
+    }
+
+    // Returns the chunk hash of the bytes added to messageDigest, and resets it.
+    public static String getChunkHash(MessageDigest messageDigest) {
+        return CodePushUpdateUtils.getHashString(messageDigest).substring(0, CHUNK_HASH_LENGTH);
+    }
+}
@@ -1,22 +1,51 @@
 package com.microsoft.codepush.react;
 
 public class CodePushConstants {
+    public static final String APP_VERSION_KEY = "appVersion";
     public static final String ASSETS_BUNDLE_PREFIX = "assets://";
+    public static final String BASE_FOLDER_SUFFIX = ".base";
+    public static final String BINARY_CONTENTS_MISMATCH_FILE_NAME = "binaryContentsMismatch";
     public static final String BINARY_MODIFIED_TIME_KEY = "binaryModifiedTime";
+    public static final String BLOBS_FOLDER_NAME = "blobs";
+    public static final String CHUNKED_FILE_CHUNKS_KEY = "chunks";
+    public static final String CHUNKED_FILE_HASH_KEY = "hash";
+    public static final String CHUNKED_FILE_PATH_KEY = "path";
+    public static final String CHUNKED_FILE_URL_KEY = "url";
     public static final String CODE_PUSH_FOLDER_PREFIX = "CodePush";
     public static final String CODE_PUSH_HASH_FILE_NAME = "CodePushHash";
+    public static final String CODE_PUSH_MANIFEST_FILE_NAME = "CodePushManifest";
     public static final String CODE_PUSH_OLD_HASH_FILE_NAME = "CodePushHash.json";
     public static final String CODE_PUSH_PREFERENCES = "CodePush";
     public static final String CURRENT_PACKAGE_KEY = "currentPackage";
     public static final String DEFAULT_JS_BUNDLE_NAME = "index.android.bundle";
+    public static final int DEFAULT_UNZIP_THREAD_COUNT = 4;
+    public static final String DEPLOYMENT_KEY_KEY = "deploymentKey";
+    public static final String DIFF_MANIFEST_CHUNKED_FILES_KEY = "chunkedFiles";
     public static final String DIFF_MANIFEST_FILE_NAME = "hotcodepush.json";
+    public static final String DIFF_MANIFEST_PATCHED_FILES_KEY = "patchedFiles";
     public static final int DOWNLOAD_BUFFER_SIZE = 1024 * 256;
     public static final String DOWNLOAD_FILE_NAME = "download.zip";
+    public static final int DOWNLOAD_MAX_ATTEMPTS = 5;
+    public static final int DOWNLOAD_MIN_SEGMENT_SIZE = 1024 * 1024;
     public static final String DOWNLOAD_PROGRESS_EVENT_NAME = "CodePushDownloadProgress";
+    public static final long DOWNLOAD_RETRY_BASE_DELAY_MILLIS = 1000;
+    public static final long DOWNLOAD_RETRY_MAX_DELAY_MILLIS = 30 * 1000;
+    public static final int DOWNLOAD_STATE_SAVE_INTERVAL = 1024 * 1024;
+    public static final String DOWNLOAD_STATE_FILE_NAME = "download.json";
     public static final String DOWNLOAD_URL_KEY = "downloadUrl";
     public static final String FAILED_UPDATES_KEY = "CODE_PUSH_FAILED_UPDATES";
+    public static final String FAILED_UPDATES_LOG_FILE_NAME = "CodePushFailedUpdates.log";
+    public static final int FAILED_UPDATES_LOG_SLACK = 16;
+    public static final String LABEL_KEY = "label";
+    public static final String PACKAGE_ARCHIVE_DENSITY_MARKER_PREFIX = "extractedForDensity-";
+    public static final String PACKAGE_ARCHIVE_FILE_NAME = "package.zip";
     public static final String PACKAGE_FILE_NAME = "app.json";
     public static final String PACKAGE_HASH_KEY = "packageHash";
+    public static final String PACKAGE_MANIFEST_FILE_NAME = "hashes.bin";
+    public static final String PACKAGE_SIZE_KEY = "packageSize";
+    public static final String PATCHED_FILE_HASH_KEY = "hash";
+    public static final String PATCHED_FILE_PATCH_KEY = "patch";
+    public static final String PATCHED_FILE_PATH_KEY = "path";
     public static final String PENDING_UPDATE_HASH_KEY = "hash";
     public static final String PENDING_UPDATE_IS_LOADING_KEY = "isLoading";
     public static final String PENDING_UPDATE_KEY = "CODE_PUSH_PENDING_UPDATE";
@@ -24,8 +53,15 @@ public class CodePushConstants {
     public static final String REACT_NATIVE_LOG_TAG = "ReactNative";
     public static final String RELATIVE_BUNDLE_PATH_KEY = "bundlePath";
     public static final String RESOURCES_BUNDLE = "resources.arsc";
+    public static final String STAGING_FOLDER_SUFFIX = ".staging";
+    public static final String STARTUP_DESCRIPTOR_FILE_NAME = "startup.bin";
     public static final String STATUS_FILE = "codepush.json";
-    public static final String UNZIPPED_FOLDER_NAME = "unzipped";
+    public static final int STATUS_REPORT_BATCH_SIZE = 10;
+    public static final int STATUS_REPORT_QUEUE_CAPACITY = 50;
+    public static final String STATUS_REPORT_QUEUE_FILE_NAME = "CodePushStatusReports.json";
+    public static final long STATUS_REPORT_RETRY_BASE_DELAY_MILLIS = 60 * 1000;
+    public static final long STATUS_REPORT_RETRY_MAX_DELAY_MILLIS = 60 * 60 * 1000;
+    public static final String TRASH_FOLDER_NAME = "CodePushTrash";
     public static final String CODE_PUSH_APK_BUILD_TIME_KEY = "CODE_PUSH_APK_BUILD_TIME";
     public static final String BUNDLE_JWT_FILE = ".codepushrelease";
 }
@@ -0,0 +1,7 @@
+package com.microsoft.codepush.react;
+
+public class CodePushDownloadCancelledException extends RuntimeException {
+    public CodePushDownloadCancelledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,452 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Downloads an update package into a file, persisting enough state next to the
+// partial file that an interrupted transfer can be continued with a Range request
+// instead of starting over from byte zero. Alternatively, zip packages can be
+// extracted straight from the network stream (see downloadAndUnzip).
+public class CodePushDownloadHandler {
+
+    private static final String COMMITTED_BYTES_KEY = "committedBytes";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String TOTAL_BYTES_KEY = "totalBytes";
+
+    private final int mMaxAttempts;
+    private final long mBaseRetryDelayMillis;
+    private final Random mRandom = new Random();
+    private int mSegmentCount = 1;
+
+    public CodePushDownloadHandler() {
+        this(CodePushConstants.DOWNLOAD_MAX_ATTEMPTS, CodePushConstants.DOWNLOAD_RETRY_BASE_DELAY_MILLIS);
+    }
+
+    // Allows tests running against a local server to shorten the backoff.
+    CodePushDownloadHandler(int maxAttempts, long baseRetryDelayMillis) {
+        mMaxAttempts = maxAttempts;
+        mBaseRetryDelayMillis = baseRetryDelayMillis;
+    }
+
+    // Enables fetching fresh downloads over segmentCount parallel range requests. Servers
+    // without range support, and interrupted downloads being resumed, still use one stream.
+    public void setSegmentCount(int segmentCount) {
+        mSegmentCount = Math.max(1, segmentCount);
+    }
+
+    public static File getStateFile(File downloadFile) {
+        return new File(downloadFile.getParentFile(), CodePushConstants.DOWNLOAD_STATE_FILE_NAME);
+    }
+
+    // Downloads the contents of downloadUrlString into downloadFile and returns whether
+    // the downloaded file is a zip archive. Interrupted transfers are retried with
+    // exponential backoff, resuming from the last committed byte whenever the server
+    // can prove that the resource has not changed in between.
+    public boolean download(String packageHash, String downloadUrlString, File downloadFile,
+                            DownloadProgressCallback progressCallback) throws IOException {
+        URL downloadUrl;
+        try {
+            downloadUrl = new URL(downloadUrlString);
+        } catch (MalformedURLException e) {
+            throw new CodePushMalformedDataException(downloadUrlString, e);
+        }
+
+        downloadFile.getParentFile().mkdirs();
+        File stateFile = getStateFile(downloadFile);
+        if (mSegmentCount > 1 && readState(stateFile, packageHash, downloadUrlString, downloadFile) == null) {
+            FileUtils.deleteFileOrFolderSilently(stateFile);
+            CodePushSegmentedDownloader segmentedDownloader = new CodePushSegmentedDownloader(this, mSegmentCount, mMaxAttempts);
+            try {
+                if (segmentedDownloader.download(downloadUrl, downloadFile, progressCallback)) {
+                    return isZipFile(downloadFile);
+                }
+            } catch (IOException | CodePushUnknownException e) {
+                // The preallocated file has holes, so it cannot be resumed by the single stream,
+                // which starts over instead.
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+
+                CodePushUtils.log("Segmented download of " + downloadUrlString + " failed (" + e.getMessage() +
+                        "), downloading with a single connection.");
+            } catch (RuntimeException e) {
+                // E.g. the download was cancelled.
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
+                throw e;
+            }
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                downloadOnce(packageHash, downloadUrl, downloadFile, stateFile, progressCallback);
+                break;
+            } catch (IOException e) {
+                if (attempt >= mMaxAttempts) {
+                    throw e;
+                }
+
+                long delay = getRetryDelay(attempt);
+                CodePushUtils.log("Download of " + downloadUrlString + " was interrupted (" + e.getMessage() +
+                        "), retrying in " + delay + " ms.");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+
+        FileUtils.deleteFileOrFolderSilently(stateFile);
+        return isZipFile(downloadFile);
+    }
+
+    // Pipelined variant of download(): if the response is a zip archive, its entries are
+    // extracted into unzippedFolderPath while the bytes arrive, without ever writing the
+    // archive itself to disk. Plain (non-zip) responses are written to downloadFile as usual.
+    // Returns whether the response was a zip archive. If manifest is non-null, the hashes
+    // of the extracted files are added to it.
+    public boolean downloadAndUnzip(String downloadUrlString, File downloadFile, String unzippedFolderPath,
+                                    CodePushUpdateManifest manifest, DownloadProgressCallback progressCallback) throws IOException {
+        URL downloadUrl;
+        try {
+            downloadUrl = new URL(downloadUrlString);
+        } catch (MalformedURLException e) {
+            throw new CodePushMalformedDataException(downloadUrlString, e);
+        }
+
+        downloadFile.getParentFile().mkdirs();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return downloadAndUnzipOnce(downloadUrl, downloadFile, unzippedFolderPath, manifest, progressCallback);
+            } catch (IOException e) {
+                // A zip stream cannot be resumed in the middle, so every attempt starts over.
+                FileUtils.deleteDirectoryAtPath(unzippedFolderPath);
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
+                if (manifest != null) {
+                    manifest.clear();
+                }
+
+                if (attempt >= mMaxAttempts) {
+                    throw e;
+                }
+
+                long delay = getRetryDelay(attempt);
+                CodePushUtils.log("Download of " + downloadUrlString + " was interrupted (" + e.getMessage() +
+                        "), retrying in " + delay + " ms.");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private boolean downloadAndUnzipOnce(URL downloadUrl, File downloadFile, String unzippedFolderPath,
+                                         CodePushUpdateManifest manifest, final DownloadProgressCallback progressCallback) throws IOException {
+        HttpURLConnection connection = null;
+        BufferedInputStream bin = null;
+        FileOutputStream fos = null;
+        try {
+            connection = (HttpURLConnection) (downloadUrl.openConnection());
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                throw new IOException("Received response code " + responseCode + " while downloading " + downloadUrl);
+            } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new CodePushUnknownException("Received unexpected response code " + responseCode +
+                        " while downloading " + downloadUrl);
+            }
+
+            final long totalBytes = connection.getContentLength();
+            final long[] receivedBytes = new long[1];
+            bin = new BufferedInputStream(new FilterInputStream(connection.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        onBytesRead(1);
+                    }
+
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int numBytesRead = super.read(buffer, offset, length);
+                    if (numBytesRead > 0) {
+                        onBytesRead(numBytesRead);
+                    }
+
+                    return numBytesRead;
+                }
+
+                private void onBytesRead(int numBytesRead) {
+                    receivedBytes[0] += numBytesRead;
+                    progressCallback.call(totalBytes, receivedBytes[0]);
+                }
+            }, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+
+            // Sniff the header without consuming it, so that the zip stream sees the whole archive.
+            byte[] header = new byte[4];
+            bin.mark(header.length);
+            int headerLength = 0;
+            int numBytesRead;
+            while (headerLength < header.length && (numBytesRead = bin.read(header, headerLength, header.length - headerLength)) >= 0) {
+                headerLength += numBytesRead;
+            }
+
+            bin.reset();
+            boolean isZip = headerLength == header.length && ByteBuffer.wrap(header).getInt() == 0x504b0304;
+
+            byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+            if (isZip) {
+                FileUtils.unzipStream(bin, unzippedFolderPath, manifest);
+
+                // Consume the central directory, which follows the last entry.
+                while (bin.read(data, 0, data.length) >= 0) ;
+            } else {
+                fos = new FileOutputStream(downloadFile);
+                while ((numBytesRead = bin.read(data, 0, data.length)) >= 0) {
+                    fos.write(data, 0, numBytesRead);
+                }
+            }
+
+            if (totalBytes >= 0 && totalBytes != receivedBytes[0]) {
+                throw new IOException("Received " + receivedBytes[0] + " bytes, expected " + totalBytes);
+            }
+
+            return isZip;
+        } finally {
+            try {
+                if (fos != null) fos.close();
+                if (bin != null) bin.close();
+                if (connection != null) connection.disconnect();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    private void downloadOnce(String packageHash, URL downloadUrl, File downloadFile, File stateFile,
+                              DownloadProgressCallback progressCallback) throws IOException {
+        JSONObject state = readState(stateFile, packageHash, downloadUrl.toString(), downloadFile);
+        long committedBytes = state == null ? 0 : state.optLong(COMMITTED_BYTES_KEY, 0);
+        String validator = state == null ? null : getValidator(state);
+
+        HttpURLConnection connection = null;
+        BufferedInputStream bin = null;
+        FileOutputStream fos = null;
+        try {
+            connection = (HttpURLConnection) (downloadUrl.openConnection());
+            if (committedBytes > 0) {
+                connection.setRequestProperty("Range", "bytes=" + committedBytes + "-");
+                connection.setRequestProperty("If-Range", validator);
+            }
+
+            int responseCode = connection.getResponseCode();
+            long totalBytes;
+            if (committedBytes > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL
+                    && getContentRangeStart(connection) == committedBytes) {
+                totalBytes = getContentRangeTotal(connection, committedBytes + connection.getContentLength());
+                CodePushUtils.log("Resuming download at byte " + committedBytes + " of " + totalBytes + ".");
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // Either this is a fresh download or the server ignored the range (e.g. the resource
+                // changed and If-Range did not match), so the partial file has to be discarded.
+                committedBytes = 0;
+                truncate(downloadFile, 0);
+                totalBytes = connection.getContentLength();
+            } else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                // A range we did not ask for, e.g. from a misbehaving proxy. Its body must not be
+                // written at byte zero, so start over with a plain request on the next attempt.
+                FileUtils.deleteFileOrFolderSilently(stateFile);
+                truncate(downloadFile, 0);
+                throw new IOException("Received an unexpected partial response (" + connection.getHeaderField("Content-Range") +
+                        ") while downloading " + downloadUrl);
+            } else if (responseCode == 416 /* Requested Range Not Satisfiable */) {
+                // The saved state no longer matches the resource, start over on the next attempt.
+                FileUtils.deleteFileOrFolderSilently(stateFile);
+                truncate(downloadFile, 0);
+                throw new IOException("Server rejected resuming the download at byte " + committedBytes);
+            } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                throw new IOException("Received response code " + responseCode + " while downloading " + downloadUrl);
+            } else {
+                throw new CodePushUnknownException("Received unexpected response code " + responseCode +
+                        " while downloading " + downloadUrl);
+            }
+
+            state = createState(packageHash, downloadUrl.toString(), connection, totalBytes);
+            truncate(downloadFile, committedBytes);
+
+            bin = new BufferedInputStream(connection.getInputStream());
+            fos = new FileOutputStream(downloadFile, /* append */ true);
+            byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+            long receivedBytes = committedBytes;
+            long lastSavedBytes = committedBytes;
+            int numBytesRead;
+            try {
+                while ((numBytesRead = bin.read(data, 0, CodePushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
+                    fos.write(data, 0, numBytesRead);
+                    receivedBytes += numBytesRead;
+                    if (receivedBytes - lastSavedBytes >= CodePushConstants.DOWNLOAD_STATE_SAVE_INTERVAL) {
+                        writeState(state, stateFile, receivedBytes);
+                        lastSavedBytes = receivedBytes;
+                    }
+
+                    progressCallback.call(totalBytes, receivedBytes);
+                }
+            } catch (IOException e) {
+                // Remember how far we got, so that the next attempt (or the next call to
+                // downloadUpdate after a process restart) can pick up from here.
+                writeState(state, stateFile, receivedBytes);
+                throw e;
+            }
+
+            if (totalBytes >= 0 && totalBytes != receivedBytes) {
+                writeState(state, stateFile, receivedBytes);
+                throw new IOException("Received " + receivedBytes + " bytes, expected " + totalBytes);
+            }
+        } finally {
+            try {
+                if (fos != null) fos.close();
+                if (bin != null) bin.close();
+                if (connection != null) connection.disconnect();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    long getRetryDelay(int attempt) {
+        // Exponential backoff with "equal jitter": half of the delay is fixed and the other half
+        // random, so that a fleet of devices which lost connectivity at the same time does not
+        // retry in lockstep, while no retry follows right on the heels of the failure.
+        long maxDelay = Math.min(CodePushConstants.DOWNLOAD_RETRY_MAX_DELAY_MILLIS, mBaseRetryDelayMillis << Math.min(attempt - 1, 16));
+        return maxDelay / 2 + (long) (mRandom.nextDouble() * (maxDelay / 2));
+    }
+
+    private static JSONObject createState(String packageHash, String downloadUrl, HttpURLConnection connection, long totalBytes) {
+        JSONObject state = new JSONObject();
+        CodePushUtils.setJSONValueForKey(state, CodePushConstants.PACKAGE_HASH_KEY, packageHash);
+        CodePushUtils.setJSONValueForKey(state, CodePushConstants.DOWNLOAD_URL_KEY, downloadUrl);
+        CodePushUtils.setJSONValueForKey(state, ETAG_KEY, connection.getHeaderField("ETag"));
+        CodePushUtils.setJSONValueForKey(state, LAST_MODIFIED_KEY, connection.getHeaderField("Last-Modified"));
+        CodePushUtils.setJSONValueForKey(state, TOTAL_BYTES_KEY, totalBytes);
+        return state;
+    }
+
+    private static JSONObject readState(File stateFile, String packageHash, String downloadUrl, File downloadFile) {
+        if (!stateFile.exists()) {
+            return null;
+        }
+
+        JSONObject state;
+        try {
+            state = CodePushUtils.getJsonObjectFromFile(stateFile.getAbsolutePath());
+        } catch (IOException | CodePushMalformedDataException e) {
+            CodePushUtils.log("Discarding unreadable download state: " + e.getMessage());
+            return null;
+        }
+
+        long committedBytes = state.optLong(COMMITTED_BYTES_KEY, 0);
+        boolean isSameDownload = packageHash != null
+                && packageHash.equals(state.optString(CodePushConstants.PACKAGE_HASH_KEY, null))
+                && downloadUrl.equals(state.optString(CodePushConstants.DOWNLOAD_URL_KEY, null));
+
+        // The partial file may be longer than the committed byte count (the state is saved
+        // periodically), but never shorter, unless it was not flushed before a crash.
+        if (!isSameDownload || getValidator(state) == null || committedBytes <= 0 || downloadFile.length() < committedBytes) {
+            return null;
+        }
+
+        return state;
+    }
+
+    private static void writeState(JSONObject state, File stateFile, long committedBytes) {
+        CodePushUtils.setJSONValueForKey(state, COMMITTED_BYTES_KEY, committedBytes);
+        try {
+            CodePushUtils.writeJsonToFile(state, stateFile.getAbsolutePath());
+        } catch (IOException e) {
+            // Not being able to save the state only costs us the ability to resume.
+            CodePushUtils.log("Unable to save download state: " + e.getMessage());
+        }
+    }
+
+    // A strong validator is required for If-Range, otherwise the server could append
+    // bytes of a different version of the resource to our partial file.
+    private static String getValidator(JSONObject state) {
+        String etag = state.optString(ETAG_KEY, null);
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+
+        return state.optString(LAST_MODIFIED_KEY, null);
+    }
+
+    static long getContentRangeStart(HttpURLConnection connection) {
+        // Content-Range: bytes <start>-<end>/<total>
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return -1;
+        }
+
+        try {
+            int start = contentRange.indexOf(' ') + 1;
+            return Long.parseLong(contentRange.substring(start, contentRange.indexOf('-', start)).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static long getContentRangeTotal(HttpURLConnection connection, long defaultValue) {
+        String contentRange = connection.getHeaderField("Content-Range");
+        try {
+            String total = contentRange.substring(contentRange.indexOf('/') + 1).trim();
+            return "*".equals(total) ? defaultValue : Long.parseLong(total);
+        } catch (RuntimeException e) {
+            return defaultValue;
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public static boolean isZipFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            if (randomAccessFile.length() < 4) {
+                return false;
+            }
+
+            byte[] header = new byte[4];
+            randomAccessFile.readFully(header);
+            return ByteBuffer.wrap(header).getInt() == 0x504b0304;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.microsoft.codepush.react;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Makes sure that every package is downloaded at most once at a time. sync() can be triggered
+// from several places at once (app resume, a push notification, a button), and two downloads
+// of the same package would write into the same folder. Instead, a request for a package that
+// is already being downloaded joins that download and gets the same result.
+public class CodePushDownloadRegistry {
+
+    public interface Listener {
+        void onComplete(CodePushPackage newPackage);
+        void onError(Exception e);
+    }
+
+    private final Map<String, Download> mDownloads = new HashMap<>();
+    private boolean mIsPreemptionEnabled = false;
+
+    // If enabled, starting the download of a package cancels the downloads of all other
+    // packages, since a newer release makes them pointless.
+    public synchronized void setPreemptionEnabled(boolean isPreemptionEnabled) {
+        mIsPreemptionEnabled = isPreemptionEnabled;
+    }
+
+    public synchronized int size() {
+        return mDownloads.size();
+    }
+
+    // Returns the new download the caller has to run (and finish with complete() or fail()),
+    // or null if listener was added to a download of the same package which is already in flight.
+    public synchronized Download join(String packageHash, boolean notifyProgress, Listener listener) {
+        Download download = mDownloads.get(packageHash);
+        if (download != null && !download.mIsCancelled) {
+            CodePushUtils.log("Joining the download of " + packageHash + " which is already in progress.");
+            download.addListener(notifyProgress, listener);
+            return null;
+        }
+
+        // A preempted download is only still registered until it notices that it was cancelled,
+        // and then fails all of its requests. A new request starts over with a download of its own.
+
+        if (mIsPreemptionEnabled) {
+            for (Download otherDownload : mDownloads.values()) {
+                CodePushUtils.log("Cancelling the download of " + otherDownload.mPackageHash + " in favor of " + packageHash + ".");
+                otherDownload.mIsCancelled = true;
+            }
+        }
+
+        download = new Download(packageHash);
+        download.addListener(notifyProgress, listener);
+        mDownloads.put(packageHash, download);
+        return download;
+    }
+
+    private synchronized List<Listener> remove(Download download) {
+        // A preempted download may already have been replaced by a new one for the same package.
+        if (mDownloads.get(download.mPackageHash) == download) {
+            mDownloads.remove(download.mPackageHash);
+        }
+
+        download.mIsFinished = true;
+        return download.mListeners;
+    }
+
+    public class Download {
+        private final String mPackageHash;
+        private final List<Listener> mListeners = new ArrayList<>();
+        private volatile boolean mIsProgressRequested = false;
+        private volatile boolean mIsCancelled = false;
+        private boolean mIsFinished = false;
+
+        private Download(String packageHash) {
+            mPackageHash = packageHash;
+        }
+
+        // Guarded by the registry.
+        private void addListener(boolean notifyProgress, Listener listener) {
+            mListeners.add(listener);
+            mIsProgressRequested |= notifyProgress;
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        public boolean isProgressRequested() {
+            return mIsProgressRequested;
+        }
+
+        // Wraps the callback that reports the progress of this download. Progress is reported only
+        // once any of the requests asked for it. The returned callback also aborts the transfer
+        // with a CodePushDownloadCancelledException once the download has been preempted.
+        public DownloadProgressCallback wrapProgressCallback(final DownloadProgressCallback progressCallback) {
+            return new DownloadProgressCallback() {
+                @Override
+                public void call(long totalBytes, long receivedBytes) {
+                    throwIfCancelled();
+                    if (mIsProgressRequested) {
+                        progressCallback.call(totalBytes, receivedBytes);
+                    }
+                }
+            };
+        }
+
+        public void throwIfCancelled() {
+            if (mIsCancelled) {
+                throw new CodePushDownloadCancelledException("The download of " + mPackageHash + " was cancelled in favor of a newer package.");
+            }
+        }
+
+        public void complete(CodePushPackage newPackage) {
+            for (Listener listener : finish()) {
+                listener.onComplete(newPackage);
+            }
+        }
+
+        public void fail(Exception e) {
+            for (Listener listener : finish()) {
+                listener.onError(e);
+            }
+        }
+
+        private List<Listener> finish() {
+            synchronized (CodePushDownloadRegistry.this) {
+                if (mIsFinished) {
+                    throw new CodePushUnknownException("The download of " + mPackageHash + " was already finished.");
+                }
+
+                // No listener can be added anymore, so it is safe to notify them outside of the lock.
+                return remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.microsoft.codepush.react;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Cleans up the CodePush folder. Folders that are no longer needed are renamed into a trash
+// folder, which takes the same time no matter how many files they contain, and the trash is
+// emptied later on the maintenance lane. The trash lives next to the CodePush folder, so
+// that clearUpdates() can move the whole CodePush folder into it.
+//
+// sweep() moves everything that the package metadata doesn't refer to into the trash, e.g.
+// the leftovers of a crashed download, and enforceDiskBudget() evicts the oldest files that
+// can be downloaded again once the CodePush folder grows beyond the configured budget.
+public class CodePushGarbageCollector {
+
+    private final String mTrashFolderPath;
+    private final CodePushMetrics mMetrics;
+    private final AtomicBoolean mIsPurgeScheduled = new AtomicBoolean(false);
+    private final AtomicInteger mTrashedFileCount = new AtomicInteger(0);
+    private volatile long mDiskBudget = 0;
+    private volatile Runnable mOnTrashPurged;
+
+    public CodePushGarbageCollector(String trashFolderPath, CodePushMetrics metrics) {
+        mTrashFolderPath = trashFolderPath;
+        mMetrics = metrics;
+    }
+
+    // The number of bytes the CodePush folder may use, or 0 for no limit.
+    public void setDiskBudget(long diskBudget) {
+        mDiskBudget = Math.max(diskBudget, 0);
+    }
+
+    public long getDiskBudget() {
+        return mDiskBudget;
+    }
+
+    // Runs on the maintenance lane after the trash was emptied, e.g. to delete the blobs
+    // that were only linked from the deleted files.
+    public void setOnTrashPurged(Runnable onTrashPurged) {
+        mOnTrashPurged = onTrashPurged;
+    }
+
+    // Moves file (or folder) into the trash and schedules emptying it. Falls back to deleting
+    // it right away if it cannot be moved.
+    public void moveToTrash(File file) {
+        if (!file.exists()) {
+            return;
+        }
+
+        File trashFolder = new File(mTrashFolderPath);
+        trashFolder.mkdirs();
+        // Names only have to be unique within the trash, the timestamp covers earlier processes.
+        File trashedFile = new File(trashFolder, System.currentTimeMillis() + "-" + mTrashedFileCount.incrementAndGet() + "-" + file.getName());
+        if (!file.renameTo(trashedFile)) {
+            CodePushUtils.log("Unable to move " + file.getAbsolutePath() + " to the trash, deleting it instead.");
+            FileUtils.deleteFileOrFolderSilently(file);
+            return;
+        }
+
+        schedulePurge();
+    }
+
+    // Moves every folder inside folderPath whose name is not in namesToKeep into the trash.
+    // Files are left alone, they are written atomically or belong to a resumable download.
+    // Must not run while a download is writing into folderPath. Returns the number of trashed folders.
+    public int sweep(String folderPath, Set<String> namesToKeep) {
+        File[] files = new File(folderPath).listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int trashedCount = 0;
+        for (File file : files) {
+            if (file.isDirectory() && !namesToKeep.contains(file.getName())) {
+                CodePushUtils.log("Removing orphaned folder " + file.getName() + ".");
+                moveToTrash(file);
+                trashedCount++;
+            }
+        }
+
+        return trashedCount;
+    }
+
+    // Moves the oldest of evictionCandidates into the trash until the used bytes are within
+    // the disk budget. Each candidate is a group of files that can only be evicted together.
+    // Returns the number of bytes that were freed.
+    public long enforceDiskBudget(long usedBytes, List<List<File>> evictionCandidates) {
+        long diskBudget = mDiskBudget;
+        if (diskBudget == 0 || usedBytes <= diskBudget) {
+            return 0;
+        }
+
+        List<List<File>> candidates = new ArrayList<>(evictionCandidates);
+        Collections.sort(candidates, new Comparator<List<File>>() {
+            @Override
+            public int compare(List<File> candidate, List<File> otherCandidate) {
+                long lastModified = getLastModified(candidate);
+                long otherLastModified = getLastModified(otherCandidate);
+                return lastModified < otherLastModified ? -1 : (lastModified == otherLastModified ? 0 : 1);
+            }
+        });
+
+        long freedBytes = 0;
+        for (List<File> candidate : candidates) {
+            if (usedBytes - freedBytes <= diskBudget) {
+                break;
+            }
+
+            for (File file : candidate) {
+                freedBytes += getSize(file);
+                moveToTrash(file);
+            }
+        }
+
+        if (usedBytes - freedBytes > diskBudget) {
+            CodePushUtils.log("CodePush uses " + (usedBytes - freedBytes) + " bytes, which exceeds the disk budget of " +
+                    diskBudget + " bytes, but nothing else can be evicted.");
+        }
+
+        return freedBytes;
+    }
+
+    public void schedulePurge() {
+        if (!mIsPurgeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        CodePushTaskScheduler.getInstance().schedule(CodePushTaskScheduler.Lane.MAINTENANCE, CodePushTaskScheduler.Priority.LOW,
+                "purgeTrash", new Runnable() {
+                    @Override
+                    public void run() {
+                        // Anything trashed from now on needs another purge.
+                        mIsPurgeScheduled.set(false);
+                        purgeTrash();
+                    }
+                }, null);
+    }
+
+    // Deletes everything in the trash, and records the reclaimed bytes in the metrics. Files that
+    // are also linked from the blob store are counted too, their blobs are deleted by onTrashPurged.
+    public synchronized void purgeTrash() {
+        long startTime = mMetrics.start();
+        File[] trashedFiles = new File(mTrashFolderPath).listFiles();
+        if (trashedFiles == null || trashedFiles.length == 0) {
+            return;
+        }
+
+        long[] counts = new long[2];
+        for (File trashedFile : trashedFiles) {
+            deleteRecursively(trashedFile, counts);
+        }
+
+        long reclaimedBytes = counts[0];
+        int deletedFileCount = (int) counts[1];
+        CodePushUtils.log("Emptied the trash, reclaimed " + reclaimedBytes + " bytes in " + deletedFileCount + " files.");
+        mMetrics.record(CodePushMetrics.Phase.PURGE_TRASH, startTime, reclaimedBytes, deletedFileCount);
+        Runnable onTrashPurged = mOnTrashPurged;
+        if (onTrashPurged != null) {
+            onTrashPurged.run();
+        }
+    }
+
+    // Adds the bytes and the number of the deleted files to counts[0] and counts[1].
+    private static void deleteRecursively(File file, long[] counts) {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child, counts);
+                }
+            }
+        } else {
+            long length = file.length();
+            if (file.delete()) {
+                counts[0] += length;
+                counts[1]++;
+            }
+
+            return;
+        }
+
+        if (!file.delete()) {
+            CodePushUtils.log("Error deleting file " + file.getName());
+        }
+    }
+
+    // Returns the total size of the files in file (or of file itself).
+    public static long getSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += getSize(child);
+            }
+        }
+
+        return size;
+    }
+
+    private static long getLastModified(List<File> files) {
+        long lastModified = 0;
+        for (File file : files) {
+            lastModified = Math.max(lastModified, file.lastModified());
+        }
+
+        return lastModified;
+    }
+}
@@ -0,0 +1,242 @@
+package com.microsoft.codepush.react;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+
+// Records how long each phase of the update lifecycle takes, together with the number of
+// bytes and files it processed. Every phase keeps a histogram of its durations, and the
+// most recent samples are kept in a fixed-size ring buffer, so memory use does not grow
+// with the number of updates.
+//
+// Recording is disabled by default. Instrumented code calls start() and record(), which
+// return immediately without allocating anything while recording is disabled.
+public class CodePushMetrics {
+
+    public enum Phase {
+        // The whole downloadPackage call, from request to saved metadata.
+        DOWNLOAD_PACKAGE("downloadPackage"),
+        // Fetching the package. For streamed zip updates, this includes extracting it.
+        DOWNLOAD("download"),
+        UNZIP("unzip"),
+        // Keeping a full update as its archive: hashing the entries and extracting the files needed now.
+        STORE_ARCHIVE("storeArchive"),
+        // Copying the binary's contents out of the APK, for a diff update against the binary.
+        BINARY_BASE("binaryBase"),
+        // Applying the binary patches of a diff update.
+        PATCH("patch"),
+        // Assembling the chunked files of a diff update. The bytes are the fetched ones.
+        CHUNK_SYNC("chunkSync"),
+        DIFF_COPY("diffCopy"),
+        MERGE("merge"),
+        FIND_BUNDLE("findBundle"),
+        VERIFY_HASH("verifyHash"),
+        VERIFY_SIGNATURE("verifySignature"),
+        // Adding the files to the blob store and saving the hash index.
+        SAVE_PACKAGE("savePackage"),
+        INSTALL("install"),
+        // Sweeping orphaned folders and enforcing the disk budget. The bytes are the evicted ones.
+        COLLECT_GARBAGE("collectGarbage"),
+        // Emptying the trash. The bytes are the reclaimed ones.
+        PURGE_TRASH("purgeTrash"),
+        // From the restart request until the React context recreation was started.
+        RESTART("restart"),
+        // From the restart request until the new React context was initialized.
+        RELOAD_CONTEXT("reloadContext");
+
+        private final String name;
+        Phase(String name) {
+            this.name = name;
+        }
+        public String getName() {
+            return this.name;
+        }
+    }
+
+    // Called synchronously on the thread that finished the phase, so it should return quickly.
+    public interface Listener {
+        void onPhaseRecorded(Phase phase, long durationNanos, long bytes, int fileCount);
+    }
+
+    // Bucket i counts the durations below 2^i milliseconds, the last bucket everything longer.
+    private static final int HISTOGRAM_BUCKET_COUNT = 18;
+    private static final int RECENT_SAMPLE_COUNT = 64;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+
+    private volatile boolean mIsEnabled = false;
+    private volatile Listener mListener;
+    private volatile String mLastRestartStrategy;
+
+    private final int mPhaseCount = Phase.values().length;
+    private final long[][] mHistograms = new long[mPhaseCount][HISTOGRAM_BUCKET_COUNT];
+    private final long[] mSampleCounts = new long[mPhaseCount];
+    private final long[] mTotalDurationNanos = new long[mPhaseCount];
+    private final long[] mMaxDurationNanos = new long[mPhaseCount];
+    private final long[] mTotalBytes = new long[mPhaseCount];
+    private final long[] mTotalFileCounts = new long[mPhaseCount];
+
+    private final Phase[] mRecentPhases = new Phase[RECENT_SAMPLE_COUNT];
+    private final long[] mRecentTimestamps = new long[RECENT_SAMPLE_COUNT];
+    private final long[] mRecentDurationNanos = new long[RECENT_SAMPLE_COUNT];
+    private final long[] mRecentBytes = new long[RECENT_SAMPLE_COUNT];
+    private final int[] mRecentFileCounts = new int[RECENT_SAMPLE_COUNT];
+    private int mNextRecentIndex = 0;
+    private int mRecentCount = 0;
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    public void setEnabled(boolean isEnabled) {
+        mIsEnabled = isEnabled;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    // Remembers which BundleReloader (or "activityRecreate") performed the last restart.
+    public void setLastRestartStrategy(String restartStrategy) {
+        mLastRestartStrategy = restartStrategy;
+    }
+
+    public String getLastRestartStrategy() {
+        return mLastRestartStrategy;
+    }
+
+    // Returns the start time to pass to record(), or 0 if recording is disabled.
+    public long start() {
+        return mIsEnabled ? System.nanoTime() : 0;
+    }
+
+    public void record(Phase phase, long startTime) {
+        record(phase, startTime, -1, -1);
+    }
+
+    // Pass -1 as bytes or fileCount if they are not known.
+    public void record(Phase phase, long startTime, long bytes, int fileCount) {
+        if (!mIsEnabled || startTime == 0) {
+            return;
+        }
+
+        long durationNanos = System.nanoTime() - startTime;
+        synchronized (this) {
+            int phaseIndex = phase.ordinal();
+            mHistograms[phaseIndex][getBucketIndex(durationNanos)]++;
+            mSampleCounts[phaseIndex]++;
+            mTotalDurationNanos[phaseIndex] += durationNanos;
+            mMaxDurationNanos[phaseIndex] = Math.max(mMaxDurationNanos[phaseIndex], durationNanos);
+            mTotalBytes[phaseIndex] += Math.max(bytes, 0);
+            mTotalFileCounts[phaseIndex] += Math.max(fileCount, 0);
+
+            mRecentPhases[mNextRecentIndex] = phase;
+            mRecentTimestamps[mNextRecentIndex] = System.currentTimeMillis();
+            mRecentDurationNanos[mNextRecentIndex] = durationNanos;
+            mRecentBytes[mNextRecentIndex] = bytes;
+            mRecentFileCounts[mNextRecentIndex] = fileCount;
+            mNextRecentIndex = (mNextRecentIndex + 1) % RECENT_SAMPLE_COUNT;
+            mRecentCount = Math.min(mRecentCount + 1, RECENT_SAMPLE_COUNT);
+        }
+
+        Listener listener = mListener;
+        if (listener != null) {
+            try {
+                listener.onPhaseRecorded(phase, durationNanos, bytes, fileCount);
+            } catch (RuntimeException e) {
+                // A broken listener must not break the update.
+                CodePushUtils.log("Metrics listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < mPhaseCount; i++) {
+            Arrays.fill(mHistograms[i], 0);
+            mSampleCounts[i] = 0;
+            mTotalDurationNanos[i] = 0;
+            mMaxDurationNanos[i] = 0;
+            mTotalBytes[i] = 0;
+            mTotalFileCounts[i] = 0;
+        }
+
+        Arrays.fill(mRecentPhases, null);
+        mNextRecentIndex = 0;
+        mRecentCount = 0;
+    }
+
+    // Returns the upper bound in milliseconds of each histogram bucket, or -1 for the last one.
+    public static long getBucketUpperBoundMillis(int bucketIndex) {
+        return bucketIndex < HISTOGRAM_BUCKET_COUNT - 1 ? 1L << bucketIndex : -1;
+    }
+
+    private static int getBucketIndex(long durationNanos) {
+        long durationMillis = durationNanos / NANOS_PER_MILLI;
+        // The number of bits needed for durationMillis is the smallest i with durationMillis < 2^i.
+        int bucketIndex = 64 - Long.numberOfLeadingZeros(durationMillis);
+        return Math.min(bucketIndex, HISTOGRAM_BUCKET_COUNT - 1);
+    }
+
+    public synchronized WritableMap toWritableMap() {
+        WritableMap metrics = Arguments.createMap();
+        metrics.putBoolean("enabled", mIsEnabled);
+        if (mLastRestartStrategy != null) {
+            metrics.putString("lastRestartStrategy", mLastRestartStrategy);
+        }
+
+        WritableArray bucketUpperBounds = Arguments.createArray();
+        for (int i = 0; i < HISTOGRAM_BUCKET_COUNT; i++) {
+            bucketUpperBounds.pushDouble(getBucketUpperBoundMillis(i));
+        }
+        metrics.putArray("histogramBucketUpperBoundsMs", bucketUpperBounds);
+
+        WritableMap phases = Arguments.createMap();
+        for (Phase phase : Phase.values()) {
+            int phaseIndex = phase.ordinal();
+            if (mSampleCounts[phaseIndex] == 0) {
+                continue;
+            }
+
+            WritableMap phaseMetrics = Arguments.createMap();
+            phaseMetrics.putDouble("count", mSampleCounts[phaseIndex]);
+            phaseMetrics.putDouble("totalDurationMs", toMillis(mTotalDurationNanos[phaseIndex]));
+            phaseMetrics.putDouble("maxDurationMs", toMillis(mMaxDurationNanos[phaseIndex]));
+            phaseMetrics.putDouble("totalBytes", mTotalBytes[phaseIndex]);
+            phaseMetrics.putDouble("totalFiles", mTotalFileCounts[phaseIndex]);
+            phaseMetrics.putDouble("bytesPerSecond", getBytesPerSecond(mTotalBytes[phaseIndex], mTotalDurationNanos[phaseIndex]));
+            WritableArray histogram = Arguments.createArray();
+            for (long bucketCount : mHistograms[phaseIndex]) {
+                histogram.pushDouble(bucketCount);
+            }
+            phaseMetrics.putArray("histogram", histogram);
+            phases.putMap(phase.getName(), phaseMetrics);
+        }
+        metrics.putMap("phases", phases);
+
+        // Oldest sample first.
+        WritableArray recentSamples = Arguments.createArray();
+        for (int i = 0; i < mRecentCount; i++) {
+            int index = (mNextRecentIndex - mRecentCount + i + RECENT_SAMPLE_COUNT) % RECENT_SAMPLE_COUNT;
+            WritableMap sample = Arguments.createMap();
+            sample.putString("phase", mRecentPhases[index].getName());
+            sample.putDouble("timestamp", mRecentTimestamps[index]);
+            sample.putDouble("durationMs", toMillis(mRecentDurationNanos[index]));
+            sample.putDouble("bytes", mRecentBytes[index]);
+            sample.putInt("files", mRecentFileCounts[index]);
+            sample.putDouble("bytesPerSecond", getBytesPerSecond(mRecentBytes[index], mRecentDurationNanos[index]));
+            recentSamples.pushMap(sample);
+        }
+        metrics.putArray("recent", recentSamples);
+
+        return metrics;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) NANOS_PER_MILLI;
+    }
+
+    private static double getBytesPerSecond(long bytes, long durationNanos) {
+        return bytes > 0 && durationNanos > 0 ? bytes * 1e9 / durationNanos : 0;
+    }
+}
@@ -1,7 +1,6 @@
 package com.microsoft.codepush.react;
 
 import android.app.Activity;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.Settings;
@@ -11,21 +10,14 @@ import com.facebook.react.ReactApplication;
 import com.facebook.react.ReactInstanceManager;
 import com.facebook.react.ReactRootView;
 import com.facebook.react.bridge.Arguments;
-import com.facebook.react.bridge.JSBundleLoader;
 import com.facebook.react.bridge.LifecycleEventListener;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
-import com.facebook.react.modules.core.ChoreographerCompat;
-import com.facebook.react.modules.core.DeviceEventManagerModule;
-import com.facebook.react.modules.core.ReactChoreographer;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
@@ -39,11 +31,17 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
     private String mClientUniqueId = null;
     private LifecycleEventListener mLifecycleEventListener = null;
     private int mMinimumBackgroundDuration = 0;
+    private volatile long mDownloadProgressMinimumInterval = 0;
+    private volatile long mDownloadProgressMinimumBytes = 0;
 
     private CodePush mCodePush;
     private SettingsManager mSettingsManager;
     private CodePushTelemetryManager mTelemetryManager;
     private CodePushUpdateManager mUpdateManager;
+    private BundleReloader mDefaultBundleReloader;
+    private CodePushTaskScheduler mTaskScheduler;
+    // Tags the read tasks of this module instance, so that they can be dropped with its React context.
+    private final String mReadTaskTag = "read:" + System.identityHashCode(this);
 
     public CodePushNativeModule(ReactApplicationContext reactContext, CodePush codePush, CodePushUpdateManager codePushUpdateManager, CodePushTelemetryManager codePushTelemetryManager, SettingsManager settingsManager) {
         super(reactContext);
@@ -52,6 +50,8 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
         mSettingsManager = settingsManager;
         mTelemetryManager = codePushTelemetryManager;
         mUpdateManager = codePushUpdateManager;
+        mDefaultBundleReloader = new ReflectionBundleReloader(reactContext);
+        mTaskScheduler = CodePushTaskScheduler.getInstance();
 
         // Initialize module state while we have a reference to the current context.
         mBinaryContentsHash = CodePushUpdateUtils.getHashForBinaryContents(reactContext, mCodePush.isDebugMode());
@@ -79,6 +79,13 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
         return "CodePush";
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        // Nobody is left to receive the results of queued metadata queries. Downloads and
+        // installs are kept, since they change the state the next context starts from.
+        mTaskScheduler.cancel(mReadTaskTag);
+    }
+
     private void loadBundleLegacy() {
         final Activity currentActivity = getCurrentActivity();
         if (currentActivity == null) {
@@ -87,6 +94,7 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
             return;
         }
         mCodePush.invalidateCurrentInstance();
+        mUpdateManager.getMetrics().setLastRestartStrategy("activityRecreate");
 
         currentActivity.runOnUiThread(new Runnable() {
             @Override
@@ -96,27 +104,9 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
         });
     }
 
-    // Use reflection to find and set the appropriate fields on ReactInstanceManager. See #556 for a proposal for a less brittle way
-    // to approach this.
-    private void setJSBundle(ReactInstanceManager instanceManager, String latestJSBundleFile) throws IllegalAccessException {
-        try {
-            JSBundleLoader latestJSBundleLoader;
-            if (latestJSBundleFile.toLowerCase().startsWith("assets://")) {
-                latestJSBundleLoader = JSBundleLoader.createAssetLoader(getReactApplicationContext(), latestJSBundleFile, false);
-            } else {
-                latestJSBundleLoader = JSBundleLoader.createFileLoader(latestJSBundleFile);
-            }
-
-            Field bundleLoaderField = instanceManager.getClass().getDeclaredField("mBundleLoader");
-            bundleLoaderField.setAccessible(true);
-            bundleLoaderField.set(instanceManager, latestJSBundleLoader);
-        } catch (Exception e) {
-            CodePushUtils.log("Unable to set JSBundle - CodePush may not support this version of React Native");
-            throw new IllegalAccessException("Could not setJSBundle");
-        }
-    }
-
     private void loadBundle() {
+        final CodePushMetrics metrics = mUpdateManager.getMetrics();
+        final long restartStartTime = metrics.start();
         clearLifecycleEventListener();
         mCodePush.clearDebugCacheIfNeeded();
         try {
@@ -127,28 +117,49 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
                 return;
             }
 
-            String latestJSBundleFile = mCodePush.getJSBundleFileInternal(mCodePush.getAssetsBundleFileName());
-
-            // #2) Update the locally stored JS bundle file path
-            setJSBundle(instanceManager, latestJSBundleFile);
+            final String latestJSBundleFile = mCodePush.getJSBundleFileInternal(mCodePush.getAssetsBundleFileName());
 
-            // #3) Get the context creation method and fire it on the UI thread (which RN enforces)
+            // #2) Point the instance manager to the new bundle and fire the context creation on the
+            //     UI thread (which RN enforces), trying the registered reloader before the default one.
             new Handler(Looper.getMainLooper()).post(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        // We don't need to resetReactRootViews anymore 
-                        // due the issue https://github.com/facebook/react-native/issues/14533
-                        // has been fixed in RN 0.46.0
-                        //resetReactRootViews(instanceManager);
-
-                        instanceManager.recreateReactContextInBackground();
-                        mCodePush.initializeUpdateAfterRestart();
-                    } catch (Exception e) {
-                        // The recreation method threw an unknown exception
-                        // so just simply fallback to restarting the Activity (if it exists)
-                        loadBundleLegacy();
+                    // We don't need to resetReactRootViews anymore 
+                    // due the issue https://github.com/facebook/react-native/issues/14533
+                    // has been fixed in RN 0.46.0
+                    //resetReactRootViews(instanceManager);
+
+                    BundleReloader[] bundleReloaders = { CodePush.getBundleReloader(), mDefaultBundleReloader };
+                    for (final BundleReloader bundleReloader : bundleReloaders) {
+                        if (bundleReloader == null) {
+                            continue;
+                        }
+
+                        ReactInstanceManager.ReactInstanceEventListener reloadListener = null;
+                        if (metrics.isEnabled()) {
+                            reloadListener = createReloadListener(instanceManager, bundleReloader.getName(), restartStartTime);
+                            instanceManager.addReactInstanceEventListener(reloadListener);
+                        }
+
+                        try {
+                            if (bundleReloader.reload(instanceManager, latestJSBundleFile)) {
+                                metrics.setLastRestartStrategy(bundleReloader.getName());
+                                mCodePush.initializeUpdateAfterRestart();
+                                metrics.record(CodePushMetrics.Phase.RESTART, restartStartTime);
+                                return;
+                            }
+                        } catch (Exception e) {
+                            CodePushUtils.log("Unable to reload the bundle with the " + bundleReloader.getName() +
+                                    " strategy: " + e.getMessage());
+                        }
+
+                        if (reloadListener != null) {
+                            instanceManager.removeReactInstanceEventListener(reloadListener);
+                        }
                     }
+
+                    // No strategy worked, so just simply fallback to restarting the Activity (if it exists)
+                    loadBundleLegacy();
                 }
             });
 
@@ -159,6 +170,21 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
         }
     }
 
+    // Records how long it took until the new React context was up, and logs it together with the strategy.
+    private ReactInstanceManager.ReactInstanceEventListener createReloadListener(final ReactInstanceManager instanceManager,
+                                                                                 final String strategyName, final long restartStartTime) {
+        return new ReactInstanceManager.ReactInstanceEventListener() {
+            @Override
+            public void onReactContextInitialized(ReactContext context) {
+                instanceManager.removeReactInstanceEventListener(this);
+                CodePushMetrics metrics = mUpdateManager.getMetrics();
+                metrics.record(CodePushMetrics.Phase.RELOAD_CONTEXT, restartStartTime);
+                CodePushUtils.log("Reloaded the React context with the " + strategyName + " strategy in " +
+                        (System.nanoTime() - restartStartTime) / 1000000 + " ms.");
+            }
+        };
+    }
+
     // This workaround has been implemented in order to fix https://github.com/facebook/react-native/issues/14533
     // resetReactRootViews allows to call recreateReactContextInBackground without any exceptions
     // This fix also relates to https://github.com/Microsoft/react-native-code-push/issues/878
@@ -199,76 +225,87 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
         return instanceManager;
     }
 
+    // Rejects the promise of a scheduled task that was cancelled before it could run, or that failed.
+    private CodePushTaskScheduler.FailureCallback rejectOnFailure(final Promise promise, final String methodName) {
+        return new CodePushTaskScheduler.FailureCallback() {
+            @Override
+            public void onCancelled() {
+                promise.reject("CodePushCancelled", methodName + " was cancelled.");
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                promise.reject(e);
+            }
+        };
+    }
+
+    @ReactMethod
+    public void discardStatusReport(ReadableMap statusReport) {
+        mTelemetryManager.discardStatusReport(statusReport);
+    }
+
     @ReactMethod
     public void downloadUpdate(final ReadableMap updatePackage, final boolean notifyProgress, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        final String packageHash = CodePushUtils.tryGetString(updatePackage, CodePushConstants.PACKAGE_HASH_KEY);
+        final CodePushDownloadRegistry.Download download = mUpdateManager.getDownloadRegistry().join(packageHash, notifyProgress, new CodePushDownloadRegistry.Listener() {
             @Override
-            protected Void doInBackground(Void... params) {
-                try {
-                    JSONObject mutableUpdatePackage = CodePushUtils.convertReadableToJsonObject(updatePackage);
-                    CodePushUtils.setJSONValueForKey(mutableUpdatePackage, CodePushConstants.BINARY_MODIFIED_TIME_KEY, "" + mCodePush.getBinaryResourcesModifiedTime());
-                    mUpdateManager.downloadPackage(mutableUpdatePackage, mCodePush.getAssetsBundleFileName(), new DownloadProgressCallback() {
-                        private boolean hasScheduledNextFrame = false;
-                        private DownloadProgress latestDownloadProgress = null;
-
-                        @Override
-                        public void call(DownloadProgress downloadProgress) {
-                            if (!notifyProgress) {
-                                return;
-                            }
-
-                            latestDownloadProgress = downloadProgress;
-                            // If the download is completed, synchronously send the last event.
-                            if (latestDownloadProgress.isCompleted()) {
-                                dispatchDownloadProgressEvent();
-                                return;
-                            }
+            public void onComplete(CodePushPackage newPackage) {
+                promise.resolve(newPackage.toWritableMap());
+            }
 
-                            if (hasScheduledNextFrame) {
-                                return;
-                            }
+            @Override
+            public void onError(Exception e) {
+                promise.reject(e);
+            }
+        });
 
-                            hasScheduledNextFrame = true;
-                            getReactApplicationContext().runOnUiQueueThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, new ChoreographerCompat.FrameCallback() {
-                                        @Override
-                                        public void doFrame(long frameTimeNanos) {
-                                            if (!latestDownloadProgress.isCompleted()) {
-                                                dispatchDownloadProgressEvent();
-                                            }
-
-                                            hasScheduledNextFrame = false;
-                                        }
-                                    });
-                                }
-                            });
-                        }
+        if (download == null) {
+            // This package is already being downloaded, and the promise is settled once that is done.
+            return;
+        }
 
-                        public void dispatchDownloadProgressEvent() {
-                            getReactApplicationContext()
-                                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-                                    .emit(CodePushConstants.DOWNLOAD_PROGRESS_EVENT_NAME, latestDownloadProgress.createWritableMap());
-                        }
-                    }, mCodePush.getPublicKey());
+        mTaskScheduler.schedule(CodePushTaskScheduler.Lane.MUTATION, CodePushTaskScheduler.Priority.NORMAL, "downloadUpdate:" + packageHash, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download.throwIfCancelled();
+                    CodePushProgressPublisher progressPublisher = new CodePushProgressPublisher(getReactApplicationContext(),
+                            mDownloadProgressMinimumInterval, mDownloadProgressMinimumBytes);
+                    CodePushPackage newPackage = CodePushPackage.fromReadableMap(updatePackage)
+                            .with(CodePushConstants.BINARY_MODIFIED_TIME_KEY, "" + mCodePush.getBinaryResourcesModifiedTime());
+                    newPackage = mUpdateManager.downloadPackage(newPackage, mCodePush.getAssetsBundleFileName(), download.wrapProgressCallback(progressPublisher), mCodePush.getPublicKey());
+                    if (download.isProgressRequested()) {
+                        progressPublisher.finish();
+                    }
 
-                    JSONObject newPackage = mUpdateManager.getPackage(CodePushUtils.tryGetString(updatePackage, CodePushConstants.PACKAGE_HASH_KEY));
-                    promise.resolve(CodePushUtils.convertJsonObjectToWritable(newPackage));
+                    download.complete(newPackage);
+                    // Keeps the CodePush folder within its disk budget now that it holds one more package.
+                    mCodePush.scheduleGarbageCollection();
                 } catch (IOException e) {
                     e.printStackTrace();
-                    promise.reject(e);
+                    download.fail(e);
                 } catch (CodePushInvalidUpdateException e) {
                     e.printStackTrace();
-                    mSettingsManager.saveFailedUpdate(CodePushUtils.convertReadableToJsonObject(updatePackage));
-                    promise.reject(e);
+                    mSettingsManager.saveFailedUpdate(CodePushPackage.fromReadableMap(updatePackage));
+                    download.fail(e);
+                } catch (CodePushDownloadCancelledException e) {
+                    CodePushUtils.log(e.getMessage());
+                    download.fail(e);
                 }
-
-                return null;
             }
-        };
+        }, new CodePushTaskScheduler.FailureCallback() {
+            @Override
+            public void onCancelled() {
+                download.fail(new CodePushDownloadCancelledException("The download of " + packageHash + " was cancelled."));
+            }
 
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            @Override
+            public void onFailed(Exception e) {
+                // Don't leave the requests which joined this download waiting forever.
+                download.fail(e);
+            }
+        });
     }
 
     @ReactMethod
@@ -282,6 +319,8 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
         // The binary hash may be null in debug builds
         if (mBinaryContentsHash != null) {
             configMap.putString(CodePushConstants.PACKAGE_HASH_KEY, mBinaryContentsHash);
+            // Lets the update check ask for diffs against the binary while there is no update yet.
+            configMap.putBoolean("canApplyDiffToBinary", mUpdateManager.canApplyDiffToBinary());
         }
 
         promise.resolve(configMap);
@@ -289,21 +328,20 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void getUpdateMetadata(final int updateState, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mTaskScheduler.schedule(CodePushTaskScheduler.Lane.READ, CodePushTaskScheduler.Priority.HIGH, mReadTaskTag, new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
-                JSONObject currentPackage = mUpdateManager.getCurrentPackage();
+            public void run() {
+                CodePushPackage currentPackage = mUpdateManager.getCurrentPackage();
 
                 if (currentPackage == null) {
                     promise.resolve(null);
-                    return null;
+                    return;
                 }
 
                 Boolean currentUpdateIsPending = false;
 
                 if (currentPackage.has(CodePushConstants.PACKAGE_HASH_KEY)) {
-                    String currentHash = currentPackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
-                    currentUpdateIsPending = mSettingsManager.isPendingUpdate(currentHash);
+                    currentUpdateIsPending = mSettingsManager.isPendingUpdate(currentPackage.getPackageHash());
                 }
 
                 if (updateState == CodePushUpdateState.PENDING.getValue() && !currentUpdateIsPending) {
@@ -313,96 +351,92 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
                 } else if (updateState == CodePushUpdateState.RUNNING.getValue() && currentUpdateIsPending) {
                     // The caller wants the running update, but the current
                     // one is pending, so we need to grab the previous.
-                    JSONObject previousPackage = mUpdateManager.getPreviousPackage();
+                    CodePushPackage previousPackage = mUpdateManager.getPreviousPackage();
 
                     if (previousPackage == null) {
                         promise.resolve(null);
-                        return null;
+                        return;
                     }
 
-                    promise.resolve(CodePushUtils.convertJsonObjectToWritable(previousPackage));
+                    promise.resolve(previousPackage.toWritableMap());
                 } else {
                     // The current package satisfies the request:
                     // 1) Caller wanted a pending, and there is a pending update
                     // 2) Caller wanted the running update, and there isn't a pending
                     // 3) Caller wants the latest update, regardless if it's pending or not
+                    // The cached package is shared, so the flags are only added to the map sent to JS.
+                    WritableMap currentPackageMap = currentPackage.toWritableMap();
                     if (mCodePush.isRunningBinaryVersion()) {
                         // This only matters in Debug builds. Since we do not clear "outdated" updates,
                         // we need to indicate to the JS side that somehow we have a current update on
                         // disk that is not actually running.
-                        CodePushUtils.setJSONValueForKey(currentPackage, "_isDebugOnly", true);
+                        currentPackageMap.putBoolean("_isDebugOnly", true);
                     }
 
                     // Enable differentiating pending vs. non-pending updates
-                    CodePushUtils.setJSONValueForKey(currentPackage, "isPending", currentUpdateIsPending);
-                    promise.resolve(CodePushUtils.convertJsonObjectToWritable(currentPackage));
+                    currentPackageMap.putBoolean("isPending", currentUpdateIsPending);
+                    promise.resolve(currentPackageMap);
                 }
-
-                return null;
             }
-        };
+        }, rejectOnFailure(promise, "getUpdateMetadata"));
+    }
 
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    // Returns the recorded update lifecycle metrics, see CodePushMetrics.
+    @ReactMethod
+    public void getMetrics(Promise promise) {
+        promise.resolve(mUpdateManager.getMetrics().toWritableMap());
     }
 
     @ReactMethod
     public void getNewStatusReport(final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mTaskScheduler.schedule(CodePushTaskScheduler.Lane.READ, CodePushTaskScheduler.Priority.LOW, mReadTaskTag, new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
+                // New reports are queued behind the ones that could not be delivered yet.
                 if (mCodePush.needToReportRollback()) {
                     mCodePush.setNeedToReportRollback(false);
-                    JSONArray failedUpdates = mSettingsManager.getFailedUpdates();
-                    if (failedUpdates != null && failedUpdates.length() > 0) {
-                        try {
-                            JSONObject lastFailedPackageJSON = failedUpdates.getJSONObject(failedUpdates.length() - 1);
-                            WritableMap lastFailedPackage = CodePushUtils.convertJsonObjectToWritable(lastFailedPackageJSON);
-                            WritableMap failedStatusReport = mTelemetryManager.getRollbackReport(lastFailedPackage);
-                            if (failedStatusReport != null) {
-                                promise.resolve(failedStatusReport);
-                                return null;
-                            }
-                        } catch (JSONException e) {
-                            throw new CodePushUnknownException("Unable to read failed updates information stored in SharedPreferences.", e);
-                        }
+                    List<CodePushPackage> failedUpdates = mSettingsManager.getFailedUpdates();
+                    if (!failedUpdates.isEmpty()) {
+                        mTelemetryManager.getRollbackReport(failedUpdates.get(failedUpdates.size() - 1));
                     }
                 } else if (mCodePush.didUpdate()) {
-                    JSONObject currentPackage = mUpdateManager.getCurrentPackage();
+                    CodePushPackage currentPackage = mUpdateManager.getCurrentPackage();
                     if (currentPackage != null) {
-                        WritableMap newPackageStatusReport = mTelemetryManager.getUpdateReport(CodePushUtils.convertJsonObjectToWritable(currentPackage));
-                        if (newPackageStatusReport != null) {
-                            promise.resolve(newPackageStatusReport);
-                            return null;
-                        }
+                        mTelemetryManager.getUpdateReport(currentPackage);
                     }
                 } else if (mCodePush.isRunningBinaryVersion()) {
-                    WritableMap newAppVersionStatusReport = mTelemetryManager.getBinaryUpdateReport(mCodePush.getAppVersion());
-                    if (newAppVersionStatusReport != null) {
-                        promise.resolve(newAppVersionStatusReport);
-                        return null;
-                    }
-                } else {
-                    WritableMap retryStatusReport = mTelemetryManager.getRetryStatusReport();
-                    if (retryStatusReport != null) {
-                        promise.resolve(retryStatusReport);
-                        return null;
-                    }
+                    mTelemetryManager.getBinaryUpdateReport(mCodePush.getAppVersion());
+                }
+
+                WritableMap statusReport = mTelemetryManager.getRetryStatusReport();
+                if (statusReport != null) {
+                    promise.resolve(statusReport);
+                    return;
                 }
 
                 promise.resolve("");
-                return null;
             }
-        };
+        }, rejectOnFailure(promise, "getNewStatusReport"));
+    }
+
+    // Returns the next batch of queued status reports, so that JS can deliver all of them
+    // in one go after a report went through.
+    @ReactMethod
+    public void getStatusReportBatch(Promise promise) {
+        promise.resolve(mTelemetryManager.getStatusReportBatch(CodePushConstants.STATUS_REPORT_BATCH_SIZE));
+    }
 
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    @ReactMethod
+    public void hasQueuedStatusReports(Promise promise) {
+        promise.resolve(mTelemetryManager.hasQueuedStatusReports());
     }
 
     @ReactMethod
     public void installUpdate(final ReadableMap updatePackage, final int installMode, final int minimumBackgroundDuration, final Promise promise) {
-        AsyncTask<Void, Void, Void> asyncTask = new AsyncTask<Void, Void, Void>() {
+        mTaskScheduler.schedule(CodePushTaskScheduler.Lane.MUTATION, CodePushTaskScheduler.Priority.HIGH, "installUpdate:" + CodePushUtils.tryGetString(updatePackage, CodePushConstants.PACKAGE_HASH_KEY), new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
-                mUpdateManager.installPackage(CodePushUtils.convertReadableToJsonObject(updatePackage), mSettingsManager.isPendingUpdate(null));
+            public void run() {
+                mUpdateManager.installPackage(CodePushPackage.fromReadableMap(updatePackage), mSettingsManager.isPendingUpdate(null));
 
                 String pendingHash = CodePushUtils.tryGetString(updatePackage, CodePushConstants.PACKAGE_HASH_KEY);
                 if (pendingHash == null) {
@@ -472,12 +506,8 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
                 }
 
                 promise.resolve("");
-
-                return null;
             }
-        };
-
-        asyncTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }, rejectOnFailure(promise, "installUpdate"));
     }
 
     @ReactMethod
@@ -518,6 +548,14 @@ public class CodePushNativeModule extends ReactContextBaseJavaModule {
         promise.resolve(false);
     }
 
+    // Sets how often "CodePushDownloadProgress" events are sent during the following downloads, see
+    // CodePushProgressPublisher. Both options default to 0, which sends at most one event per frame.
+    @ReactMethod
+    public void setDownloadProgressOptions(ReadableMap options) {
+        mDownloadProgressMinimumInterval = options.hasKey("minimumInterval") ? (long) options.getDouble("minimumInterval") : 0;
+        mDownloadProgressMinimumBytes = options.hasKey("minimumBytes") ? (long) options.getDouble("minimumBytes") : 0;
+    }
+
     @ReactMethod
     public void saveStatusReportForRetry(ReadableMap statusReport) {
         mTelemetryManager.saveStatusReportForRetry(statusReport);
@@ -0,0 +1,283 @@
+package com.microsoft.codepush.react;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The metadata of an update package, as received from JS and saved in its app.json. Instances
+// are immutable, so they can be cached and shared between threads without copying. Fields
+// which CodePush doesn't know about are kept as they are, so that app.json files written by
+// other versions round-trip unchanged.
+public final class CodePushPackage {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Values are Strings, Booleans, Numbers, null, or (rarely) nested JSONObjects and JSONArrays,
+    // which are never handed out without copying them first.
+    private final Map<String, Object> mFields;
+    private final String mPackageHash;
+
+    // The bridge consumes every map that is passed to it, so a fresh map has to be created for
+    // every call. This template is never sent itself, copies are made with one native merge().
+    private WritableMap mWritableMapTemplate;
+
+    private CodePushPackage(Map<String, Object> fields) {
+        mFields = Collections.unmodifiableMap(fields);
+        Object packageHash = fields.get(CodePushConstants.PACKAGE_HASH_KEY);
+        mPackageHash = packageHash instanceof String ? (String) packageHash : null;
+    }
+
+    public static CodePushPackage fromJson(JSONObject json) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.opt(key);
+            if (value == JSONObject.NULL) {
+                value = null;
+            } else if (value instanceof JSONObject || value instanceof JSONArray) {
+                value = copyJsonValue(value);
+            }
+
+            fields.put(key, value);
+        }
+
+        return new CodePushPackage(fields);
+    }
+
+    public static CodePushPackage fromJsonString(String jsonString) throws JSONException {
+        return fromJson(new JSONObject(jsonString));
+    }
+
+    // Same conversion as CodePushUtils.convertReadableToJsonObject(), without the intermediate JSONObject.
+    public static CodePushPackage fromReadableMap(ReadableMap map) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        ReadableMapKeySetIterator it = map.keySetIterator();
+        while (it.hasNextKey()) {
+            String key = it.nextKey();
+            switch (map.getType(key)) {
+                case Map:
+                    fields.put(key, CodePushUtils.convertReadableToJsonObject(map.getMap(key)));
+                    break;
+                case Array:
+                    fields.put(key, CodePushUtils.convertReadableToJsonArray(map.getArray(key)));
+                    break;
+                case String:
+                    fields.put(key, map.getString(key));
+                    break;
+                case Number:
+                    fields.put(key, map.getDouble(key));
+                    break;
+                case Boolean:
+                    fields.put(key, map.getBoolean(key));
+                    break;
+                case Null:
+                    // JSONObject.put(key, null) drops the key as well.
+                    break;
+            }
+        }
+
+        return new CodePushPackage(fields);
+    }
+
+    public String getPackageHash() {
+        return mPackageHash;
+    }
+
+    public String getAppVersion() {
+        return getString(CodePushConstants.APP_VERSION_KEY);
+    }
+
+    public String getDeploymentKey() {
+        return getString(CodePushConstants.DEPLOYMENT_KEY_KEY);
+    }
+
+    public String getLabel() {
+        return getString(CodePushConstants.LABEL_KEY);
+    }
+
+    public String getDownloadUrl() {
+        return getString(CodePushConstants.DOWNLOAD_URL_KEY);
+    }
+
+    public String getRelativeBundlePath() {
+        return getString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY);
+    }
+
+    // Saved as a string, see CodePushNativeModule.downloadUpdate().
+    public String getBinaryModifiedTime() {
+        return getString(CodePushConstants.BINARY_MODIFIED_TIME_KEY);
+    }
+
+    // Returns -1 if the size is unknown.
+    public long getPackageSize() {
+        Object packageSize = mFields.get(CodePushConstants.PACKAGE_SIZE_KEY);
+        return packageSize instanceof Number ? ((Number) packageSize).longValue() : -1;
+    }
+
+    // Like JSONObject.optString(key, null), other values are converted to a String.
+    public String getString(String key) {
+        Object value = mFields.get(key);
+        return value != null ? value.toString() : null;
+    }
+
+    public boolean has(String key) {
+        return mFields.containsKey(key);
+    }
+
+    // Returns a copy with key set to value, which must be a String, Boolean, Number or null.
+    public CodePushPackage with(String key, Object value) {
+        Map<String, Object> fields = new LinkedHashMap<>(mFields);
+        fields.put(key, value);
+        return new CodePushPackage(fields);
+    }
+
+    public JSONObject toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            for (Map.Entry<String, Object> field : mFields.entrySet()) {
+                Object value = field.getValue();
+                json.put(field.getKey(), value == null ? JSONObject.NULL : copyJsonValue(value));
+            }
+
+            return json;
+        } catch (JSONException e) {
+            // Should not happen, the values came from JSON.
+            throw new CodePushUnknownException("Unable to convert package metadata to JSON.", e);
+        }
+    }
+
+    // Writes the same JSON as toJson().toString(), without building the JSONObject first.
+    public String toJsonString() {
+        StringBuilder builder = new StringBuilder(64 + mFields.size() * 48);
+        builder.append('{');
+        boolean isFirst = true;
+        for (Map.Entry<String, Object> field : mFields.entrySet()) {
+            if (!isFirst) {
+                builder.append(',');
+            }
+
+            isFirst = false;
+            appendQuoted(builder, field.getKey());
+            builder.append(':');
+            Object value = field.getValue();
+            if (value == null) {
+                builder.append("null");
+            } else if (value instanceof String) {
+                appendQuoted(builder, (String) value);
+            } else if (value instanceof Number) {
+                try {
+                    builder.append(JSONObject.numberToString((Number) value));
+                } catch (JSONException e) {
+                    // NaN and infinities cannot come from JSON.
+                    throw new CodePushUnknownException("Unable to convert package metadata to JSON.", e);
+                }
+            } else {
+                // Booleans, and nested objects and arrays.
+                builder.append(value.toString());
+            }
+        }
+
+        return builder.append('}').toString();
+    }
+
+    // Returns a new map on every call, since the caller passes it to the bridge.
+    public WritableMap toWritableMap() {
+        WritableMap map = Arguments.createMap();
+        map.merge(getWritableMapTemplate());
+        return map;
+    }
+
+    private synchronized WritableMap getWritableMapTemplate() {
+        if (mWritableMapTemplate == null) {
+            WritableMap template = Arguments.createMap();
+            for (Map.Entry<String, Object> field : mFields.entrySet()) {
+                String key = field.getKey();
+                Object value = field.getValue();
+                if (value == null) {
+                    template.putNull(key);
+                } else if (value instanceof String) {
+                    template.putString(key, (String) value);
+                } else if (value instanceof Boolean) {
+                    template.putBoolean(key, (Boolean) value);
+                } else if (value instanceof Integer) {
+                    template.putInt(key, (Integer) value);
+                } else if (value instanceof Number) {
+                    template.putDouble(key, ((Number) value).doubleValue());
+                } else if (value instanceof JSONObject) {
+                    template.putMap(key, CodePushUtils.convertJsonObjectToWritable((JSONObject) value));
+                } else {
+                    template.putArray(key, CodePushUtils.convertJsonArrayToWritable((JSONArray) value));
+                }
+            }
+
+            mWritableMapTemplate = template;
+        }
+
+        return mWritableMapTemplate;
+    }
+
+    // Escapes like org.json's JSONStringer, so that the output is identical to JSONObject.toString().
+    // JSONObject.quote() would allocate a JSONStringer for every string.
+    private static void appendQuoted(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append('\\').append(c);
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        builder.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+
+        builder.append('"');
+    }
+
+    private static Object copyJsonValue(Object value) {
+        try {
+            if (value instanceof JSONObject) {
+                return new JSONObject(value.toString());
+            } else if (value instanceof JSONArray) {
+                return new JSONArray(value.toString());
+            }
+        } catch (JSONException e) {
+            // Should not happen, the value was serialized by org.json itself.
+            throw new CodePushUnknownException("Unable to copy package metadata.", e);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,261 @@
+package com.microsoft.codepush.react;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Packages that are kept as the downloaded archive, see CodePushBuilder.setZipPackageStorageEnabled().
+// React Native can only load the JS bundle and images from real files, but of every image it only
+// loads one density: the smallest scale that is at least the screen density, or else the largest
+// one (see pickScale() in React Native's AssetSourceResolver). So only the files outside of
+// density folders and the picked images are extracted into the package folder. The rest of the
+// archive is extracted when the screen density changes, or when the package becomes the base of
+// a diff update, which needs all of its files.
+public class CodePushPackageArchive {
+
+    private static final String DRAWABLE_FOLDER_PREFIX = "drawable-";
+    private static final String[] DENSITY_NAMES = { "ldpi", "mdpi", "hdpi", "xhdpi", "xxhdpi", "xxxhdpi" };
+    private static final float[] DENSITY_SCALES = { 0.75f, 1f, 1.5f, 2f, 3f, 4f };
+
+    // Moves archiveFile into the package folder, extracts the files needed at displayDensity and
+    // adds their hashes to manifest. With isHashingAllFiles, e.g. because the package's hash has
+    // to be verified, the files that are not extracted are hashed by reading them from the archive.
+    // Otherwise their hashes are only computed once they are extracted for a diff update.
+    public static void storeArchive(File archiveFile, String packageFolderPath, float displayDensity, final CodePushUpdateManifest manifest,
+                                    boolean isHashingAllFiles, int threadCount) throws IOException {
+        final File packageFolder = new File(packageFolderPath);
+        if (packageFolder.exists()) {
+            FileUtils.deleteFileOrFolderSilently(packageFolder);
+        }
+
+        packageFolder.mkdirs();
+        File storedArchiveFile = getArchiveFile(packageFolderPath);
+        if (!archiveFile.renameTo(storedArchiveFile)) {
+            throw new IOException("Unable to move " + archiveFile.getAbsolutePath() + " to " + storedArchiveFile.getAbsolutePath() + ".");
+        }
+
+        final ZipFile archive = new ZipFile(storedArchiveFile);
+        try {
+            final Map<String, ZipEntry> neededEntries = getNeededEntries(archive, displayDensity);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final boolean isNeeded = neededEntries.containsKey(entry.getName());
+                if (entry.isDirectory() || (!isNeeded && !isHashingAllFiles)) {
+                    continue;
+                }
+
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+                        extractEntry(archive, entry, isNeeded ? new File(packageFolder, entry.getName()) : null, messageDigest);
+                        manifest.addFileHash(entry.getName(), CodePushUpdateUtils.getHashString(messageDigest));
+                        return null;
+                    }
+                });
+            }
+
+            FileUtils.runTasks(tasks, threadCount);
+        } finally {
+            archive.close();
+        }
+
+        FileUtils.writeStringToFile("", getDensityMarkerFilePath(packageFolderPath, displayDensity));
+    }
+
+    public static boolean hasEntry(File archiveFile, String entryName) throws IOException {
+        ZipFile archive = new ZipFile(archiveFile);
+        try {
+            return archive.getEntry(entryName) != null;
+        } finally {
+            archive.close();
+        }
+    }
+
+    public static boolean isArchived(String packageFolderPath) {
+        return getArchiveFile(packageFolderPath).exists();
+    }
+
+    // Finds the JS bundle through the archive's central directory. If there are several files
+    // named expectedFileName, the one closest to the root wins.
+    public static String findJSBundle(String packageFolderPath, String expectedFileName) throws IOException {
+        ZipFile archive = new ZipFile(getArchiveFile(packageFolderPath));
+        try {
+            String bundlePath = null;
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !(name.equals(expectedFileName) || name.endsWith("/" + expectedFileName))) {
+                    continue;
+                }
+
+                if (bundlePath == null || getDepth(name) < getDepth(bundlePath)) {
+                    bundlePath = name;
+                }
+            }
+
+            return bundlePath;
+        } finally {
+            archive.close();
+        }
+    }
+
+    // Extracts the files that are needed at displayDensity and are missing. This runs before the
+    // package is loaded, so once they were extracted, it only checks for the marker file.
+    public static synchronized void extractFilesForDensity(String packageFolderPath, float displayDensity) throws IOException {
+        File archiveFile = getArchiveFile(packageFolderPath);
+        String markerFilePath = getDensityMarkerFilePath(packageFolderPath, displayDensity);
+        if (!archiveFile.exists() || FileUtils.fileAtPathExists(markerFilePath)) {
+            return;
+        }
+
+        CodePushUtils.log("Extracting the files of " + packageFolderPath + " for a display density of " + displayDensity + ".");
+        ZipFile archive = new ZipFile(archiveFile);
+        try {
+            for (ZipEntry entry : getNeededEntries(archive, displayDensity).values()) {
+                File file = new File(packageFolderPath, entry.getName());
+                // An interrupted extraction leaves a truncated file behind.
+                if (!file.exists() || file.length() != entry.getSize()) {
+                    extractEntry(archive, entry, file, null);
+                }
+            }
+        } finally {
+            archive.close();
+        }
+
+        FileUtils.writeStringToFile("", markerFilePath);
+    }
+
+    // Extracts the rest of the archive and deletes it, which turns the package into a regular one.
+    // The hash index is saved again, since it has no file stats for the files that were missing.
+    public static synchronized void extractAllFiles(String packageFolderPath) throws IOException {
+        File archiveFile = getArchiveFile(packageFolderPath);
+        if (!archiveFile.exists()) {
+            return;
+        }
+
+        ZipFile archive = new ZipFile(archiveFile);
+        try {
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File file = new File(packageFolderPath, entry.getName());
+                if (!entry.isDirectory() && (!file.exists() || file.length() != entry.getSize())) {
+                    extractEntry(archive, entry, file, null);
+                }
+            }
+        } finally {
+            archive.close();
+        }
+
+        String indexFilePath = CodePushUtils.appendPathComponent(packageFolderPath, CodePushConstants.PACKAGE_MANIFEST_FILE_NAME);
+        CodePushUpdateManifest manifest = CodePushUpdateManifest.readFromFile(indexFilePath);
+        if (manifest != null) {
+            manifest.writeToFile(indexFilePath, packageFolderPath);
+        }
+
+        // The archive is deleted last, so that an interrupted extraction is resumed by the next one.
+        for (File file : new File(packageFolderPath).listFiles()) {
+            if (file.getName().startsWith(CodePushConstants.PACKAGE_ARCHIVE_DENSITY_MARKER_PREFIX)) {
+                file.delete();
+            }
+        }
+
+        archiveFile.delete();
+    }
+
+    // Returns the file entries to extract at displayDensity by name: everything outside of density
+    // folders, and the picked density of every image.
+    private static Map<String, ZipEntry> getNeededEntries(ZipFile archive, float displayDensity) {
+        Map<String, ZipEntry> neededEntries = new HashMap<>();
+        // The picked entry of every image, by its path without the density.
+        Map<String, ZipEntry> pickedImages = new HashMap<>();
+        Map<String, Float> pickedScales = new HashMap<>();
+        Enumeration<? extends ZipEntry> entries = archive.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            String name = entry.getName();
+            int densityIndex = getDensityIndex(name);
+            if (densityIndex == -1) {
+                neededEntries.put(name, entry);
+                continue;
+            }
+
+            String imagePath = name.replace(DRAWABLE_FOLDER_PREFIX + DENSITY_NAMES[densityIndex] + "/", DRAWABLE_FOLDER_PREFIX + "/");
+            float scale = DENSITY_SCALES[densityIndex];
+            Float pickedScale = pickedScales.get(imagePath);
+            if (pickedScale == null || isBetterScale(scale, pickedScale, displayDensity)) {
+                pickedImages.put(imagePath, entry);
+                pickedScales.put(imagePath, scale);
+            }
+        }
+
+        for (ZipEntry entry : pickedImages.values()) {
+            neededEntries.put(entry.getName(), entry);
+        }
+
+        return neededEntries;
+    }
+
+    // Returns the index of the density of the folder that contains name, or -1 if it isn't in a density folder.
+    private static int getDensityIndex(String name) {
+        String[] pathComponents = name.split("/");
+        for (int i = 0; i < pathComponents.length - 1; i++) {
+            if (!pathComponents[i].startsWith(DRAWABLE_FOLDER_PREFIX)) {
+                continue;
+            }
+
+            String densityName = pathComponents[i].substring(DRAWABLE_FOLDER_PREFIX.length());
+            for (int j = 0; j < DENSITY_NAMES.length; j++) {
+                if (DENSITY_NAMES[j].equals(densityName)) {
+                    return j;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private static boolean isBetterScale(float scale, float pickedScale, float displayDensity) {
+        if (scale >= displayDensity) {
+            return pickedScale < displayDensity || scale < pickedScale;
+        } else {
+            return pickedScale < displayDensity && scale > pickedScale;
+        }
+    }
+
+    private static void extractEntry(ZipFile archive, ZipEntry entry, File file, MessageDigest messageDigest) throws IOException {
+        if (file != null) {
+            file.getParentFile().mkdirs();
+        }
+
+        FileUtils.extractZipEntry(archive, entry, file, messageDigest);
+    }
+
+    private static File getArchiveFile(String packageFolderPath) {
+        return new File(packageFolderPath, CodePushConstants.PACKAGE_ARCHIVE_FILE_NAME);
+    }
+
+    private static String getDensityMarkerFilePath(String packageFolderPath, float displayDensity) {
+        return CodePushUtils.appendPathComponent(packageFolderPath, CodePushConstants.PACKAGE_ARCHIVE_DENSITY_MARKER_PREFIX + displayDensity);
+    }
+
+    private static int getDepth(String name) {
+        return name.split("/").length;
+    }
+}
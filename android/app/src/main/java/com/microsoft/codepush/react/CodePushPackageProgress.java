@@ -0,0 +1,73 @@
+package com.microsoft.codepush.react;
+
+// Reports the download of a package, and the fetching of the chunks its diff is missing, to one
+// progress callback as a single download. The received bytes only grow, and the completed state
+// (receivedBytes == totalBytes) is only reported by complete(), once the package is saved, so
+// CodePushProgressPublisher doesn't finish after the first phase. The bytes to fetch are only
+// known once the package was downloaded, so the total grows by them then, once.
+class CodePushPackageProgress {
+
+    private final DownloadProgressCallback mProgressCallback;
+    private long mDownloadTotalBytes = -1;
+    private long mDownloadedBytes = 0;
+    private long mFetchTotalBytes = 0;
+    private long mFetchedBytes = 0;
+    private boolean mIsCompleted = false;
+
+    private final DownloadProgressCallback mDownloadCallback = new DownloadProgressCallback() {
+        @Override
+        public void call(long totalBytes, long receivedBytes) {
+            synchronized (CodePushPackageProgress.this) {
+                mDownloadTotalBytes = totalBytes;
+                mDownloadedBytes = receivedBytes;
+                report();
+            }
+        }
+    };
+
+    private final DownloadProgressCallback mFetchCallback = new DownloadProgressCallback() {
+        @Override
+        public void call(long totalBytes, long receivedBytes) {
+            synchronized (CodePushPackageProgress.this) {
+                mFetchTotalBytes = totalBytes;
+                mFetchedBytes = receivedBytes;
+                report();
+            }
+        }
+    };
+
+    CodePushPackageProgress(DownloadProgressCallback progressCallback) {
+        mProgressCallback = progressCallback;
+    }
+
+    // For the download of the package.
+    public DownloadProgressCallback getDownloadCallback() {
+        return mDownloadCallback;
+    }
+
+    // For the missing chunks, see CodePushChunkAssembler.
+    public DownloadProgressCallback getFetchCallback() {
+        return mFetchCallback;
+    }
+
+    public synchronized void complete() {
+        mIsCompleted = true;
+        long receivedBytes = mDownloadedBytes + mFetchedBytes;
+        mProgressCallback.call(receivedBytes, receivedBytes);
+    }
+
+    private void report() {
+        if (mIsCompleted) {
+            return;
+        }
+
+        long receivedBytes = mDownloadedBytes + mFetchedBytes;
+        // The size of the package is unknown if the server didn't send it.
+        long totalBytes = mDownloadTotalBytes < 0 ? -1 : mDownloadTotalBytes + mFetchTotalBytes;
+        if (totalBytes >= 0 && receivedBytes >= totalBytes) {
+            return;
+        }
+
+        mProgressCallback.call(totalBytes, receivedBytes);
+    }
+}
@@ -0,0 +1,108 @@
+package com.microsoft.codepush.react;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.modules.core.ChoreographerCompat;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.facebook.react.modules.core.ReactChoreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Publishes the progress of a download to JS as "CodePushDownloadProgress" events. The download
+// reports every chunk it receives, which on a fast connection is far more often than the UI can
+// show. Only the latest byte counts are kept, and an event is sent at most once per frame, and
+// only after minimumIntervalMillis have passed or minimumBytes were received since the previous
+// one (if either is set). The final event of a completed download is always sent.
+//
+// Reporting a chunk doesn't allocate anything; the event map is only created when it is sent.
+class CodePushProgressPublisher implements DownloadProgressCallback {
+
+    private final ReactApplicationContext mReactContext;
+    private final long mMinimumIntervalNanos;
+    private final long mMinimumBytes;
+
+    private final AtomicLong mTotalBytes = new AtomicLong(-1);
+    private final AtomicLong mReceivedBytes = new AtomicLong(0);
+    private final AtomicBoolean mIsFrameScheduled = new AtomicBoolean(false);
+    // Guarded by this, so that a late frame cannot send stale progress after the final event.
+    private boolean mIsCompleted = false;
+    private volatile long mLastPublishedTime = 0;
+    private volatile long mLastPublishedBytes = 0;
+
+    private final Runnable mScheduleFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ReactChoreographer.getInstance().postFrameCallback(ReactChoreographer.CallbackType.TIMERS_EVENTS, mFrameCallback);
+        }
+    };
+
+    private final ChoreographerCompat.FrameCallback mFrameCallback = new ChoreographerCompat.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mIsFrameScheduled.set(false);
+            publish(false);
+        }
+    };
+
+    CodePushProgressPublisher(ReactApplicationContext reactContext, long minimumIntervalMillis, long minimumBytes) {
+        mReactContext = reactContext;
+        mMinimumIntervalNanos = Math.max(minimumIntervalMillis, 0) * 1000 * 1000;
+        mMinimumBytes = Math.max(minimumBytes, 0);
+    }
+
+    @Override
+    public void call(long totalBytes, long receivedBytes) {
+        // The frame callback reads these later on another thread, an ordered store is enough.
+        mTotalBytes.lazySet(totalBytes);
+        mReceivedBytes.lazySet(receivedBytes);
+        if (receivedBytes == totalBytes) {
+            // Send the last event synchronously, so that it arrives before the download promise resolves.
+            publish(true);
+            return;
+        }
+
+        if (mIsFrameScheduled.get() || !isDue(receivedBytes) || !mIsFrameScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        mReactContext.runOnUiQueueThread(mScheduleFrameRunnable);
+    }
+
+    // Sends the final event if the download finished without reporting a completed state,
+    // e.g. because the server didn't send the content length.
+    public void finish() {
+        long receivedBytes = mReceivedBytes.get();
+        if (mTotalBytes.get() < 0) {
+            mTotalBytes.set(receivedBytes);
+        }
+
+        publish(true);
+    }
+
+    private boolean isDue(long receivedBytes) {
+        if (mMinimumIntervalNanos == 0 && mMinimumBytes == 0) {
+            return true;
+        }
+
+        return (mMinimumIntervalNanos > 0 && System.nanoTime() - mLastPublishedTime >= mMinimumIntervalNanos)
+                || (mMinimumBytes > 0 && receivedBytes - mLastPublishedBytes >= mMinimumBytes);
+    }
+
+    private synchronized void publish(boolean isFinal) {
+        if (mIsCompleted) {
+            return;
+        }
+
+        long totalBytes = mTotalBytes.get();
+        long receivedBytes = mReceivedBytes.get();
+        if (!isFinal && (receivedBytes == totalBytes || !isDue(receivedBytes))) {
+            return;
+        }
+
+        mIsCompleted = isFinal;
+        mLastPublishedTime = System.nanoTime();
+        mLastPublishedBytes = receivedBytes;
+        mReactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(CodePushConstants.DOWNLOAD_PROGRESS_EVENT_NAME, new DownloadProgress(totalBytes, receivedBytes).createWritableMap());
+    }
+}
@@ -0,0 +1,219 @@
+package com.microsoft.codepush.react;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Splits a download into byte ranges which are fetched over parallel connections
+// and written into a preallocated file with positional writes.
+class CodePushSegmentedDownloader {
+
+    // Shared by all downloads. Its threads exit after being idle for a minute.
+    private static final ExecutorService sSegmentExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CodePush-segment-" + mThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CodePushDownloadHandler mDownloadHandler;
+    private final int mSegmentCount;
+    private final int mMaxAttempts;
+
+    CodePushSegmentedDownloader(CodePushDownloadHandler downloadHandler, int segmentCount, int maxAttempts) {
+        mDownloadHandler = downloadHandler;
+        mSegmentCount = segmentCount;
+        mMaxAttempts = maxAttempts;
+    }
+
+    // Returns false without touching downloadFile if the server does not support range
+    // requests (or the file is too small to be worth splitting), in which case the caller
+    // should fall back to a single stream. Throws CodePushUnknownException if the server
+    // stopped honoring the ranges in the middle of the download.
+    boolean download(final URL downloadUrl, File downloadFile, final DownloadProgressCallback progressCallback) throws IOException {
+        HttpURLConnection probe = (HttpURLConnection) downloadUrl.openConnection();
+        final long totalBytes;
+        final String validator;
+        try {
+            probe.setRequestProperty("Range", "bytes=0-0");
+            if (probe.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                CodePushUtils.log("Server does not support range requests, downloading with a single connection.");
+                return false;
+            }
+
+            totalBytes = parseContentRangeTotal(probe.getHeaderField("Content-Range"));
+            String etag = probe.getHeaderField("ETag");
+            validator = etag != null && !etag.startsWith("W/") ? etag : probe.getHeaderField("Last-Modified");
+        } finally {
+            probe.disconnect();
+        }
+
+        int segmentCount = (int) Math.min(mSegmentCount, totalBytes / CodePushConstants.DOWNLOAD_MIN_SEGMENT_SIZE);
+        if (totalBytes <= 0 || validator == null || segmentCount < 2) {
+            return false;
+        }
+
+        CodePushUtils.log("Downloading " + totalBytes + " bytes in " + segmentCount + " segments.");
+        RandomAccessFile randomAccessFile = new RandomAccessFile(downloadFile, "rw");
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final long[] receivedBytes = new long[1];
+        List<Future<Void>> segments = new ArrayList<>();
+        try {
+            randomAccessFile.setLength(totalBytes);
+            final FileChannel channel = randomAccessFile.getChannel();
+
+            long segmentSize = totalBytes / segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                final long start = i * segmentSize;
+                final long end = i == segmentCount - 1 ? totalBytes - 1 : start + segmentSize - 1;
+                segments.add(sSegmentExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        downloadSegment(downloadUrl, validator, start, end, channel, cancelled, new SegmentProgressListener() {
+                            @Override
+                            public void onBytesWritten(int byteCount) {
+                                // Serialize progress reports so that listeners observe one merged,
+                                // monotonically increasing stream regardless of segment count.
+                                synchronized (receivedBytes) {
+                                    receivedBytes[0] += byteCount;
+                                    progressCallback.call(totalBytes, receivedBytes[0]);
+                                }
+                            }
+                        });
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> segment : segments) {
+                try {
+                    segment.get();
+                } catch (ExecutionException e) {
+                    cancelled.set(true);
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+
+                    throw new CodePushUnknownException("Segmented download failed.", cause);
+                } catch (InterruptedException e) {
+                    cancelled.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Segmented download was interrupted.");
+                }
+            }
+
+            channel.force(false);
+        } finally {
+            // Stops the segments that are still running if one of them failed.
+            cancelled.set(true);
+            for (Future<Void> segment : segments) {
+                segment.cancel(true);
+            }
+
+            randomAccessFile.close();
+        }
+
+        return true;
+    }
+
+    private void downloadSegment(URL downloadUrl, String validator, long start, long end, FileChannel channel,
+                                 AtomicBoolean cancelled, SegmentProgressListener listener) throws IOException {
+        long position = start;
+        byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+        for (int attempt = 1; ; attempt++) {
+            HttpURLConnection connection = null;
+            InputStream bin = null;
+            try {
+                connection = (HttpURLConnection) downloadUrl.openConnection();
+                connection.setRequestProperty("Range", "bytes=" + position + "-" + end);
+                connection.setRequestProperty("If-Range", validator);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+                        || CodePushDownloadHandler.getContentRangeStart(connection) != position) {
+                    // The resource changed underneath us, the segments can no longer be stitched together.
+                    throw new CodePushUnknownException("Server did not honor range request for bytes " + position + "-" + end +
+                            " (response code " + connection.getResponseCode() + ", Content-Range " +
+                            connection.getHeaderField("Content-Range") + ").");
+                }
+
+                bin = new BufferedInputStream(connection.getInputStream());
+                int numBytesRead;
+                while (position <= end && (numBytesRead = bin.read(data, 0, (int) Math.min(data.length, end - position + 1))) >= 0) {
+                    if (cancelled.get()) {
+                        return;
+                    }
+
+                    ByteBuffer buffer = ByteBuffer.wrap(data, 0, numBytesRead);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+
+                    listener.onBytesWritten(numBytesRead);
+                }
+
+                if (position <= end) {
+                    throw new IOException("Connection closed at byte " + position + ", expected segment to end at " + end);
+                }
+
+                return;
+            } catch (IOException e) {
+                if (attempt >= mMaxAttempts || cancelled.get()) {
+                    throw e;
+                }
+
+                try {
+                    Thread.sleep(mDownloadHandler.getRetryDelay(attempt));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            } finally {
+                try {
+                    if (bin != null) bin.close();
+                    if (connection != null) connection.disconnect();
+                } catch (IOException e) {
+                    throw new CodePushUnknownException("Error closing IO resources.", e);
+                }
+            }
+        }
+    }
+
+    private static long parseContentRangeTotal(String contentRange) {
+        // Content-Range: bytes 0-0/<total>
+        if (contentRange == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private interface SegmentProgressListener {
+        void onBytesWritten(int byteCount);
+    }
+}
@@ -0,0 +1,112 @@
+package com.microsoft.codepush.react;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Everything that is needed at app launch to pick the JS bundle, saved in one small binary
+// file whenever the current package changes. This saves parsing codepush.json and app.json
+// on the main thread before the first frame. The descriptor is only a cache of the package
+// metadata: if it is missing or cannot be read, the metadata is used instead.
+public class CodePushStartupDescriptor {
+
+    // "CPSD", followed by the format version.
+    private static final int DESCRIPTOR_MAGIC = 0x43505344;
+    private static final int DESCRIPTOR_VERSION = 1;
+
+    private final String mPackageHash;
+    private final String mRelativeBundlePath;
+    private final String mAppVersion;
+    private final long mBinaryModifiedTime;
+
+    // packageHash is null if the binary's bundle is current, relativeBundlePath is null if
+    // the bundle is at the root of the package folder.
+    public CodePushStartupDescriptor(String packageHash, String relativeBundlePath, String appVersion, long binaryModifiedTime) {
+        mPackageHash = packageHash;
+        mRelativeBundlePath = relativeBundlePath;
+        mAppVersion = appVersion;
+        mBinaryModifiedTime = binaryModifiedTime;
+    }
+
+    public String getPackageHash() {
+        return mPackageHash;
+    }
+
+    public String getRelativeBundlePath() {
+        return mRelativeBundlePath;
+    }
+
+    public String getAppVersion() {
+        return mAppVersion;
+    }
+
+    public long getBinaryModifiedTime() {
+        return mBinaryModifiedTime;
+    }
+
+    // Writes the descriptor to a temporary file first, so that a crash never leaves a truncated one behind.
+    public void writeToFile(String filePath) throws IOException {
+        File descriptorFile = new File(filePath);
+        File tempFile = new File(filePath + ".tmp");
+        // Apps that never installed an update have no CodePush folder yet.
+        descriptorFile.getParentFile().mkdirs();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(DESCRIPTOR_MAGIC);
+            out.writeInt(DESCRIPTOR_VERSION);
+            out.writeUTF(mPackageHash != null ? mPackageHash : "");
+            out.writeUTF(mRelativeBundlePath != null ? mRelativeBundlePath : "");
+            out.writeUTF(mAppVersion != null ? mAppVersion : "");
+            out.writeLong(mBinaryModifiedTime);
+        } finally {
+            if (out != null) out.close();
+        }
+
+        if (!tempFile.renameTo(descriptorFile)) {
+            throw new IOException("Unable to move " + tempFile.getAbsolutePath() + " to " + descriptorFile.getAbsolutePath());
+        }
+    }
+
+    // Returns null if there is no readable descriptor at filePath.
+    public static CodePushStartupDescriptor readFromFile(String filePath) {
+        File descriptorFile = new File(filePath);
+        if (!descriptorFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(descriptorFile), 512));
+            if (in.readInt() != DESCRIPTOR_MAGIC || in.readInt() != DESCRIPTOR_VERSION) {
+                CodePushUtils.log("Ignoring startup descriptor with unknown format: " + filePath);
+                return null;
+            }
+
+            String packageHash = in.readUTF();
+            String relativeBundlePath = in.readUTF();
+            String appVersion = in.readUTF();
+            long binaryModifiedTime = in.readLong();
+            return new CodePushStartupDescriptor(packageHash.isEmpty() ? null : packageHash,
+                    relativeBundlePath.isEmpty() ? null : relativeBundlePath, appVersion, binaryModifiedTime);
+        } catch (EOFException e) {
+            CodePushUtils.log("Ignoring truncated startup descriptor: " + filePath);
+            return null;
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to read startup descriptor: " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                if (in != null) in.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+}
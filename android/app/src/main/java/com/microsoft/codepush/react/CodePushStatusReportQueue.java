@@ -0,0 +1,202 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bounded queue of the status reports that have not been delivered yet, persisted as one
+// JSON file. Reports are keyed by their status report identifier, so queueing a report
+// again replaces the queued copy in place instead of sending it twice. Once the queue is
+// full, the oldest report is dropped.
+//
+// Failed deliveries are backed off exponentially: until the next attempt is due, no
+// batches of reports are handed out for sending.
+public class CodePushStatusReportQueue {
+
+    private static final String FAILED_ATTEMPTS_KEY = "failedAttempts";
+    private static final String KEY_KEY = "key";
+    private static final String NEXT_ATTEMPT_TIME_KEY = "nextAttemptTime";
+    private static final String REPORT_KEY = "report";
+    private static final String REPORTS_KEY = "reports";
+
+    private final File mQueueFile;
+    private final int mCapacity;
+    private final long mBaseRetryDelayMillis;
+    private final long mMaxRetryDelayMillis;
+
+    // Writes are done off the calling thread on the maintenance lane, and coalesced while one is
+    // still pending.
+    private boolean mIsWriteScheduled;
+
+    private LinkedHashMap<String, JSONObject> mReports;
+    private int mFailedAttempts;
+    private long mNextAttemptTime;
+
+    public CodePushStatusReportQueue(File queueFile) {
+        this(queueFile, CodePushConstants.STATUS_REPORT_QUEUE_CAPACITY,
+                CodePushConstants.STATUS_REPORT_RETRY_BASE_DELAY_MILLIS, CodePushConstants.STATUS_REPORT_RETRY_MAX_DELAY_MILLIS);
+    }
+
+    // Allows tests to use a small queue and a short backoff.
+    CodePushStatusReportQueue(File queueFile, int capacity, long baseRetryDelayMillis, long maxRetryDelayMillis) {
+        mQueueFile = queueFile;
+        mCapacity = capacity;
+        mBaseRetryDelayMillis = baseRetryDelayMillis;
+        mMaxRetryDelayMillis = maxRetryDelayMillis;
+    }
+
+    // Queues the report, or replaces the queued report with the same key.
+    public synchronized void add(String key, JSONObject report) {
+        Map<String, JSONObject> reports = getReports();
+        if (!reports.containsKey(key) && reports.size() >= mCapacity) {
+            Iterator<String> iterator = reports.keySet().iterator();
+            CodePushUtils.log("Status report queue is full, dropping report " + iterator.next());
+            iterator.remove();
+        }
+
+        reports.put(key, report);
+        scheduleWrite();
+    }
+
+    // Returns up to maxCount of the oldest reports, or none while a failed delivery is backed off.
+    public synchronized List<JSONObject> getBatch(int maxCount) {
+        List<JSONObject> batch = new ArrayList<>();
+        if (isBackingOff()) {
+            return batch;
+        }
+
+        for (JSONObject report : getReports().values()) {
+            if (batch.size() >= maxCount) {
+                break;
+            }
+
+            batch.add(report);
+        }
+
+        return batch;
+    }
+
+    public synchronized List<JSONObject> getAll() {
+        return new ArrayList<>(getReports().values());
+    }
+
+    public synchronized boolean isBackingOff() {
+        getReports();
+        return mFailedAttempts > 0 && System.currentTimeMillis() < mNextAttemptTime;
+    }
+
+    public synchronized void recordDeliveryFailure() {
+        getReports();
+        mFailedAttempts++;
+        long delay = mBaseRetryDelayMillis << Math.min(mFailedAttempts - 1, 20);
+        mNextAttemptTime = System.currentTimeMillis() + Math.min(delay, mMaxRetryDelayMillis);
+        scheduleWrite();
+    }
+
+    // Removes the delivered report and ends the backoff, since the server is reachable again.
+    public synchronized void recordDeliverySuccess(String key) {
+        boolean wasRemoved = getReports().remove(key) != null;
+        if (wasRemoved || mFailedAttempts > 0) {
+            mFailedAttempts = 0;
+            mNextAttemptTime = 0;
+            scheduleWrite();
+        }
+    }
+
+    public synchronized int size() {
+        return getReports().size();
+    }
+
+    private LinkedHashMap<String, JSONObject> getReports() {
+        if (mReports == null) {
+            mReports = new LinkedHashMap<>();
+            load();
+        }
+
+        return mReports;
+    }
+
+    private void load() {
+        if (!mQueueFile.exists()) {
+            return;
+        }
+
+        try {
+            JSONObject queue = new JSONObject(FileUtils.readFileToString(mQueueFile.getAbsolutePath()));
+            mFailedAttempts = queue.optInt(FAILED_ATTEMPTS_KEY, 0);
+            mNextAttemptTime = queue.optLong(NEXT_ATTEMPT_TIME_KEY, 0);
+            JSONArray reports = queue.getJSONArray(REPORTS_KEY);
+            for (int i = 0; i < reports.length(); i++) {
+                JSONObject entry = reports.getJSONObject(i);
+                mReports.put(entry.getString(KEY_KEY), entry.getJSONObject(REPORT_KEY));
+            }
+        } catch (IOException | JSONException e) {
+            // The file is written atomically, so this should not happen.
+            CodePushUtils.log("Discarding unreadable status report queue: " + e.getMessage());
+            mReports.clear();
+        }
+    }
+
+    private void scheduleWrite() {
+        if (mIsWriteScheduled) {
+            return;
+        }
+
+        mIsWriteScheduled = true;
+        CodePushTaskScheduler.getInstance().schedule(CodePushTaskScheduler.Lane.MAINTENANCE, CodePushTaskScheduler.Priority.NORMAL,
+                "saveStatusReportQueue", new Runnable() {
+                    @Override
+                    public void run() {
+                        String content;
+                        synchronized (CodePushStatusReportQueue.this) {
+                            mIsWriteScheduled = false;
+                            content = serialize();
+                        }
+
+                        try {
+                            if (content == null) {
+                                mQueueFile.delete();
+                            } else {
+                                FileUtils.writeStringToFile(content, mQueueFile.getAbsolutePath());
+                            }
+                        } catch (IOException e) {
+                            CodePushUtils.log("Unable to save status report queue: " + e.getMessage());
+                        }
+                    }
+                }, null);
+    }
+
+    // Returns null if there is nothing worth keeping on disk.
+    private String serialize() {
+        if (mReports.isEmpty() && mFailedAttempts == 0) {
+            return null;
+        }
+
+        try {
+            JSONArray reports = new JSONArray();
+            for (Map.Entry<String, JSONObject> report : mReports.entrySet()) {
+                JSONObject entry = new JSONObject();
+                entry.put(KEY_KEY, report.getKey());
+                entry.put(REPORT_KEY, report.getValue());
+                reports.put(entry);
+            }
+
+            JSONObject queue = new JSONObject();
+            queue.put(FAILED_ATTEMPTS_KEY, mFailedAttempts);
+            queue.put(NEXT_ATTEMPT_TIME_KEY, mNextAttemptTime);
+            queue.put(REPORTS_KEY, reports);
+            return queue.toString();
+        } catch (JSONException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("Unable to serialize status report queue.", e);
+        }
+    }
+}
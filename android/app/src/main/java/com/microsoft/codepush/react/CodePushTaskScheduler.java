@@ -0,0 +1,195 @@
+package com.microsoft.codepush.react;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs the background work of the native module on threads owned by CodePush, instead of
+// the process-wide AsyncTask pool that every other library competes for.
+//
+// Tasks which change the update state on disk (download, install) run one at a time on
+// the mutation lane, so they never race each other. Metadata queries run on the read lane,
+// so they do not wait behind a long download. Within a lane, queued tasks run in order of
+// priority, and in the order they were scheduled within the same priority. Housekeeping that
+// nothing waits for, like deleting old files, runs on the maintenance lane at the lowest
+// thread priority.
+public class CodePushTaskScheduler {
+
+    public enum Lane {
+        MUTATION,
+        READ,
+        MAINTENANCE
+    }
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    // Tells the caller of schedule() that its task did not complete, e.g. to reject a pending promise.
+    public interface FailureCallback {
+        // The task was cancelled before it started.
+        void onCancelled();
+
+        // The task threw e.
+        void onFailed(Exception e);
+    }
+
+    private static final int READ_LANE_THREAD_COUNT = 2;
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private static CodePushTaskScheduler sInstance;
+
+    private final ThreadPoolExecutor mMutationExecutor = createExecutor("CodePush-mutation", 1, Process.THREAD_PRIORITY_BACKGROUND);
+    private final ThreadPoolExecutor mReadExecutor = createExecutor("CodePush-read", READ_LANE_THREAD_COUNT, Process.THREAD_PRIORITY_BACKGROUND);
+    private final ThreadPoolExecutor mMaintenanceExecutor = createExecutor("CodePush-maintenance", 1, Process.THREAD_PRIORITY_LOWEST);
+    private final AtomicLong mNextSequenceNumber = new AtomicLong();
+    private final Set<ScheduledTask> mPendingTasks = Collections.synchronizedSet(new HashSet<ScheduledTask>());
+
+    // The lanes are shared by all native module instances of the process, so that work started
+    // before a React context reload stays ordered with work started after it.
+    public static synchronized CodePushTaskScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new CodePushTaskScheduler();
+        }
+
+        return sInstance;
+    }
+
+    private static ThreadPoolExecutor createExecutor(final String threadName, int threadCount, final int threadPriority) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(threadPriority);
+                                runnable.run();
+                            }
+                        }, threadName + "-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // Don't keep threads around while there is nothing to do.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Schedules task on the given lane and returns immediately. If the task is cancelled before
+    // it starts or throws, failureCallback (if not null) is called.
+    public Future<?> schedule(Lane lane, Priority priority, String tag, Runnable task, FailureCallback failureCallback) {
+        ScheduledTask scheduledTask = new ScheduledTask(priority, mNextSequenceNumber.getAndIncrement(), tag, task, failureCallback);
+        mPendingTasks.add(scheduledTask);
+        getExecutor(lane).execute(scheduledTask);
+        return scheduledTask;
+    }
+
+    private ThreadPoolExecutor getExecutor(Lane lane) {
+        switch (lane) {
+            case MUTATION:
+                return mMutationExecutor;
+            case READ:
+                return mReadExecutor;
+            default:
+                return mMaintenanceExecutor;
+        }
+    }
+
+    // Cancels the queued tasks with the given tag, and interrupts the running ones. Returns the
+    // number of tasks that were cancelled.
+    public int cancel(String tag) {
+        List<ScheduledTask> tasksToCancel = new ArrayList<>();
+        synchronized (mPendingTasks) {
+            for (ScheduledTask task : mPendingTasks) {
+                if (tag.equals(task.mTag)) {
+                    tasksToCancel.add(task);
+                }
+            }
+        }
+
+        int cancelledCount = 0;
+        for (ScheduledTask task : tasksToCancel) {
+            if (task.cancel(true)) {
+                cancelledCount++;
+            }
+        }
+
+        return cancelledCount;
+    }
+
+    private class ScheduledTask extends FutureTask<Void> implements Comparable<ScheduledTask> {
+        private final Priority mPriority;
+        private final long mSequenceNumber;
+        private final String mTag;
+        private final FailureCallback mFailureCallback;
+        private volatile boolean mIsStarted;
+
+        ScheduledTask(Priority priority, long sequenceNumber, String tag, Runnable task, FailureCallback failureCallback) {
+            super(task, null);
+            mPriority = priority;
+            mSequenceNumber = sequenceNumber;
+            mTag = tag;
+            mFailureCallback = failureCallback;
+        }
+
+        @Override
+        public void run() {
+            mIsStarted = true;
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            mPendingTasks.remove(this);
+            if (isCancelled()) {
+                if (!mIsStarted && mFailureCallback != null) {
+                    mFailureCallback.onCancelled();
+                }
+
+                return;
+            }
+
+            try {
+                get();
+            } catch (InterruptedException e) {
+                // Cannot happen, the task is done.
+            } catch (ExecutionException e) {
+                // FutureTask keeps the exception to itself, so make it visible in the log and hand it
+                // to the caller.
+                Throwable cause = e.getCause();
+                CodePushUtils.log("Background task " + mTag + " failed: " + cause);
+                if (mFailureCallback != null) {
+                    mFailureCallback.onFailed(cause instanceof Exception
+                            ? (Exception) cause
+                            : new CodePushUnknownException("Background task " + mTag + " failed.", cause));
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.compareTo(other.mPriority);
+            }
+
+            return mSequenceNumber < other.mSequenceNumber ? -1 : (mSequenceNumber == other.mSequenceNumber ? 0 : 1);
+        }
+    }
+}
@@ -5,14 +5,27 @@ import android.content.SharedPreferences;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+// Every status report is queued as soon as it is created, and only removed from the queue
+// once it has been delivered, so reports survive failed requests and app restarts. Reports
+// are handed out in the order they were created.
 public class CodePushTelemetryManager {
     private SharedPreferences mSettings;
+    private CodePushStatusReportQueue mStatusReportQueue;
     private final String APP_VERSION_KEY = "appVersion";
+    private final String CLIENT_UNIQUE_ID_KEY = "clientUniqueId";
     private final String DEPLOYMENT_FAILED_STATUS = "DeploymentFailed";
     private final String DEPLOYMENT_KEY_KEY = "deploymentKey";
     private final String DEPLOYMENT_SUCCEEDED_STATUS = "DeploymentSucceeded";
@@ -21,114 +34,266 @@ public class CodePushTelemetryManager {
     private final String PACKAGE_KEY = "package";
     private final String PREVIOUS_DEPLOYMENT_KEY_KEY = "previousDeploymentKey";
     private final String PREVIOUS_LABEL_OR_APP_VERSION_KEY = "previousLabelOrAppVersion";
+    private final String REPORT_STATUS_DEPLOY_PATH = "reportStatus/deploy";
     private final String RETRY_DEPLOYMENT_REPORT_KEY = "CODE_PUSH_RETRY_DEPLOYMENT_REPORT";
     private final String STATUS_KEY = "status";
 
     public CodePushTelemetryManager(Context applicationContext) {
-        mSettings = applicationContext.getSharedPreferences(CodePushConstants.CODE_PUSH_PREFERENCES, 0);
+        this(applicationContext.getSharedPreferences(CodePushConstants.CODE_PUSH_PREFERENCES, 0),
+                new CodePushStatusReportQueue(new File(applicationContext.getFilesDir(), CodePushConstants.STATUS_REPORT_QUEUE_FILE_NAME)));
+    }
+
+    // Allows tests to run without a Context.
+    CodePushTelemetryManager(SharedPreferences settings, CodePushStatusReportQueue statusReportQueue) {
+        mSettings = settings;
+        mStatusReportQueue = statusReportQueue;
+        migrateRetryStatusReport();
     }
 
-    public WritableMap getBinaryUpdateReport(String appVersion) {
+    public JSONObject getBinaryUpdateReport(String appVersion) {
         String previousStatusReportIdentifier = this.getPreviousStatusReportIdentifier();
-        WritableMap reportMap = null;
+        JSONObject report = null;
         if (previousStatusReportIdentifier == null) {
-            this.clearRetryStatusReport();
-            reportMap = Arguments.createMap();
-            reportMap.putString(APP_VERSION_KEY, appVersion);
+            report = new JSONObject();
+            CodePushUtils.setJSONValueForKey(report, APP_VERSION_KEY, appVersion);
         } else if (!previousStatusReportIdentifier.equals(appVersion)) {
-            this.clearRetryStatusReport();
-            reportMap = Arguments.createMap();
+            report = new JSONObject();
             if (this.isStatusReportIdentifierCodePushLabel(previousStatusReportIdentifier)) {
                 String previousDeploymentKey = this.getDeploymentKeyFromStatusReportIdentifier(previousStatusReportIdentifier);
                 String previousLabel = this.getVersionLabelFromStatusReportIdentifier(previousStatusReportIdentifier);
-                reportMap.putString(APP_VERSION_KEY, appVersion);
-                reportMap.putString(PREVIOUS_DEPLOYMENT_KEY_KEY, previousDeploymentKey);
-                reportMap.putString(PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousLabel);
+                CodePushUtils.setJSONValueForKey(report, APP_VERSION_KEY, appVersion);
+                CodePushUtils.setJSONValueForKey(report, PREVIOUS_DEPLOYMENT_KEY_KEY, previousDeploymentKey);
+                CodePushUtils.setJSONValueForKey(report, PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousLabel);
             } else {
                 // Previous status report was with a binary app version.
-                reportMap.putString(APP_VERSION_KEY, appVersion);
-                reportMap.putString(PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousStatusReportIdentifier);
+                CodePushUtils.setJSONValueForKey(report, APP_VERSION_KEY, appVersion);
+                CodePushUtils.setJSONValueForKey(report, PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousStatusReportIdentifier);
             }
         }
 
-        return reportMap;
+        if (report != null) {
+            queueStatusReport(report);
+        }
+
+        return report;
     }
 
+    // Returns the oldest queued report, or null if there is none or failed deliveries are backed
+    // off. The report stays queued until it is recorded as reported or discarded. JS asks for it
+    // on every app start and resume, and keeps asking as long as hasQueuedStatusReports().
     public WritableMap getRetryStatusReport() {
-        String retryStatusReportString = mSettings.getString(RETRY_DEPLOYMENT_REPORT_KEY, null);
-        if (retryStatusReportString != null) {
-            clearRetryStatusReport();
-            try {
-                JSONObject retryStatusReport = new JSONObject(retryStatusReportString);
-                return CodePushUtils.convertJsonObjectToWritable(retryStatusReport);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
+        List<JSONObject> batch = mStatusReportQueue.getBatch(1);
+        return batch.isEmpty() ? null : CodePushUtils.convertJsonObjectToWritable(batch.get(0));
+    }
+
+    public boolean hasQueuedStatusReports() {
+        return mStatusReportQueue.size() > 0;
+    }
 
-        return null;
+    public JSONObject getRollbackReport(CodePushPackage lastFailedPackage) {
+        JSONObject report = new JSONObject();
+        CodePushUtils.setJSONValueForKey(report, PACKAGE_KEY, lastFailedPackage.toJson());
+        CodePushUtils.setJSONValueForKey(report, STATUS_KEY, DEPLOYMENT_FAILED_STATUS);
+        queueStatusReport(report);
+        return report;
     }
 
-    public WritableMap getRollbackReport(WritableMap lastFailedPackage) {
-        WritableMap reportMap =  Arguments.createMap();
-        reportMap.putMap(PACKAGE_KEY, lastFailedPackage);
-        reportMap.putString(STATUS_KEY, DEPLOYMENT_FAILED_STATUS);
-        return reportMap;
+    // Returns up to maxCount of the oldest queued reports, so that they can be sent in one go.
+    public WritableArray getStatusReportBatch(int maxCount) {
+        WritableArray batch = Arguments.createArray();
+        for (JSONObject statusReport : mStatusReportQueue.getBatch(maxCount)) {
+            batch.pushMap(CodePushUtils.convertJsonObjectToWritable(statusReport));
+        }
+
+        return batch;
     }
 
-    public WritableMap getUpdateReport(WritableMap currentPackage) {
-        String currentPackageIdentifier = this.getPackageStatusReportIdentifier(currentPackage);
+    public JSONObject getUpdateReport(CodePushPackage currentPackage) {
+        String currentPackageIdentifier = this.getPackageStatusReportIdentifier(currentPackage.getDeploymentKey(), currentPackage.getLabel());
         String previousStatusReportIdentifier = this.getPreviousStatusReportIdentifier();
-        WritableMap reportMap = null;
+        JSONObject report = null;
         if (currentPackageIdentifier != null) {
             if (previousStatusReportIdentifier == null) {
-                this.clearRetryStatusReport();
-                reportMap = Arguments.createMap();
-                reportMap.putMap(PACKAGE_KEY, currentPackage);
-                reportMap.putString(STATUS_KEY, DEPLOYMENT_SUCCEEDED_STATUS);
+                report = new JSONObject();
+                CodePushUtils.setJSONValueForKey(report, PACKAGE_KEY, currentPackage.toJson());
+                CodePushUtils.setJSONValueForKey(report, STATUS_KEY, DEPLOYMENT_SUCCEEDED_STATUS);
             } else if (!previousStatusReportIdentifier.equals(currentPackageIdentifier)) {
-                this.clearRetryStatusReport();
-                reportMap = Arguments.createMap();
+                report = new JSONObject();
                 if (this.isStatusReportIdentifierCodePushLabel(previousStatusReportIdentifier)) {
                     String previousDeploymentKey = this.getDeploymentKeyFromStatusReportIdentifier(previousStatusReportIdentifier);
                     String previousLabel = this.getVersionLabelFromStatusReportIdentifier(previousStatusReportIdentifier);
-                    reportMap.putMap(PACKAGE_KEY, currentPackage);
-                    reportMap.putString(STATUS_KEY, DEPLOYMENT_SUCCEEDED_STATUS);
-                    reportMap.putString(PREVIOUS_DEPLOYMENT_KEY_KEY, previousDeploymentKey);
-                    reportMap.putString(PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousLabel);
+                    CodePushUtils.setJSONValueForKey(report, PACKAGE_KEY, currentPackage.toJson());
+                    CodePushUtils.setJSONValueForKey(report, STATUS_KEY, DEPLOYMENT_SUCCEEDED_STATUS);
+                    CodePushUtils.setJSONValueForKey(report, PREVIOUS_DEPLOYMENT_KEY_KEY, previousDeploymentKey);
+                    CodePushUtils.setJSONValueForKey(report, PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousLabel);
                 } else {
                     // Previous status report was with a binary app version.
-                    reportMap.putMap(PACKAGE_KEY, currentPackage);
-                    reportMap.putString(STATUS_KEY, DEPLOYMENT_SUCCEEDED_STATUS);
-                    reportMap.putString(PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousStatusReportIdentifier);
+                    CodePushUtils.setJSONValueForKey(report, PACKAGE_KEY, currentPackage.toJson());
+                    CodePushUtils.setJSONValueForKey(report, STATUS_KEY, DEPLOYMENT_SUCCEEDED_STATUS);
+                    CodePushUtils.setJSONValueForKey(report, PREVIOUS_LABEL_OR_APP_VERSION_KEY, previousStatusReportIdentifier);
                 }
             }
+
+            if (report != null) {
+                queueStatusReport(report);
+            }
         }
 
-        return reportMap;
+        return report;
+    }
+
+    // For reports the server rejected, which would be rejected again if they were retried.
+    public void discardStatusReport(ReadableMap statusReport) {
+        discardStatusReport(CodePushUtils.convertReadableToJsonObject(statusReport));
     }
 
     public void recordStatusReported(ReadableMap statusReport) {
+        recordStatusReported(CodePushUtils.convertReadableToJsonObject(statusReport));
+    }
+
+    public void saveStatusReportForRetry(ReadableMap statusReport) {
+        JSONObject statusReportJSON = CodePushUtils.convertReadableToJsonObject(statusReport);
+        mStatusReportQueue.add(getStatusReportKey(statusReportJSON), statusReportJSON);
+        mStatusReportQueue.recordDeliveryFailure();
+    }
+
+    // Sends one batch of queued reports straight to the server, for apps that want to deliver
+    // them without waiting for the JS side, e.g. from a background job. Returns the number of
+    // reports that were delivered. Does network I/O, so it must not be called on the UI thread.
+    public int flushStatusReports(String serverUrl, String deploymentKey, String clientUniqueId) {
+        int deliveredCount = 0;
+        for (JSONObject statusReport : mStatusReportQueue.getBatch(CodePushConstants.STATUS_REPORT_BATCH_SIZE)) {
+            try {
+                if (postStatusReport(serverUrl, deploymentKey, clientUniqueId, statusReport)) {
+                    recordStatusReported(statusReport);
+                    deliveredCount++;
+                } else {
+                    discardStatusReport(statusReport);
+                }
+            } catch (IOException e) {
+                CodePushUtils.log("Unable to send status report: " + e.getMessage());
+                mStatusReportQueue.recordDeliveryFailure();
+                break;
+            }
+        }
+
+        return deliveredCount;
+    }
+
+    // Mirrors the request that the acquisition SDK makes in reportStatusDeploy. Returns
+    // false if the server rejected the report, throws if it is worth retrying.
+    private boolean postStatusReport(String serverUrl, String deploymentKey, String clientUniqueId, JSONObject statusReport) throws IOException {
+        JSONObject body = new JSONObject();
+        try {
+            JSONObject deployedPackage = statusReport.optJSONObject(PACKAGE_KEY);
+            if (deployedPackage != null) {
+                body.put(APP_VERSION_KEY, deployedPackage.optString(APP_VERSION_KEY, null));
+                body.put(DEPLOYMENT_KEY_KEY, deployedPackage.optString(DEPLOYMENT_KEY_KEY, deploymentKey));
+                body.put(LABEL_KEY, deployedPackage.optString(LABEL_KEY, null));
+                body.put(STATUS_KEY, statusReport.optString(STATUS_KEY, null));
+            } else {
+                body.put(APP_VERSION_KEY, statusReport.optString(APP_VERSION_KEY, null));
+                body.put(DEPLOYMENT_KEY_KEY, deploymentKey);
+            }
+
+            body.put(CLIENT_UNIQUE_ID_KEY, clientUniqueId);
+            body.put(PREVIOUS_LABEL_OR_APP_VERSION_KEY, statusReport.optString(PREVIOUS_LABEL_OR_APP_VERSION_KEY, null));
+            body.put(PREVIOUS_DEPLOYMENT_KEY_KEY, statusReport.optString(PREVIOUS_DEPLOYMENT_KEY_KEY, deploymentKey));
+        } catch (JSONException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("Unable to create status report request.", e);
+        }
+
+        String reportUrl = serverUrl + (serverUrl.endsWith("/") ? "" : "/") + REPORT_STATUS_DEPLOY_PATH;
+        HttpURLConnection connection = null;
+        OutputStream out = null;
+        try {
+            byte[] bodyBytes = body.toString().getBytes("UTF-8");
+            connection = (HttpURLConnection) new URL(reportUrl).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(bodyBytes.length);
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setRequestProperty("Content-Type", "application/json");
+            out = connection.getOutputStream();
+            out.write(bodyBytes);
+            out.close();
+            out = null;
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                    || responseCode == 429 /* Too Many Requests */) {
+                throw new IOException("Received response code " + responseCode + " from " + reportUrl);
+            }
+
+            return responseCode < HttpURLConnection.HTTP_BAD_REQUEST;
+        } finally {
+            if (out != null) out.close();
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    private void discardStatusReport(JSONObject statusReport) {
+        CodePushUtils.log("Status report was rejected by the server, dropping it: " + statusReport);
+
+        // The server was reachable, so the backoff ends as well.
+        mStatusReportQueue.recordDeliverySuccess(getStatusReportKey(statusReport));
+    }
+
+    private void recordStatusReported(JSONObject statusReport) {
+        mStatusReportQueue.recordDeliverySuccess(getStatusReportKey(statusReport));
+
         // We don't need to record rollback reports, so exit early if that's what was specified.
-        if (statusReport.hasKey(STATUS_KEY) && DEPLOYMENT_FAILED_STATUS.equals(statusReport.getString(STATUS_KEY))) {
+        if (DEPLOYMENT_FAILED_STATUS.equals(statusReport.optString(STATUS_KEY, null))) {
             return;
         }
-        
-        if (statusReport.hasKey(APP_VERSION_KEY)) {
-            saveStatusReportedForIdentifier(statusReport.getString(APP_VERSION_KEY));
-        } else if (statusReport.hasKey(PACKAGE_KEY)) {
-            String packageIdentifier = getPackageStatusReportIdentifier(statusReport.getMap(PACKAGE_KEY));
-            saveStatusReportedForIdentifier(packageIdentifier);
+
+        String identifier = getStatusReportKey(statusReport);
+        if (identifier != null) {
+            saveStatusReportedForIdentifier(identifier);
         }
     }
 
-    public void saveStatusReportForRetry(ReadableMap statusReport) {
-        JSONObject statusReportJSON = CodePushUtils.convertReadableToJsonObject(statusReport);
-        mSettings.edit().putString(RETRY_DEPLOYMENT_REPORT_KEY, statusReportJSON.toString()).commit();
+    // The report must not be modified after it was queued.
+    private void queueStatusReport(JSONObject statusReport) {
+        mStatusReportQueue.add(getStatusReportKey(statusReport), statusReport);
     }
 
-    private void clearRetryStatusReport() {
-        mSettings.edit().remove(RETRY_DEPLOYMENT_REPORT_KEY).commit();
+    // Earlier versions kept a single report to retry in SharedPreferences.
+    private void migrateRetryStatusReport() {
+        String retryStatusReportString = mSettings.getString(RETRY_DEPLOYMENT_REPORT_KEY, null);
+        if (retryStatusReportString == null) {
+            return;
+        }
+
+        try {
+            JSONObject retryStatusReport = new JSONObject(retryStatusReportString);
+            mStatusReportQueue.add(getStatusReportKey(retryStatusReport), retryStatusReport);
+        } catch (JSONException e) {
+            CodePushUtils.log("Discarding unreadable status report stored in SharedPreferences.");
+        }
+
+        mSettings.edit().remove(RETRY_DEPLOYMENT_REPORT_KEY).apply();
+    }
+
+    // Reports are deduplicated by their status report identifier. Rollback reports get a
+    // key of their own, so that they do not replace the success report of the same package.
+    private String getStatusReportKey(JSONObject statusReport) {
+        String identifier;
+        JSONObject updatePackage = statusReport.optJSONObject(PACKAGE_KEY);
+        if (updatePackage != null) {
+            identifier = getPackageStatusReportIdentifier(updatePackage.optString(DEPLOYMENT_KEY_KEY, null), updatePackage.optString(LABEL_KEY, null));
+        } else {
+            identifier = statusReport.optString(APP_VERSION_KEY, null);
+        }
+
+        if (identifier == null) {
+            // Should not happen, fall back to deduplicating identical reports.
+            return statusReport.toString();
+        }
+
+        String status = statusReport.optString(STATUS_KEY, null);
+        return DEPLOYMENT_FAILED_STATUS.equals(status) ? status + ":" + identifier : identifier;
     }
 
     private String getDeploymentKeyFromStatusReportIdentifier(String statusReportIdentifier) {
@@ -140,11 +305,9 @@ public class CodePushTelemetryManager {
         }
     }
 
-    private String getPackageStatusReportIdentifier(ReadableMap updatePackage) {
+    private String getPackageStatusReportIdentifier(String deploymentKey, String label) {
         // Because deploymentKeys can be dynamically switched, we use a
         // combination of the deploymentKey and label as the packageIdentifier.
-        String deploymentKey = CodePushUtils.tryGetString(updatePackage, DEPLOYMENT_KEY_KEY);
-        String label = CodePushUtils.tryGetString(updatePackage, LABEL_KEY);
         if (deploymentKey != null && label != null) {
             return deploymentKey + ":" + label;
         } else {
@@ -152,7 +315,17 @@ public class CodePushTelemetryManager {
         }
     }
 
+    // Queued reports will be delivered before any new one, so the newest queued report
+    // counts as the previous one.
     private String getPreviousStatusReportIdentifier() {
+        List<JSONObject> queuedStatusReports = mStatusReportQueue.getAll();
+        for (int i = queuedStatusReports.size() - 1; i >= 0; i--) {
+            JSONObject statusReport = queuedStatusReports.get(i);
+            if (!DEPLOYMENT_FAILED_STATUS.equals(statusReport.optString(STATUS_KEY, null))) {
+                return getStatusReportKey(statusReport);
+            }
+        }
+
         return mSettings.getString(LAST_DEPLOYMENT_REPORT_KEY, null);
     }
 
@@ -170,6 +343,6 @@ public class CodePushTelemetryManager {
     }
 
     private void saveStatusReportedForIdentifier(String appVersionOrPackageIdentifier) {
-        mSettings.edit().putString(LAST_DEPLOYMENT_REPORT_KEY, appVersionOrPackageIdentifier).commit();
+        mSettings.edit().putString(LAST_DEPLOYMENT_REPORT_KEY, appVersionOrPackageIdentifier).apply();
     }
 }
@@ -1,5 +1,6 @@
 package com.microsoft.codepush.react;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
@@ -10,22 +11,126 @@ import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class CodePushUpdateManager {
 
     private String mDocumentsDirectory;
+    private CodePushDownloadHandler mDownloadHandler = new CodePushDownloadHandler();
+    private final CodePushDownloadRegistry mDownloadRegistry = new CodePushDownloadRegistry();
+    private final CodePushMetrics mMetrics = new CodePushMetrics();
+    private boolean mIsStreamingUnzipEnabled = false;
+    private boolean mIsZipPackageStorageEnabled = false;
+    private float mDisplayDensity = 1;
+    private int mUnzipThreadCount = CodePushConstants.DEFAULT_UNZIP_THREAD_COUNT;
+
+    private JSONObject mCurrentPackageInfo;
+    private String mCurrentPackageInfoPath;
+    private final Map<String, CodePushPackage> mPackages = new HashMap<>();
+
+    private final CodePushGarbageCollector mGarbageCollector;
+    private final CodePushChunkAssembler mChunkAssembler;
+    private CodePushBinaryContents mBinaryContents;
+    // Packages downloaded by this process are not referenced by codepush.json until they are
+    // installed, but must survive garbage collection until then.
+    private final Set<String> mDownloadedPackageHashes = Collections.synchronizedSet(new HashSet<String>());
 
     public CodePushUpdateManager(String documentsDirectory) {
         mDocumentsDirectory = documentsDirectory;
+        mChunkAssembler = new CodePushChunkAssembler(mDownloadHandler, mMetrics);
+        mGarbageCollector = new CodePushGarbageCollector(
+                CodePushUtils.appendPathComponent(documentsDirectory, CodePushConstants.TRASH_FOLDER_NAME), mMetrics);
+        // Blobs are only unused once the package files linking to them are gone for good.
+        mGarbageCollector.setOnTrashPurged(new Runnable() {
+            @Override
+            public void run() {
+                collectBlobGarbage();
+            }
+        });
+    }
+
+    public CodePushMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public CodePushDownloadRegistry getDownloadRegistry() {
+        return mDownloadRegistry;
+    }
+
+    public void setBinaryContents(CodePushBinaryContents binaryContents) {
+        mBinaryContents = binaryContents;
+    }
+
+    public void setDisplayDensity(float displayDensity) {
+        mDisplayDensity = displayDensity;
+    }
+
+    public void setDiskBudget(long diskBudget) {
+        mGarbageCollector.setDiskBudget(diskBudget);
+    }
+
+    public void setDownloadPreemptionEnabled(boolean isDownloadPreemptionEnabled) {
+        mDownloadRegistry.setPreemptionEnabled(isDownloadPreemptionEnabled);
+    }
+
+    public void setDownloadSegmentCount(int downloadSegmentCount) {
+        mDownloadHandler.setSegmentCount(downloadSegmentCount);
+    }
+
+    public void setStreamingUnzipEnabled(boolean isStreamingUnzipEnabled) {
+        mIsStreamingUnzipEnabled = isStreamingUnzipEnabled;
+    }
+
+    public void setUnzipThreadCount(int unzipThreadCount) {
+        mUnzipThreadCount = unzipThreadCount;
+    }
+
+    public void setZipPackageStorageEnabled(boolean isZipPackageStorageEnabled) {
+        mIsZipPackageStorageEnabled = isZipPackageStorageEnabled;
     }
 
     private String getDownloadFilePath() {
         return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.DOWNLOAD_FILE_NAME);
     }
 
-    private String getUnzippedFolderPath() {
-        return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.UNZIPPED_FOLDER_NAME);
+    // Packages are assembled in their staging folder, which is only renamed to the package folder
+    // once the package is complete, so that a package folder is never partially written.
+    private String getStagingFolderPath(String packageHash) {
+        return getPackageFolderPath(packageHash) + CodePushConstants.STAGING_FOLDER_SUFFIX;
+    }
+
+    // For diff updates, the files kept from the current package are copied here, and the
+    // extracted update contents are then moved over them.
+    private String getBaseFolderPath(String packageHash) {
+        return getPackageFolderPath(packageHash) + CodePushConstants.BASE_FOLDER_SUFFIX;
+    }
+
+    // Exists once copying the binary's contents failed verification. It is in the CodePush folder, so
+    // it goes away with the updates when the binary changes.
+    private String getBinaryContentsMismatchFilePath() {
+        return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.BINARY_CONTENTS_MISMATCH_FILE_NAME);
+    }
+
+    // Whether diff updates can be applied when there is no current package, in which case the update
+    // check sends the binary's hash.
+    public boolean canApplyDiffToBinary() {
+        return mBinaryContents != null && !FileUtils.fileAtPathExists(getBinaryContentsMismatchFilePath())
+                && mBinaryContents.isAvailable();
+    }
+
+    private CodePushBlobStore getBlobStore() {
+        if (!CodePushBlobStore.isSupported()) {
+            return null;
+        }
+
+        return new CodePushBlobStore(CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.BLOBS_FOLDER_NAME));
     }
 
     private String getDocumentsDirectory() {
@@ -45,32 +150,111 @@ public class CodePushUpdateManager {
         return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.STATUS_FILE);
     }
 
-    public JSONObject getCurrentPackageInfo() {
+    private String getStartupDescriptorPath() {
+        return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.STARTUP_DESCRIPTOR_FILE_NAME);
+    }
+
+    // Returns null if there is no usable startup descriptor, in which case the package
+    // metadata has to be read instead.
+    public CodePushStartupDescriptor getStartupDescriptor() {
+        return CodePushStartupDescriptor.readFromFile(getStartupDescriptorPath());
+    }
+
+    // codepush.json and the app.json files are parsed once and then served from memory. The
+    // cached codepush.json is never handed out or modified, callers get their own copies, and
+    // every change is written through to disk before the cache is updated.
+    public synchronized JSONObject getCurrentPackageInfo() {
+        return copyJsonObject(getCurrentPackageInfoSnapshot());
+    }
+
+    private synchronized JSONObject getCurrentPackageInfoSnapshot() {
         String statusFilePath = getStatusFilePath();
+        if (mCurrentPackageInfo != null && statusFilePath.equals(mCurrentPackageInfoPath)) {
+            return mCurrentPackageInfo;
+        }
+
+        JSONObject packageInfo;
         if (!FileUtils.fileAtPathExists(statusFilePath)) {
-            return new JSONObject();
+            packageInfo = new JSONObject();
+        } else {
+            try {
+                packageInfo = CodePushUtils.getJsonObjectFromFile(statusFilePath);
+            } catch (IOException e) {
+                // Should not happen.
+                throw new CodePushUnknownException("Error getting current package info", e);
+            }
         }
 
+        mCurrentPackageInfo = packageInfo;
+        mCurrentPackageInfoPath = statusFilePath;
+        return packageInfo;
+    }
+
+    public synchronized void updateCurrentPackageInfo(JSONObject packageInfo) {
+        String statusFilePath = getStatusFilePath();
+        // A stale descriptor must not outlive a crash between the two writes.
+        new File(getStartupDescriptorPath()).delete();
         try {
-            return CodePushUtils.getJsonObjectFromFile(statusFilePath);
+            CodePushUtils.writeJsonToFile(packageInfo, statusFilePath);
         } catch (IOException e) {
             // Should not happen.
-            throw new CodePushUnknownException("Error getting current package info", e);
+            throw new CodePushUnknownException("Error updating current package info", e);
         }
+
+        mCurrentPackageInfo = copyJsonObject(packageInfo);
+        mCurrentPackageInfoPath = statusFilePath;
+        saveStartupDescriptor(packageInfo.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null));
     }
 
-    public void updateCurrentPackageInfo(JSONObject packageInfo) {
+    // Saves the descriptor of whichever package is current when this runs, for launches that had to
+    // read the package metadata, e.g. the first one after upgrading from a version without descriptors.
+    public synchronized void saveStartupDescriptor() {
+        saveStartupDescriptor(getCurrentPackageHash());
+    }
+
+    private void saveStartupDescriptor(String currentPackageHash) {
+        CodePushStartupDescriptor startupDescriptor;
+        if (currentPackageHash == null) {
+            startupDescriptor = new CodePushStartupDescriptor(null, null, null, -1);
+        } else {
+            CodePushPackage currentPackage = getPackage(currentPackageHash);
+            if (currentPackage == null) {
+                return;
+            }
+
+            long binaryModifiedTime = -1;
+            try {
+                String binaryModifiedTimeString = currentPackage.getBinaryModifiedTime();
+                if (binaryModifiedTimeString != null) {
+                    binaryModifiedTime = Long.parseLong(binaryModifiedTimeString);
+                }
+            } catch (NumberFormatException e) {
+                // The descriptor will not match the binary, so the metadata is checked at startup.
+            }
+
+            startupDescriptor = new CodePushStartupDescriptor(currentPackageHash,
+                    currentPackage.getRelativeBundlePath(), currentPackage.getAppVersion(), binaryModifiedTime);
+        }
+
         try {
-            CodePushUtils.writeJsonToFile(packageInfo, getStatusFilePath());
+            startupDescriptor.writeToFile(getStartupDescriptorPath());
         } catch (IOException e) {
+            // Startup falls back to reading the package metadata.
+            CodePushUtils.log("Unable to save startup descriptor: " + e.getMessage());
+        }
+    }
+
+    private static JSONObject copyJsonObject(JSONObject json) {
+        try {
+            return new JSONObject(json.toString());
+        } catch (JSONException e) {
             // Should not happen.
-            throw new CodePushUnknownException("Error updating current package info", e);
+            throw new CodePushUnknownException("Unable to copy package metadata", e);
         }
     }
 
     public String getCurrentPackageFolderPath() {
-        JSONObject info = getCurrentPackageInfo();
-        String packageHash = info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null);
+        String packageHash = getCurrentPackageHash();
         if (packageHash == null) {
             return null;
         }
@@ -79,17 +263,21 @@ public class CodePushUpdateManager {
     }
 
     public String getCurrentPackageBundlePath(String bundleFileName) {
-        String packageFolder = getCurrentPackageFolderPath();
-        if (packageFolder == null) {
+        String packageHash = getCurrentPackageHash();
+        if (packageHash == null) {
             return null;
         }
 
-        JSONObject currentPackage = getCurrentPackage();
+        CodePushPackage currentPackage = getPackage(packageHash);
         if (currentPackage == null) {
             return null;
         }
 
-        String relativeBundlePath = currentPackage.optString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, null);
+        return getPackageBundlePath(packageHash, currentPackage.getRelativeBundlePath(), bundleFileName);
+    }
+
+    public String getPackageBundlePath(String packageHash, String relativeBundlePath, String bundleFileName) {
+        String packageFolder = getPackageFolderPath(packageHash);
         if (relativeBundlePath == null) {
             return CodePushUtils.appendPathComponent(packageFolder, bundleFileName);
         } else {
@@ -101,17 +289,15 @@ public class CodePushUpdateManager {
         return CodePushUtils.appendPathComponent(getCodePushPath(), packageHash);
     }
 
-    public String getCurrentPackageHash() {
-        JSONObject info = getCurrentPackageInfo();
-        return info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null);
+    public synchronized String getCurrentPackageHash() {
+        return getCurrentPackageInfoSnapshot().optString(CodePushConstants.CURRENT_PACKAGE_KEY, null);
     }
 
-    public String getPreviousPackageHash() {
-        JSONObject info = getCurrentPackageInfo();
-        return info.optString(CodePushConstants.PREVIOUS_PACKAGE_KEY, null);
+    public synchronized String getPreviousPackageHash() {
+        return getCurrentPackageInfoSnapshot().optString(CodePushConstants.PREVIOUS_PACKAGE_KEY, null);
     }
 
-    public JSONObject getCurrentPackage() {
+    public CodePushPackage getCurrentPackage() {
         String packageHash = getCurrentPackageHash();
         if (packageHash == null) {
             return null;
@@ -120,7 +306,7 @@ public class CodePushUpdateManager {
         return getPackage(packageHash);
     }
 
-    public JSONObject getPreviousPackage() {
+    public CodePushPackage getPreviousPackage() {
         String packageHash = getPreviousPackageHash();
         if (packageHash == null) {
             return null;
@@ -129,116 +315,191 @@ public class CodePushUpdateManager {
         return getPackage(packageHash);
     }
 
-    public JSONObject getPackage(String packageHash) {
-        String folderPath = getPackageFolderPath(packageHash);
-        String packageFilePath = CodePushUtils.appendPathComponent(folderPath, CodePushConstants.PACKAGE_FILE_NAME);
-        try {
-            return CodePushUtils.getJsonObjectFromFile(packageFilePath);
-        } catch (IOException e) {
-            return null;
-        }
-    }
+    // Packages are immutable, so the cached instance is returned as it is.
+    public synchronized CodePushPackage getPackage(String packageHash) {
+        String packageFilePath = getPackageFilePath(packageHash);
+        CodePushPackage packageMetadata = mPackages.get(packageFilePath);
+        if (packageMetadata == null) {
+            try {
+                packageMetadata = CodePushPackage.fromJson(CodePushUtils.getJsonObjectFromFile(packageFilePath));
+            } catch (IOException e) {
+                return null;
+            }
 
-    public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName,
-                                DownloadProgressCallback progressCallback,
-                                String stringPublicKey) throws IOException {
-        String newUpdateHash = updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
-        String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
-        String newUpdateMetadataPath = CodePushUtils.appendPathComponent(newUpdateFolderPath, CodePushConstants.PACKAGE_FILE_NAME);
-        if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
-            // This removes any stale data in newPackageFolderPath that could have been left
-            // uncleared due to a crash or error during the download or install process.
-            FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+            mPackages.put(packageFilePath, packageMetadata);
         }
 
-        String downloadUrlString = updatePackage.optString(CodePushConstants.DOWNLOAD_URL_KEY, null);
-        HttpURLConnection connection = null;
-        BufferedInputStream bin = null;
-        FileOutputStream fos = null;
-        BufferedOutputStream bout = null;
-        File downloadFile = null;
-        boolean isZip = false;
-
-        // Download the file while checking if it is a zip and notifying client of progress.
-        try {
-            URL downloadUrl = new URL(downloadUrlString);
-            connection = (HttpURLConnection) (downloadUrl.openConnection());
+        return packageMetadata;
+    }
 
-            long totalBytes = connection.getContentLength();
-            long receivedBytes = 0;
+    private String getPackageFilePath(String packageHash) {
+        return CodePushUtils.appendPathComponent(getPackageFolderPath(packageHash), CodePushConstants.PACKAGE_FILE_NAME);
+    }
 
-            bin = new BufferedInputStream(connection.getInputStream());
-            File downloadFolder = new File(getCodePushPath());
-            downloadFolder.mkdirs();
-            downloadFile = new File(downloadFolder, CodePushConstants.DOWNLOAD_FILE_NAME);
-            fos = new FileOutputStream(downloadFile);
-            bout = new BufferedOutputStream(fos, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
-            byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
-            byte[] header = new byte[4];
+    // Saves the metadata into the staged package, and then renames it to the package folder in one step.
+    private synchronized void savePackage(CodePushPackage packageMetadata, String stagedFolderPath) throws IOException {
+        String packageHash = packageMetadata.getPackageHash();
+        FileUtils.writeStringToFile(packageMetadata.toJsonString(), CodePushUtils.appendPathComponent(stagedFolderPath, CodePushConstants.PACKAGE_FILE_NAME));
+        File packageFolder = new File(getPackageFolderPath(packageHash));
+        if (!new File(stagedFolderPath).renameTo(packageFolder)) {
+            throw new IOException("Unable to move the staged package " + stagedFolderPath + " to " + packageFolder.getAbsolutePath() + ".");
+        }
 
-            int numBytesRead = 0;
-            while ((numBytesRead = bin.read(data, 0, CodePushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
-                if (receivedBytes < 4) {
-                    for (int i = 0; i < numBytesRead; i++) {
-                        int headerOffset = (int) (receivedBytes) + i;
-                        if (headerOffset >= 4) {
-                            break;
-                        }
+        mPackages.put(getPackageFilePath(packageHash), packageMetadata);
+    }
 
-                        header[headerOffset] = data[i];
-                    }
-                }
+    // Only moves the folder into the trash, so this is cheap enough for the install path.
+    private synchronized void deletePackageFolder(String packageHash) {
+        mPackages.remove(getPackageFilePath(packageHash));
+        mGarbageCollector.moveToTrash(new File(getPackageFolderPath(packageHash)));
+    }
 
-                receivedBytes += numBytesRead;
-                bout.write(data, 0, numBytesRead);
-                progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
+    // Returns the metadata of the downloaded package, as it was saved.
+    public CodePushPackage downloadPackage(CodePushPackage updatePackage, String expectedBundleFileName,
+                                           DownloadProgressCallback progressCallback,
+                                           String stringPublicKey) throws IOException {
+        String newUpdateHash = updatePackage.getPackageHash();
+        mDownloadedPackageHashes.add(newUpdateHash);
+        boolean isSaved = false;
+        try {
+            CodePushPackage savedPackage = downloadAndSavePackage(updatePackage, expectedBundleFileName, progressCallback, stringPublicKey);
+            isSaved = true;
+            return savedPackage;
+        } finally {
+            // A failed download leaves nothing worth keeping, so garbage collection may remove its folders.
+            if (!isSaved) {
+                mDownloadedPackageHashes.remove(newUpdateHash);
             }
+        }
+    }
 
-            if (totalBytes != receivedBytes) {
-                throw new CodePushUnknownException("Received " + receivedBytes + " bytes, expected " + totalBytes);
-            }
+    private CodePushPackage downloadAndSavePackage(CodePushPackage updatePackage, String expectedBundleFileName,
+                                                   DownloadProgressCallback progressCallback,
+                                                   String stringPublicKey) throws IOException {
+        long downloadPackageStartTime = mMetrics.start();
+        String newUpdateHash = updatePackage.getPackageHash();
+        CodePushPackageProgress packageProgress = new CodePushPackageProgress(progressCallback);
+        // This removes any stale data that could have been left uncleared due to a crash or
+        // error during the download or install process.
+        if (FileUtils.fileAtPathExists(getPackageFolderPath(newUpdateHash))) {
+            deletePackageFolder(newUpdateHash);
+        }
 
-            isZip = ByteBuffer.wrap(header).getInt() == 0x504b0304;
-        } catch (MalformedURLException e) {
-            throw new CodePushMalformedDataException(downloadUrlString, e);
-        } finally {
-            try {
-                if (bout != null) bout.close();
-                if (fos != null) fos.close();
-                if (bin != null) bin.close();
-                if (connection != null) connection.disconnect();
-            } catch (IOException e) {
-                throw new CodePushUnknownException("Error closing IO resources.", e);
+        String stagingFolderPath = getStagingFolderPath(newUpdateHash);
+        String baseFolderPath = getBaseFolderPath(newUpdateHash);
+        mGarbageCollector.moveToTrash(new File(stagingFolderPath));
+        mGarbageCollector.moveToTrash(new File(baseFolderPath));
+        // The folder in which the package is assembled, see savePackage().
+        String newUpdateFolderPath = stagingFolderPath;
+
+        // Download the file while checking if it is a zip and notifying client of progress.
+        String downloadUrlString = updatePackage.getDownloadUrl();
+        File downloadFile = new File(getDownloadFilePath());
+        // Zip contents are extracted straight into the staging folder. This collects the file
+        // hashes of the update contents as they are written to disk.
+        CodePushUpdateManifest unzippedManifest = new CodePushUpdateManifest();
+        boolean isZip;
+        // Whether the package is kept as the downloaded archive, see CodePushPackageArchive.
+        boolean isArchived = false;
+        long phaseStartTime = mMetrics.start();
+        // Keeping the archive as the package needs it on disk, so that takes precedence.
+        if (mIsStreamingUnzipEnabled && !mIsZipPackageStorageEnabled) {
+            // Zip contents are extracted while they are being downloaded.
+            isZip = mDownloadHandler.downloadAndUnzip(downloadUrlString, downloadFile, stagingFolderPath, unzippedManifest,
+                    packageProgress.getDownloadCallback());
+            mMetrics.record(CodePushMetrics.Phase.DOWNLOAD, phaseStartTime,
+                    isZip ? updatePackage.getPackageSize() : downloadFile.length(), unzippedManifest.size());
+        } else {
+            // If a previous attempt to download this package was interrupted, this resumes it.
+            isZip = mDownloadHandler.download(newUpdateHash, downloadUrlString, downloadFile, packageProgress.getDownloadCallback());
+            long downloadedBytes = downloadFile.length();
+            mMetrics.record(CodePushMetrics.Phase.DOWNLOAD, phaseStartTime, downloadedBytes, 1);
+            if (isZip && mIsZipPackageStorageEnabled && !CodePushPackageArchive.hasEntry(downloadFile, CodePushConstants.DIFF_MANIFEST_FILE_NAME)) {
+                // Diff updates are still merged into a regular package folder. The hash of a full
+                // update is only verified if it is signed, see below.
+                boolean isSigned = CodePushPackageArchive.hasEntry(downloadFile,
+                        CodePushConstants.CODE_PUSH_FOLDER_PREFIX + "/" + CodePushConstants.BUNDLE_JWT_FILE);
+                phaseStartTime = mMetrics.start();
+                CodePushPackageArchive.storeArchive(downloadFile, stagingFolderPath, mDisplayDensity, unzippedManifest, isSigned, mUnzipThreadCount);
+                mMetrics.record(CodePushMetrics.Phase.STORE_ARCHIVE, phaseStartTime, downloadedBytes, unzippedManifest.size());
+                isArchived = true;
+            } else if (isZip) {
+                // Unzip the downloaded file and then delete the zip
+                phaseStartTime = mMetrics.start();
+                FileUtils.unzipFile(downloadFile, stagingFolderPath, unzippedManifest, mUnzipThreadCount);
+                mMetrics.record(CodePushMetrics.Phase.UNZIP, phaseStartTime, downloadedBytes, unzippedManifest.size());
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
             }
         }
 
         if (isZip) {
-            // Unzip the downloaded file and then delete the zip
-            String unzippedFolderPath = getUnzippedFolderPath();
-            FileUtils.unzipFile(downloadFile, unzippedFolderPath);
-            FileUtils.deleteFileOrFolderSilently(downloadFile);
-
             // Merge contents with current update based on the manifest
-            String diffManifestFilePath = CodePushUtils.appendPathComponent(unzippedFolderPath,
+            String diffManifestFilePath = CodePushUtils.appendPathComponent(stagingFolderPath,
                     CodePushConstants.DIFF_MANIFEST_FILE_NAME);
             boolean isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
+            CodePushUpdateManifest packageManifest = new CodePushUpdateManifest();
             if (isDiffUpdate) {
+                // The current package must stay intact, so the files it shares with the update are
+                // copied (or linked), and the changed files are moved over them.
                 String currentPackageFolderPath = getCurrentPackageFolderPath();
-                CodePushUpdateUtils.copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newUpdateFolderPath);
+                boolean isDiffAgainstBinary = currentPackageFolderPath == null;
+                if (isDiffAgainstBinary) {
+                    // The update was diffed against the binary's contents, which are copied out of the
+                    // APK to play the part of the current package.
+                    phaseStartTime = mMetrics.start();
+                    materializeBinaryContents(baseFolderPath, CodePushUpdateUtils.getDeletedFilePaths(diffManifestFilePath), packageManifest);
+                    mMetrics.record(CodePushMetrics.Phase.BINARY_BASE, phaseStartTime, -1, packageManifest.size());
+                    currentPackageFolderPath = baseFolderPath;
+                } else if (CodePushPackageArchive.isArchived(currentPackageFolderPath)) {
+                    // All of the current package's files are needed now.
+                    phaseStartTime = mMetrics.start();
+                    CodePushPackageArchive.extractAllFiles(currentPackageFolderPath);
+                    mMetrics.record(CodePushMetrics.Phase.UNZIP, phaseStartTime);
+                }
+
+                phaseStartTime = mMetrics.start();
+                int patchedFileCount = CodePushUpdateUtils.applyPatches(diffManifestFilePath, currentPackageFolderPath,
+                        stagingFolderPath, unzippedManifest);
+                if (patchedFileCount > 0) {
+                    mMetrics.record(CodePushMetrics.Phase.PATCH, phaseStartTime, -1, patchedFileCount);
+                }
+
+                mChunkAssembler.assembleChunkedFiles(diffManifestFilePath, currentPackageFolderPath, stagingFolderPath, unzippedManifest,
+                        packageProgress.getFetchCallback());
+
+                if (!isDiffAgainstBinary) {
+                    phaseStartTime = mMetrics.start();
+                    CodePushUpdateUtils.copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, baseFolderPath,
+                            packageManifest, getBlobStore());
+                    mMetrics.record(CodePushMetrics.Phase.DIFF_COPY, phaseStartTime, -1, packageManifest.size());
+                }
+
                 File diffManifestFile = new File(diffManifestFilePath);
                 diffManifestFile.delete();
+                unzippedManifest.removeFile(CodePushConstants.DIFF_MANIFEST_FILE_NAME);
+
+                phaseStartTime = mMetrics.start();
+                FileUtils.moveDirectoryContents(stagingFolderPath, baseFolderPath);
+                mMetrics.record(CodePushMetrics.Phase.MERGE, phaseStartTime, -1, unzippedManifest.size());
+                // Only empty folders are left.
+                mGarbageCollector.moveToTrash(new File(stagingFolderPath));
+                newUpdateFolderPath = baseFolderPath;
             }
 
-            FileUtils.copyDirectoryContents(unzippedFolderPath, newUpdateFolderPath);
-            FileUtils.deleteFileAtPathSilently(unzippedFolderPath);
+            packageManifest.addAll(unzippedManifest);
 
             // For zip updates, we need to find the relative path to the jsBundle and save it in the
             // metadata so that we can find and run it easily the next time.
-            String relativeBundlePath = CodePushUpdateUtils.findJSBundleInUpdateContents(newUpdateFolderPath, expectedBundleFileName);
+            phaseStartTime = mMetrics.start();
+            String relativeBundlePath = isArchived ?
+                    CodePushPackageArchive.findJSBundle(newUpdateFolderPath, expectedBundleFileName) :
+                    CodePushUpdateUtils.findJSBundleInUpdateContents(newUpdateFolderPath, expectedBundleFileName);
+            mMetrics.record(CodePushMetrics.Phase.FIND_BUNDLE, phaseStartTime);
 
             if (relativeBundlePath == null) {
                 throw new CodePushInvalidUpdateException("Update is invalid - A JS bundle file named \"" + expectedBundleFileName + "\" could not be found within the downloaded contents. Please check that you are releasing your CodePush updates using the exact same JS bundle file name that was shipped with your app's binary.");
             } else {
+                String newUpdateMetadataPath = CodePushUtils.appendPathComponent(newUpdateFolderPath, CodePushConstants.PACKAGE_FILE_NAME);
                 if (FileUtils.fileAtPathExists(newUpdateMetadataPath)) {
                     File metadataFileFromOldUpdate = new File(newUpdateMetadataPath);
                     metadataFileFromOldUpdate.delete();
@@ -257,8 +518,10 @@ public class CodePushUpdateManager {
 
                 if (isSignatureVerificationEnabled) {
                     if (isSignatureAppearedInBundle) {
-                        CodePushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                        verifyManifestHash(packageManifest, newUpdateHash);
+                        phaseStartTime = mMetrics.start();
                         CodePushUpdateUtils.verifyUpdateSignature(newUpdateFolderPath, newUpdateHash, stringPublicKey);
+                        mMetrics.record(CodePushMetrics.Phase.VERIFY_SIGNATURE, phaseStartTime);
                     } else {
                         throw new CodePushInvalidUpdateException(
                                 "Error! Public key was provided but there is no JWT signature within app bundle to verify. " +
@@ -273,27 +536,77 @@ public class CodePushUpdateManager {
                                 "Warning! JWT signature exists in codepush update but code integrity check couldn't be performed because there is no public key configured. " +
                                 "Please ensure that public key is properly configured within your application."
                         );
-                        CodePushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                        verifyManifestHash(packageManifest, newUpdateHash);
                     } else {
                         if (isDiffUpdate) {
-                            CodePushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
+                            verifyManifestHash(packageManifest, newUpdateHash);
                         }
                     }
                 }
 
-                CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+                updatePackage = updatePackage.with(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+
+                // Keep the file hashes, so that a future diff update can reuse them for the files it keeps.
+                // Linking into the blob store may replace files, so it is done before the file stats are saved.
+                phaseStartTime = mMetrics.start();
+                // The files of an archived package are mostly not on disk, so they are not shared.
+                CodePushBlobStore blobStore = getBlobStore();
+                if (blobStore != null && !isArchived) {
+                    blobStore.addPackageFiles(newUpdateFolderPath, packageManifest);
+                }
+
+                packageManifest.writeToFile(CodePushUtils.appendPathComponent(newUpdateFolderPath, CodePushConstants.PACKAGE_MANIFEST_FILE_NAME),
+                        newUpdateFolderPath);
+                mMetrics.record(CodePushMetrics.Phase.SAVE_PACKAGE, phaseStartTime, -1, packageManifest.size());
             }
         } else {
             // File is a jsbundle, move it to a folder with the packageHash as its name
             FileUtils.moveFile(downloadFile, newUpdateFolderPath, expectedBundleFileName);
         }
 
-        // Save metadata to the folder.
-        CodePushUtils.writeJsonToFile(updatePackage, newUpdateMetadataPath);
+        packageProgress.complete();
+        // Save metadata to the folder, which makes the package valid.
+        savePackage(updatePackage, newUpdateFolderPath);
+        mMetrics.record(CodePushMetrics.Phase.DOWNLOAD_PACKAGE, downloadPackageStartTime, updatePackage.getPackageSize(), -1);
+        return updatePackage;
+    }
+
+    // Extracts the files that an archived package needs at displayDensity, if they are missing.
+    // Does nothing for other packages.
+    public void extractArchivedPackageFiles(String packageHash, float displayDensity) {
+        try {
+            CodePushPackageArchive.extractFilesForDensity(getPackageFolderPath(packageHash), displayDensity);
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to extract the files of package " + packageHash + ": " + e.getMessage());
+        }
+    }
+
+    // The deleted files of the diff update are skipped. Patched and chunked files are still copied,
+    // since their new version is created from the old one, and replaces it when the update is merged.
+    private void materializeBinaryContents(String folderPath, Set<String> deletedFilePaths, CodePushUpdateManifest packageManifest) throws IOException {
+        if (mBinaryContents == null || !mBinaryContents.isAvailable()) {
+            throw new CodePushInvalidUpdateException("Update is invalid - it is a diff update, but there is no current package and the binary's contents are not available.");
+        }
+
+        try {
+            mBinaryContents.materialize(folderPath, deletedFilePaths, packageManifest);
+        } catch (CodePushInvalidUpdateException e) {
+            // The APK doesn't contain the files the manifest was created from, so don't ask for
+            // diffs against the binary again. The next update check gets the full package.
+            FileUtils.writeStringToFile(e.getMessage(), getBinaryContentsMismatchFilePath());
+            throw e;
+        }
     }
 
-    public void installPackage(JSONObject updatePackage, boolean removePendingUpdate) {
-        String packageHash = updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
+    private void verifyManifestHash(CodePushUpdateManifest manifest, String expectedHash) throws IOException {
+        long startTime = mMetrics.start();
+        CodePushUpdateUtils.verifyManifestHash(manifest, expectedHash);
+        mMetrics.record(CodePushMetrics.Phase.VERIFY_HASH, startTime, -1, manifest.size());
+    }
+
+    public synchronized void installPackage(CodePushPackage updatePackage, boolean removePendingUpdate) {
+        long startTime = mMetrics.start();
+        String packageHash = updatePackage.getPackageHash();
         JSONObject info = getCurrentPackageInfo();
 
         String currentPackageHash = info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null);
@@ -303,14 +616,13 @@ public class CodePushUpdateManager {
         }
 
         if (removePendingUpdate) {
-            String currentPackageFolderPath = getCurrentPackageFolderPath();
-            if (currentPackageFolderPath != null) {
-                FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
+            if (currentPackageHash != null) {
+                deletePackageFolder(currentPackageHash);
             }
         } else {
-            String previousPackageHash = getPreviousPackageHash();
+            String previousPackageHash = info.optString(CodePushConstants.PREVIOUS_PACKAGE_KEY, null);
             if (previousPackageHash != null && !previousPackageHash.equals(packageHash)) {
-                FileUtils.deleteDirectoryAtPath(getPackageFolderPath(previousPackageHash));
+                deletePackageFolder(previousPackageHash);
             }
 
             CodePushUtils.setJSONValueForKey(info, CodePushConstants.PREVIOUS_PACKAGE_KEY, info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null));
@@ -318,17 +630,85 @@ public class CodePushUpdateManager {
 
         CodePushUtils.setJSONValueForKey(info, CodePushConstants.CURRENT_PACKAGE_KEY, packageHash);
         updateCurrentPackageInfo(info);
+        mMetrics.record(CodePushMetrics.Phase.INSTALL, startTime);
     }
 
-    public void rollbackPackage() {
+    public synchronized void rollbackPackage() {
         JSONObject info = getCurrentPackageInfo();
-        String currentPackageFolderPath = getCurrentPackageFolderPath();
-        FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
+        String currentPackageHash = info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null);
+        if (currentPackageHash != null) {
+            deletePackageFolder(currentPackageHash);
+        }
+
         CodePushUtils.setJSONValueForKey(info, CodePushConstants.CURRENT_PACKAGE_KEY, info.optString(CodePushConstants.PREVIOUS_PACKAGE_KEY, null));
         CodePushUtils.setJSONValueForKey(info, CodePushConstants.PREVIOUS_PACKAGE_KEY, null);
         updateCurrentPackageInfo(info);
     }
 
+    // Moves the folders that codepush.json doesn't refer to into the trash, e.g. what a crashed
+    // download left behind, then evicts files until the disk budget is met, and empties the
+    // trash in the background. The previous package is only evicted if isPreviousPackageNeeded
+    // is false, i.e. there is no pending update which could be rolled back to it.
+    // Must not run concurrently with downloadPackage().
+    public void collectGarbage(boolean isPreviousPackageNeeded) {
+        long startTime = mMetrics.start();
+        String codePushPath = getCodePushPath();
+        String currentPackageHash = getCurrentPackageHash();
+        String previousPackageHash = getPreviousPackageHash();
+        Set<String> namesToKeep = new HashSet<>();
+        namesToKeep.add(CodePushConstants.BLOBS_FOLDER_NAME);
+        namesToKeep.add(currentPackageHash);
+        namesToKeep.add(previousPackageHash);
+        synchronized (mDownloadedPackageHashes) {
+            namesToKeep.addAll(mDownloadedPackageHashes);
+        }
+
+        int trashedCount = mGarbageCollector.sweep(codePushPath, namesToKeep);
+        long evictedBytes = 0;
+        if (mGarbageCollector.getDiskBudget() > 0) {
+            // Blobs are linked from the package folders, so their size is already counted there.
+            File codePushFolder = new File(codePushPath);
+            long usedBytes = CodePushGarbageCollector.getSize(codePushFolder)
+                    - CodePushGarbageCollector.getSize(new File(codePushFolder, CodePushConstants.BLOBS_FOLDER_NAME));
+            List<List<File>> evictionCandidates = new ArrayList<>();
+            // An interrupted download can be started over.
+            File downloadFile = new File(getDownloadFilePath());
+            if (downloadFile.exists()) {
+                evictionCandidates.add(Arrays.asList(downloadFile, new File(codePushFolder, CodePushConstants.DOWNLOAD_STATE_FILE_NAME)));
+            }
+
+            synchronized (this) {
+                // A rollback on the main thread may have changed the packages in the meantime.
+                previousPackageHash = getPreviousPackageHash();
+                boolean isPreviousPackageEvictable = !isPreviousPackageNeeded && previousPackageHash != null
+                        && !previousPackageHash.equals(getCurrentPackageHash()) && !mDownloadedPackageHashes.contains(previousPackageHash);
+                if (isPreviousPackageEvictable) {
+                    evictionCandidates.add(Collections.singletonList(new File(getPackageFolderPath(previousPackageHash))));
+                }
+
+                evictedBytes = mGarbageCollector.enforceDiskBudget(usedBytes, evictionCandidates);
+                if (isPreviousPackageEvictable && !FileUtils.fileAtPathExists(getPackageFolderPath(previousPackageHash))) {
+                    CodePushUtils.log("Evicted the previous package " + previousPackageHash + " to stay within the disk budget.");
+                    mPackages.remove(getPackageFilePath(previousPackageHash));
+                    JSONObject info = getCurrentPackageInfo();
+                    CodePushUtils.setJSONValueForKey(info, CodePushConstants.PREVIOUS_PACKAGE_KEY, null);
+                    updateCurrentPackageInfo(info);
+                }
+            }
+        }
+
+        // Also empties what an earlier process left in the trash.
+        mGarbageCollector.schedulePurge();
+        mMetrics.record(CodePushMetrics.Phase.COLLECT_GARBAGE, startTime, evictedBytes, trashedCount);
+    }
+
+    private void collectBlobGarbage() {
+        CodePushBlobStore blobStore = getBlobStore();
+        if (blobStore != null) {
+            blobStore.collectGarbage();
+        }
+    }
+
     public void downloadAndReplaceCurrentBundle(String remoteBundleUrl, String bundleFileName) throws IOException {
         URL downloadUrl;
         HttpURLConnection connection = null;
@@ -362,7 +742,11 @@ public class CodePushUpdateManager {
         }
     }
 
-    public void clearUpdates() {
-        FileUtils.deleteDirectoryAtPath(getCodePushPath());
+    public synchronized void clearUpdates() {
+        mGarbageCollector.moveToTrash(new File(getCodePushPath()));
+        mDownloadedPackageHashes.clear();
+        mCurrentPackageInfo = null;
+        mCurrentPackageInfoPath = null;
+        mPackages.clear();
     }
 }
\ No newline at end of file
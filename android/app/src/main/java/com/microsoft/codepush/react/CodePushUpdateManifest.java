@@ -0,0 +1,180 @@
+package com.microsoft.codepush.react;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// Keeps the SHA-256 hash of every file in an update package, keyed by the file's path
+// relative to the package folder. Hashes are recorded while the files are written, so
+// that the package hash can be computed without reading the files back from disk.
+//
+// Once a package is installed, its manifest is saved next to app.json as a binary hash
+// index which also records the size and modification time of each file. A saved hash
+// is only reused while the file still has the same size and modification time.
+public class CodePushUpdateManifest {
+
+    // "CPHI", followed by the format version.
+    private static final int INDEX_MAGIC = 0x43504849;
+    private static final int INDEX_VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private final Map<String, FileEntry> mFileEntries = new HashMap<>();
+
+    public synchronized void addFileHash(String relativeFilePath, String hash) {
+        mFileEntries.put(relativeFilePath, new FileEntry(hash, -1, -1));
+    }
+
+    public synchronized void addAll(CodePushUpdateManifest manifest) {
+        synchronized (manifest) {
+            mFileEntries.putAll(manifest.mFileEntries);
+        }
+    }
+
+    public synchronized void clear() {
+        mFileEntries.clear();
+    }
+
+    public synchronized String getFileHash(String relativeFilePath) {
+        FileEntry entry = mFileEntries.get(relativeFilePath);
+        return entry != null ? entry.hash : null;
+    }
+
+    // Returns the saved hash of the file, or null if there is none or the file's size or
+    // modification time changed since it was saved.
+    public synchronized String getFileHash(String relativeFilePath, File file) {
+        FileEntry entry = mFileEntries.get(relativeFilePath);
+        if (entry == null || entry.size != file.length() || entry.lastModified != file.lastModified()) {
+            return null;
+        }
+
+        return entry.hash;
+    }
+
+    public synchronized Map<String, String> getFileHashes() {
+        Map<String, String> fileHashes = new HashMap<>(mFileEntries.size());
+        for (Map.Entry<String, FileEntry> entry : mFileEntries.entrySet()) {
+            fileHashes.put(entry.getKey(), entry.getValue().hash);
+        }
+
+        return fileHashes;
+    }
+
+    public synchronized int size() {
+        return mFileEntries.size();
+    }
+
+    public synchronized void removeFile(String relativeFilePath) {
+        mFileEntries.remove(relativeFilePath);
+    }
+
+    // Returns the sorted "<relativeFilePath>:<sha256FileHash>" entries that the package hash is computed from.
+    public synchronized ArrayList<String> getHashEntries() {
+        ArrayList<String> entries = new ArrayList<>(mFileEntries.size());
+        for (Map.Entry<String, FileEntry> fileEntry : mFileEntries.entrySet()) {
+            if (!CodePushUpdateUtils.isHashIgnored(fileEntry.getKey())) {
+                entries.add(fileEntry.getKey() + ":" + fileEntry.getValue().hash);
+            }
+        }
+
+        Collections.sort(entries);
+        return entries;
+    }
+
+    // Saves the manifest as a hash index, recording the current size and modification time
+    // of each file in packageFolderPath. The index is written to a temporary file first, so
+    // that a crash never leaves a truncated index behind.
+    public synchronized void writeToFile(String filePath, String packageFolderPath) throws IOException {
+        File indexFile = new File(filePath);
+        File tempFile = new File(filePath + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mFileEntries.size());
+            for (Map.Entry<String, FileEntry> fileEntry : mFileEntries.entrySet()) {
+                File file = new File(packageFolderPath, fileEntry.getKey());
+                out.writeUTF(fileEntry.getKey());
+                out.writeLong(file.length());
+                out.writeLong(file.lastModified());
+                out.write(hexToBytes(fileEntry.getValue().hash));
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Unable to move " + tempFile.getAbsolutePath() + " to " + indexFile.getAbsolutePath());
+        }
+    }
+
+    // Returns null if there is no readable index at filePath, e.g. for packages installed
+    // by an older version of the plugin. The caller then has to hash the files itself.
+    public static CodePushUpdateManifest readFromFile(String filePath) throws IOException {
+        File indexFile = new File(filePath);
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                CodePushUtils.log("Ignoring hash index with unknown format: " + filePath);
+                return null;
+            }
+
+            CodePushUpdateManifest manifest = new CodePushUpdateManifest();
+            int entryCount = in.readInt();
+            byte[] hash = new byte[HASH_LENGTH];
+            for (int i = 0; i < entryCount; i++) {
+                String relativeFilePath = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                in.readFully(hash);
+                manifest.mFileEntries.put(relativeFilePath, new FileEntry(bytesToHex(hash), size, lastModified));
+            }
+
+            return manifest;
+        } catch (EOFException e) {
+            CodePushUtils.log("Ignoring truncated hash index: " + filePath);
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+
+        return bytes;
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        return String.format("%064x", new java.math.BigInteger(1, bytes));
+    }
+
+    private static class FileEntry {
+        final String hash;
+        final long size;
+        final long lastModified;
+
+        FileEntry(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -13,26 +13,42 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.DigestInputStream;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class CodePushUpdateUtils {
 
     public static final String NEW_LINE = System.getProperty("line.separator");
 
+    private static final int HASH_THREAD_COUNT = 4;
+
+    private static final ThreadLocal<MessageDigest> sHashDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return createHashDigest();
+        }
+    };
+
+    private static final ThreadLocal<byte[]> sHashBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024 * 64];
+        }
+    };
+
     // Note: The hashing logic here must mirror the hashing logic in other native SDK's, as well as in the
     // CLI. Ensure that any changes here are propagated to these other locations.
     public static boolean isHashIgnored(String relativeFilePath) {
@@ -47,7 +63,7 @@ public class CodePushUpdateUtils {
                 || relativeFilePath.endsWith("/" + CODEPUSH_METADATA);
     }
 
-    private static void addContentsOfFolderToManifest(String folderPath, String pathPrefix, ArrayList<String> manifest) {
+    private static void addContentsOfFolder(String folderPath, String pathPrefix, List<String> relativePaths, List<File> files) {
         File folder = new File(folderPath);
         File[] folderFiles = folder.listFiles();
         for (File file : folderFiles) {
@@ -60,45 +76,82 @@ public class CodePushUpdateUtils {
             }
 
             if (file.isDirectory()) {
-                addContentsOfFolderToManifest(fullFilePath, relativePath, manifest);
+                addContentsOfFolder(fullFilePath, relativePath, relativePaths, files);
             } else {
-                try {
-                    manifest.add(relativePath + ":" + computeHash(new FileInputStream(file)));
-                } catch (FileNotFoundException e) {
-                    // Should not happen.
-                    throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
-                }
+                relativePaths.add(relativePath);
+                files.add(file);
             }
         }
     }
 
-    private static String computeHash(InputStream dataStream) {
-        MessageDigest messageDigest = null;
-        DigestInputStream digestInputStream = null;
+    static String computeFileHash(File file) {
+        // Digests and buffers are reused by each hashing thread instead of being allocated per file.
+        MessageDigest messageDigest = sHashDigest.get();
+        messageDigest.reset();
+        byte[] byteBuffer = sHashBuffer.get();
+        FileInputStream dataStream = null;
         try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
-            digestInputStream = new DigestInputStream(dataStream, messageDigest);
-            byte[] byteBuffer = new byte[1024 * 8];
-            while (digestInputStream.read(byteBuffer) != -1) ;
-        } catch (NoSuchAlgorithmException | IOException e) {
+            dataStream = new FileInputStream(file);
+            int bytesRead;
+            while ((bytesRead = dataStream.read(byteBuffer)) != -1) {
+                messageDigest.update(byteBuffer, 0, bytesRead);
+            }
+        } catch (IOException e) {
             // Should not happen.
             throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
         } finally {
             try {
-                if (digestInputStream != null) digestInputStream.close();
                 if (dataStream != null) dataStream.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
+        return getHashString(messageDigest);
+    }
+
+    public static MessageDigest createHashDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
+        }
+    }
+
+    public static String getHashString(MessageDigest messageDigest) {
         byte[] hash = messageDigest.digest();
         return String.format("%064x", new java.math.BigInteger(1, hash));
     }
 
     public static void copyNecessaryFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath) throws IOException {
-        FileUtils.copyDirectoryContents(currentPackageFolderPath, newPackageFolderPath);
+        copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newPackageFolderPath, null, null);
+    }
+
+    // If packageManifest is non-null, it receives the hashes of the files that were kept. A hash saved
+    // in the current package's hash index is carried forward as long as the file's size and modification
+    // time still match, every other file is hashed while it is copied. With a manifest and a blobStore,
+    // files with a known hash are hard-linked to their blobs instead of copied. Patched and chunked
+    // files are skipped, their new version was already written into the update contents.
+    public static void copyNecessaryFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath,
+                                                            CodePushUpdateManifest packageManifest, CodePushBlobStore blobStore) throws IOException {
         JSONObject diffManifest = CodePushUtils.getJsonObjectFromFile(diffManifestFilePath);
+        if (packageManifest != null) {
+            CodePushUpdateManifest currentPackageManifest = CodePushUpdateManifest.readFromFile(
+                    CodePushUtils.appendPathComponent(currentPackageFolderPath, CodePushConstants.PACKAGE_MANIFEST_FILE_NAME));
+            Set<String> replacedFilePaths = new HashSet<>();
+            addFilePaths(diffManifest.optJSONArray(CodePushConstants.DIFF_MANIFEST_PATCHED_FILES_KEY),
+                    CodePushConstants.PATCHED_FILE_PATH_KEY, replacedFilePaths);
+            addFilePaths(diffManifest.optJSONArray(CodePushConstants.DIFF_MANIFEST_CHUNKED_FILES_KEY),
+                    CodePushConstants.CHUNKED_FILE_PATH_KEY, replacedFilePaths);
+            List<Callable<Void>> copyTasks = new ArrayList<>();
+            addCopyTasks(new File(currentPackageFolderPath), new File(newPackageFolderPath), "",
+                    currentPackageManifest, packageManifest, blobStore, replacedFilePaths, copyTasks);
+            FileUtils.runTasks(copyTasks, HASH_THREAD_COUNT);
+        } else {
+            FileUtils.copyDirectoryContents(currentPackageFolderPath, newPackageFolderPath);
+        }
+
         try {
             JSONArray deletedFiles = diffManifest.getJSONArray("deletedFiles");
             for (int i = 0; i < deletedFiles.length(); i++) {
@@ -107,12 +160,115 @@ public class CodePushUpdateUtils {
                 if (fileToDelete.exists()) {
                     fileToDelete.delete();
                 }
+
+                if (packageManifest != null) {
+                    packageManifest.removeFile(fileNameToDelete);
+                }
             }
         } catch (JSONException e) {
             throw new CodePushUnknownException("Unable to copy files from current package during diff update", e);
         }
     }
 
+    // Applies the binary patches of a diff update. Each entry of "patchedFiles" names a file of the
+    // current package, the patch for it within the update contents, and the hash of the patched file.
+    // The patched file replaces the patch in the update contents (and in their manifest), so that it
+    // is merged like any other changed file. Returns the number of patched files.
+    public static int applyPatches(String diffManifestFilePath, String currentPackageFolderPath, String updateContentsFolderPath,
+                                   CodePushUpdateManifest updateContentsManifest) throws IOException {
+        JSONObject diffManifest = CodePushUtils.getJsonObjectFromFile(diffManifestFilePath);
+        JSONArray patchedFiles = diffManifest.optJSONArray(CodePushConstants.DIFF_MANIFEST_PATCHED_FILES_KEY);
+        if (patchedFiles == null) {
+            return 0;
+        }
+
+        try {
+            for (int i = 0; i < patchedFiles.length(); i++) {
+                JSONObject patchedFile = patchedFiles.getJSONObject(i);
+                String filePath = patchedFile.getString(CodePushConstants.PATCHED_FILE_PATH_KEY);
+                String patchPath = patchedFile.getString(CodePushConstants.PATCHED_FILE_PATCH_KEY);
+                String expectedHash = patchedFile.getString(CodePushConstants.PATCHED_FILE_HASH_KEY);
+                File currentFile = new File(currentPackageFolderPath, filePath);
+                File patchFile = new File(updateContentsFolderPath, patchPath);
+                File newFile = new File(updateContentsFolderPath, filePath);
+                if (!currentFile.isFile() || !patchFile.isFile() || filePath.equals(patchPath)) {
+                    throw new CodePushInvalidUpdateException("Update is invalid - the patch for \"" + filePath + "\" cannot be applied to the current package.");
+                }
+
+                newFile.getParentFile().mkdirs();
+                String hash = CodePushBinaryPatcher.applyPatch(currentFile, patchFile, newFile);
+                if (!hash.equals(expectedHash)) {
+                    newFile.delete();
+                    throw new CodePushInvalidUpdateException("Update is invalid - the patched \"" + filePath + "\" does not match its expected hash.");
+                }
+
+                patchFile.delete();
+                updateContentsManifest.removeFile(patchPath);
+                updateContentsManifest.addFileHash(filePath, hash);
+            }
+        } catch (JSONException e) {
+            throw new CodePushUnknownException("Unable to apply patches during diff update", e);
+        }
+
+        return patchedFiles.length();
+    }
+
+    // Returns the paths in the "deletedFiles" section of a diff update.
+    public static Set<String> getDeletedFilePaths(String diffManifestFilePath) throws IOException {
+        JSONObject diffManifest = CodePushUtils.getJsonObjectFromFile(diffManifestFilePath);
+        JSONArray deletedFiles = diffManifest.optJSONArray("deletedFiles");
+        Set<String> deletedFilePaths = new HashSet<>();
+        for (int i = 0; deletedFiles != null && i < deletedFiles.length(); i++) {
+            deletedFilePaths.add(deletedFiles.optString(i));
+        }
+
+        return deletedFilePaths;
+    }
+
+    private static void addFilePaths(JSONArray fileEntries, String pathKey, Set<String> filePaths) {
+        for (int i = 0; fileEntries != null && i < fileEntries.length(); i++) {
+            JSONObject fileEntry = fileEntries.optJSONObject(i);
+            if (fileEntry != null) {
+                filePaths.add(fileEntry.optString(pathKey));
+            }
+        }
+    }
+
+    private static void addCopyTasks(File currentFolder, File newFolder, String pathPrefix, final CodePushUpdateManifest currentPackageManifest,
+                                     final CodePushUpdateManifest packageManifest, final CodePushBlobStore blobStore,
+                                     Set<String> skippedFilePaths, List<Callable<Void>> copyTasks) {
+        newFolder.mkdirs();
+        for (final File currentFile : currentFolder.listFiles()) {
+            final String relativePath = pathPrefix + currentFile.getName();
+            final File newFile = new File(newFolder, currentFile.getName());
+            if (currentFile.isDirectory()) {
+                addCopyTasks(currentFile, newFile, relativePath + "/", currentPackageManifest, packageManifest, blobStore, skippedFilePaths, copyTasks);
+            } else if (relativePath.equals(CodePushConstants.PACKAGE_FILE_NAME) || relativePath.equals(CodePushConstants.PACKAGE_MANIFEST_FILE_NAME) ||
+                    skippedFilePaths.contains(relativePath)) {
+                // The metadata files of the current package are not part of the update contents,
+                // and the new versions of patched and chunked files are.
+            } else {
+                copyTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        String hash = currentPackageManifest != null ? currentPackageManifest.getFileHash(relativePath, currentFile) : null;
+                        if (hash == null) {
+                            MessageDigest messageDigest = sHashDigest.get();
+                            messageDigest.reset();
+                            FileUtils.copyFile(currentFile, newFile, messageDigest);
+                            hash = getHashString(messageDigest);
+                        } else if (blobStore == null || !blobStore.linkFile(hash, newFile)) {
+                            FileUtils.copyFile(currentFile, newFile);
+                        }
+
+                        packageManifest.addFileHash(relativePath, hash);
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
     public static String findJSBundleInUpdateContents(String folderPath, String expectedFileName) {
         File folder = new File(folderPath);
         File[] folderFiles = folder.listFiles();
@@ -155,22 +311,69 @@ public class CodePushUpdateUtils {
     // 1. Recursively generate a sorted array of format <relativeFilePath>: <sha256FileHash>
     // 2. JSON stringify the array
     // 3. SHA256-hash the result
+    public static String computeManifestHash(CodePushUpdateManifest manifest) {
+        //sort manifest strings to make sure, that they are completely equal with manifest strings has been generated in cli!
+        ArrayList<String> updateContentsManifest = manifest.getHashEntries();
+        CodePushUtils.log("Computing hash of " + updateContentsManifest.size() + " manifest entries.");
+
+        // The JSON array is serialized straight into the digest, rather than built as one string first.
+        MessageDigest messageDigest = createHashDigest();
+        ManifestSerializer serializer = new ManifestSerializer(messageDigest);
+        serializer.write('[');
+        for (int i = 0; i < updateContentsManifest.size(); i++) {
+            if (i > 0) {
+                serializer.write(',');
+            }
+
+            serializer.writeQuoted(updateContentsManifest.get(i));
+        }
+
+        serializer.write(']');
+        serializer.flush();
+        return getHashString(messageDigest);
+    }
+
+    // Hashes every file in the folder, HASH_THREAD_COUNT files at a time. Downloaded updates are
+    // checked with verifyManifestHash instead, against the hashes recorded while they were written.
     public static void verifyFolderHash(String folderPath, String expectedHash) {
         CodePushUtils.log("Verifying hash for folder path: " + folderPath);
-        ArrayList<String> updateContentsManifest = new ArrayList<>();
-        addContentsOfFolderToManifest(folderPath, "", updateContentsManifest);
-        //sort manifest strings to make sure, that they are completely equal with manifest strings has been generated in cli!
-        Collections.sort(updateContentsManifest);
-        JSONArray updateContentsJSONArray = new JSONArray();
-        for (String manifestEntry : updateContentsManifest) {
-            updateContentsJSONArray.put(manifestEntry);
+        final List<String> relativePaths = new ArrayList<>();
+        final List<File> files = new ArrayList<>();
+        addContentsOfFolder(folderPath, "", relativePaths, files);
+
+        // One task per thread, each taking the next file until there are none left, rather than
+        // one task per file.
+        final CodePushUpdateManifest updateContentsManifest = new CodePushUpdateManifest();
+        final AtomicInteger nextFileIndex = new AtomicInteger();
+        List<Callable<Void>> hashTasks = new ArrayList<>();
+        for (int i = 0; i < Math.min(files.size(), HASH_THREAD_COUNT); i++) {
+            hashTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int fileIndex;
+                    while ((fileIndex = nextFileIndex.getAndIncrement()) < files.size()) {
+                        updateContentsManifest.addFileHash(relativePaths.get(fileIndex), computeFileHash(files.get(fileIndex)));
+                    }
+
+                    return null;
+                }
+            });
         }
 
-        // The JSON serialization turns path separators into "\/", e.g. "CodePush\/assets\/image.png"
-        String updateContentsManifestString = updateContentsJSONArray.toString().replace("\\/", "/");
-        CodePushUtils.log("Manifest string: " + updateContentsManifestString);
+        try {
+            FileUtils.runTasks(hashTasks, HASH_THREAD_COUNT);
+        } catch (IOException e) {
+            // Should not happen, hashing failures are reported as CodePushUnknownException.
+            throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
+        }
+
+        verifyManifestHash(updateContentsManifest, expectedHash);
+    }
 
-        String updateContentsManifestHash = computeHash(new ByteArrayInputStream(updateContentsManifestString.getBytes()));
+    // Same check as verifyFolderHash, for file hashes that were recorded while the update
+    // contents were written, which avoids reading every file a second time.
+    public static void verifyManifestHash(CodePushUpdateManifest manifest, String expectedHash) {
+        String updateContentsManifestHash = computeManifestHash(manifest);
 
         CodePushUtils.log("Expected hash: " + expectedHash + ", actual hash: " + updateContentsManifestHash);
         if (!expectedHash.equals(updateContentsManifestHash)) {
@@ -264,4 +467,104 @@ public class CodePushUpdateUtils {
 
         CodePushUtils.log("The update contents succeeded the code signing check.");
     }
-}
\ No newline at end of file
+
+    // Writes a JSON string array as UTF-8 into a digest, escaping it the same way as
+    // JSONArray.toString() does, except for "/", which the CLI leaves unescaped.
+    private static class ManifestSerializer {
+        private final MessageDigest mMessageDigest;
+        private final byte[] mBuffer = new byte[1024 * 8];
+        private int mBufferLength = 0;
+
+        ManifestSerializer(MessageDigest messageDigest) {
+            mMessageDigest = messageDigest;
+        }
+
+        void writeQuoted(String value) {
+            write('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        write('\\');
+                        write(c);
+                        break;
+                    case '\t':
+                        write('\\');
+                        write('t');
+                        break;
+                    case '\b':
+                        write('\\');
+                        write('b');
+                        break;
+                    case '\n':
+                        write('\\');
+                        write('n');
+                        break;
+                    case '\r':
+                        write('\\');
+                        write('r');
+                        break;
+                    case '\f':
+                        write('\\');
+                        write('f');
+                        break;
+                    default:
+                        if (c <= 0x1F) {
+                            writeAscii(String.format("\\u%04x", (int) c));
+                        } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                            writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+                        } else {
+                            writeCodePoint(c);
+                        }
+                }
+            }
+
+            write('"');
+        }
+
+        void write(char c) {
+            writeByte(c);
+        }
+
+        private void writeAscii(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                writeByte(value.charAt(i));
+            }
+        }
+
+        private void writeCodePoint(int codePoint) {
+            if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+                // Unpaired surrogates are encoded as "?", like String.getBytes() does.
+                writeByte('?');
+            } else if (codePoint < 0x80) {
+                writeByte(codePoint);
+            } else if (codePoint < 0x800) {
+                writeByte(0xC0 | (codePoint >> 6));
+                writeByte(0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                writeByte(0xE0 | (codePoint >> 12));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                writeByte(0x80 | (codePoint & 0x3F));
+            } else {
+                writeByte(0xF0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                writeByte(0x80 | (codePoint & 0x3F));
+            }
+        }
+
+        private void writeByte(int b) {
+            if (mBufferLength == mBuffer.length) {
+                flush();
+            }
+
+            mBuffer[mBufferLength++] = (byte) b;
+        }
+
+        void flush() {
+            mMessageDigest.update(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+    }
+}
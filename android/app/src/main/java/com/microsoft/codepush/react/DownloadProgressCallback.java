@@ -1,5 +1,6 @@
 package com.microsoft.codepush.react;
 
 interface DownloadProgressCallback {
-    void call(DownloadProgress downloadProgress);
+    // Called for every chunk that was received, so implementations shouldn't allocate anything.
+    void call(long totalBytes, long receivedBytes);
 }
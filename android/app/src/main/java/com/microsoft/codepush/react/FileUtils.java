@@ -5,52 +5,200 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class FileUtils {
 
+    private static final int COPY_BUFFER_SIZE = 1024 * 64;
+    private static final int COPY_THREAD_COUNT = 4;
     private static final int WRITE_BUFFER_SIZE = 1024 * 8;
 
+    private static final ThreadLocal<byte[]> sCopyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+
     public static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath) throws IOException {
-        File sourceDir = new File(sourceDirectoryPath);
-        File destDir = new File(destinationDirectoryPath);
+        copyDirectoryContents(sourceDirectoryPath, destinationDirectoryPath, null);
+    }
+
+    // If manifest is non-null, the hash of each copied file is added to it, keyed by the
+    // file's path relative to destinationDirectoryPath.
+    public static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath,
+                                             CodePushUpdateManifest manifest) throws IOException {
+        copyDirectoryContents(sourceDirectoryPath, destinationDirectoryPath, manifest, "");
+    }
+
+    // Creates the directory skeleton first, and then copies the files on a bounded pool of
+    // worker threads. If a file fails to copy, the files that were not started yet are
+    // skipped and the first failure is rethrown, like a serial copy would stop at it.
+    private static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath,
+                                              CodePushUpdateManifest manifest, String pathPrefix) throws IOException {
+        List<Callable<Void>> copyTasks = new ArrayList<>();
+        addCopyTasks(new File(sourceDirectoryPath), new File(destinationDirectoryPath), manifest, pathPrefix, copyTasks);
+        runTasks(copyTasks, COPY_THREAD_COUNT);
+    }
+
+    private static void addCopyTasks(File sourceDir, File destDir, final CodePushUpdateManifest manifest,
+                                     String pathPrefix, List<Callable<Void>> copyTasks) {
         if (!destDir.exists()) {
             destDir.mkdir();
         }
 
-        for (File sourceFile : sourceDir.listFiles()) {
+        for (final File sourceFile : sourceDir.listFiles()) {
+            final String relativePath = pathPrefix + sourceFile.getName();
+            final File destFile = new File(destDir, sourceFile.getName());
             if (sourceFile.isDirectory()) {
-                copyDirectoryContents(
-                        CodePushUtils.appendPathComponent(sourceDirectoryPath, sourceFile.getName()),
-                        CodePushUtils.appendPathComponent(destinationDirectoryPath, sourceFile.getName()));
+                addCopyTasks(sourceFile, destFile, manifest, relativePath + "/", copyTasks);
             } else {
-                File destFile = new File(destDir, sourceFile.getName());
-                FileInputStream fromFileStream = null;
-                BufferedInputStream fromBufferedStream = null;
-                FileOutputStream destStream = null;
-                byte[] buffer = new byte[WRITE_BUFFER_SIZE];
-                try {
-                    fromFileStream = new FileInputStream(sourceFile);
-                    fromBufferedStream = new BufferedInputStream(fromFileStream);
-                    destStream = new FileOutputStream(destFile);
-                    int bytesRead;
-                    while ((bytesRead = fromBufferedStream.read(buffer)) > 0) {
-                        destStream.write(buffer, 0, bytesRead);
+                copyTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        MessageDigest messageDigest = manifest != null ? CodePushUpdateUtils.createHashDigest() : null;
+                        copyFile(sourceFile, destFile, messageDigest);
+                        if (manifest != null) {
+                            manifest.addFileHash(relativePath, CodePushUpdateUtils.getHashString(messageDigest));
+                        }
+
+                        return null;
                     }
-                } finally {
-                    try {
-                        if (fromFileStream != null) fromFileStream.close();
-                        if (fromBufferedStream != null) fromBufferedStream.close();
-                        if (destStream != null) destStream.close();
-                    } catch (IOException e) {
-                        throw new CodePushUnknownException("Error closing IO resources.", e);
+                });
+            }
+        }
+    }
+
+    public static void copyFile(File sourceFile, File destFile) throws IOException {
+        copyFile(sourceFile, destFile, null);
+    }
+
+    public static void copyFile(File sourceFile, File destFile, MessageDigest messageDigest) throws IOException {
+        // The destination may be a hard link into the blob store, which must not be written through.
+        destFile.delete();
+
+        FileInputStream fromFileStream = null;
+        FileOutputStream destStream = null;
+        try {
+            fromFileStream = new FileInputStream(sourceFile);
+            destStream = new FileOutputStream(destFile);
+            if (messageDigest == null) {
+                // Let the kernel move the bytes, without copying them through the Java heap.
+                FileChannel sourceChannel = fromFileStream.getChannel();
+                FileChannel destChannel = destStream.getChannel();
+                long size = sourceChannel.size();
+                long position = 0;
+                while (position < size) {
+                    long bytesTransferred = sourceChannel.transferTo(position, size - position, destChannel);
+                    if (bytesTransferred <= 0) {
+                        break;
+                    }
+
+                    position += bytesTransferred;
+                }
+            } else {
+                // The contents have to pass through the digest, so copy them through a reused buffer.
+                byte[] buffer = sCopyBuffer.get();
+                int bytesRead;
+                while ((bytesRead = fromFileStream.read(buffer)) > 0) {
+                    destStream.write(buffer, 0, bytesRead);
+                    messageDigest.update(buffer, 0, bytesRead);
+                }
+            }
+        } finally {
+            try {
+                if (fromFileStream != null) fromFileStream.close();
+                if (destStream != null) destStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Writes the rest of inputStream into destFile, passing it through messageDigest. Closes inputStream.
+    public static void copyStreamToFile(InputStream inputStream, File destFile, MessageDigest messageDigest) throws IOException {
+        FileOutputStream destStream = null;
+        try {
+            destStream = new FileOutputStream(destFile);
+            byte[] buffer = sCopyBuffer.get();
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) > 0) {
+                destStream.write(buffer, 0, bytesRead);
+                messageDigest.update(buffer, 0, bytesRead);
+            }
+        } finally {
+            try {
+                inputStream.close();
+                if (destStream != null) destStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Runs the tasks on up to maxThreadCount threads and waits for all of them. The first
+    // failure stops the tasks that have not started yet, and is rethrown.
+    static void runTasks(List<? extends Callable<Void>> tasks, int maxThreadCount) throws IOException {
+        int threadCount = Math.min(tasks.size(), maxThreadCount);
+        if (threadCount <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CodePushUnknownException("Unexpected error running file task.", e);
+                }
+            }
+
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    executor.shutdownNow();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
                     }
+
+                    throw new CodePushUnknownException("Unexpected error running file task.", cause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for file tasks.");
                 }
             }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -103,6 +251,38 @@ public class FileUtils {
         }
     }
 
+    // Moves the contents of sourceDirectoryPath into destinationDirectoryPath by renaming them,
+    // merging folders which exist in both and replacing files which do. Both have to be on the
+    // same filesystem. The (then empty) source folders are left in place.
+    public static void moveDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath) throws IOException {
+        moveDirectoryContents(new File(sourceDirectoryPath), new File(destinationDirectoryPath));
+    }
+
+    private static void moveDirectoryContents(File sourceDir, File destDir) throws IOException {
+        if (!destDir.exists()) {
+            destDir.mkdirs();
+        }
+
+        for (File sourceFile : sourceDir.listFiles()) {
+            File destFile = new File(destDir, sourceFile.getName());
+            if (sourceFile.isDirectory() && destFile.isDirectory()) {
+                moveDirectoryContents(sourceFile, destFile);
+                continue;
+            }
+
+            if (destFile.isDirectory() || (sourceFile.isDirectory() && destFile.exists())) {
+                // A file replaced a folder or the other way around.
+                deleteFileOrFolderSilently(destFile);
+            }
+
+            // rename() replaces an existing file atomically, and only replaces a hard link into
+            // the blob store without writing through it.
+            if (!sourceFile.renameTo(destFile)) {
+                throw new IOException("Unable to move " + sourceFile.getAbsolutePath() + " to " + destFile.getAbsolutePath() + ".");
+            }
+        }
+    }
+
     public static String readFileToString(String filePath) throws IOException {
         FileInputStream fin = null;
         BufferedReader reader = null;
@@ -124,67 +304,195 @@ public class FileUtils {
     }
 
     public static void unzipFile(File zipFile, String destination) throws IOException {
-        FileInputStream fileStream = null;
-        BufferedInputStream bufferedStream = null;
-        ZipInputStream zipStream = null;
+        unzipFile(zipFile, destination, null);
+    }
+
+    public static void unzipFile(File zipFile, String destination, CodePushUpdateManifest manifest) throws IOException {
+        unzipFile(zipFile, destination, manifest, CodePushConstants.DEFAULT_UNZIP_THREAD_COUNT);
+    }
+
+    // Extracts the archive using its central directory: all directories are created first,
+    // and then the file entries are inflated on up to threadCount threads, largest first so
+    // that a big entry does not end up running alone at the end. If manifest is non-null,
+    // the hash of each extracted file is added to it, keyed by the file's path relative to
+    // destination.
+    public static void unzipFile(File zipFile, String destination, final CodePushUpdateManifest manifest, int threadCount) throws IOException {
+        File destinationFolder = new File(destination);
+        if (destinationFolder.exists()) {
+            deleteFileOrFolderSilently(destinationFolder);
+        }
+
+        destinationFolder.mkdirs();
+
+        final ZipFile archive = new ZipFile(zipFile);
         try {
-            fileStream = new FileInputStream(zipFile);
-            bufferedStream = new BufferedInputStream(fileStream);
-            zipStream = new ZipInputStream(bufferedStream);
-            ZipEntry entry;
-
-            File destinationFolder = new File(destination);
-            if (destinationFolder.exists()) {
-                deleteFileOrFolderSilently(destinationFolder);
-            }
-            
-            destinationFolder.mkdirs();
-
-            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
-            while ((entry = zipStream.getNextEntry()) != null) {
-                String fileName = entry.getName();
-                File file = new File(destinationFolder, fileName);
+            List<ZipEntry> directoryEntries = new ArrayList<>();
+            List<ZipEntry> fileEntries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File file = new File(destinationFolder, entry.getName());
                 if (entry.isDirectory()) {
                     file.mkdirs();
+                    directoryEntries.add(entry);
                 } else {
-                    File parent = file.getParentFile();
-                    if (!parent.exists()) {
-                        parent.mkdirs();
-                    }
+                    file.getParentFile().mkdirs();
+                    fileEntries.add(entry);
+                }
+            }
 
-                    FileOutputStream fout = new FileOutputStream(file);
-                    try {
-                        int numBytesRead;
-                        while ((numBytesRead = zipStream.read(buffer)) != -1) {
-                            fout.write(buffer, 0, numBytesRead);
+            Collections.sort(fileEntries, new Comparator<ZipEntry>() {
+                @Override
+                public int compare(ZipEntry lhs, ZipEntry rhs) {
+                    long lhsSize = lhs.getSize();
+                    long rhsSize = rhs.getSize();
+                    return lhsSize < rhsSize ? 1 : (lhsSize == rhsSize ? 0 : -1);
+                }
+            });
+
+            List<Callable<Void>> unzipTasks = new ArrayList<>(fileEntries.size());
+            for (final ZipEntry entry : fileEntries) {
+                final File file = new File(destinationFolder, entry.getName());
+                unzipTasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        MessageDigest messageDigest = manifest != null ? CodePushUpdateUtils.createHashDigest() : null;
+                        extractZipEntry(archive, entry, file, messageDigest);
+                        if (manifest != null) {
+                            manifest.addFileHash(entry.getName(), CodePushUpdateUtils.getHashString(messageDigest));
                         }
-                    } finally {
-                        fout.close();
+
+                        return null;
                     }
-                }
+                });
+            }
+
+            runTasks(unzipTasks, threadCount);
+
+            // Writing the files changes the modification time of their directories, so these are set last.
+            for (ZipEntry entry : directoryEntries) {
                 long time = entry.getTime();
                 if (time > 0) {
-                    file.setLastModified(time);
+                    new File(destinationFolder, entry.getName()).setLastModified(time);
                 }
             }
         } finally {
-            try {
-                if (zipStream != null) zipStream.close();
-                if (bufferedStream != null) bufferedStream.close();
-                if (fileStream != null) fileStream.close();
-            } catch (IOException e) {
-                throw new CodePushUnknownException("Error closing IO resources.", e);
+            archive.close();
+        }
+    }
+
+    // Writes the entry to file, or only reads it if file is null. If messageDigest is non-null, the
+    // entry's contents are passed through it.
+    public static void extractZipEntry(ZipFile archive, ZipEntry entry, File file, MessageDigest messageDigest) throws IOException {
+        InputStream entryStream = archive.getInputStream(entry);
+        FileOutputStream fout = null;
+        try {
+            if (file != null) {
+                fout = new FileOutputStream(file);
+            }
+
+            byte[] buffer = sCopyBuffer.get();
+            int numBytesRead;
+            while ((numBytesRead = entryStream.read(buffer)) != -1) {
+                if (fout != null) {
+                    fout.write(buffer, 0, numBytesRead);
+                }
+
+                if (messageDigest != null) {
+                    messageDigest.update(buffer, 0, numBytesRead);
+                }
+            }
+        } finally {
+            entryStream.close();
+            if (fout != null) fout.close();
+        }
+
+        long time = entry.getTime();
+        if (file != null && time > 0) {
+            file.setLastModified(time);
+        }
+    }
+
+    // Extracts the entries of a zip archive as they are read from inputStream, which
+    // does not need to be backed by a file (e.g. it may be a network stream). The
+    // stream is left open, positioned after the last local entry of the archive.
+    public static void unzipStream(InputStream inputStream, String destination, CodePushUpdateManifest manifest) throws IOException {
+        ZipInputStream zipStream = new ZipInputStream(new FilterInputStream(inputStream) {
+            @Override
+            public void close() {
+                // Leave the source stream open for the caller.
+            }
+        });
+        try {
+            unzipEntries(zipStream, destination, manifest);
+        } finally {
+            zipStream.close();
+        }
+    }
+
+    private static void unzipEntries(ZipInputStream zipStream, String destination, CodePushUpdateManifest manifest) throws IOException {
+        ZipEntry entry;
+
+        File destinationFolder = new File(destination);
+        if (destinationFolder.exists()) {
+            deleteFileOrFolderSilently(destinationFolder);
+        }
+
+        destinationFolder.mkdirs();
+
+        byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+        while ((entry = zipStream.getNextEntry()) != null) {
+            String fileName = entry.getName();
+            File file = new File(destinationFolder, fileName);
+            if (entry.isDirectory()) {
+                file.mkdirs();
+            } else {
+                File parent = file.getParentFile();
+                if (!parent.exists()) {
+                    parent.mkdirs();
+                }
+
+                MessageDigest messageDigest = manifest != null ? CodePushUpdateUtils.createHashDigest() : null;
+                FileOutputStream fout = new FileOutputStream(file);
+                try {
+                    int numBytesRead;
+                    while ((numBytesRead = zipStream.read(buffer)) != -1) {
+                        fout.write(buffer, 0, numBytesRead);
+                        if (messageDigest != null) {
+                            messageDigest.update(buffer, 0, numBytesRead);
+                        }
+                    }
+                } finally {
+                    fout.close();
+                }
+
+                if (manifest != null) {
+                    manifest.addFileHash(fileName, CodePushUpdateUtils.getHashString(messageDigest));
+                }
+            }
+            long time = entry.getTime();
+            if (time > 0) {
+                file.setLastModified(time);
             }
         }
     }
 
+    // The content is written to a temporary file which then replaces filePath, so that a crash
+    // in the middle of the write never leaves a truncated file behind.
     public static void writeStringToFile(String content, String filePath) throws IOException {
-        PrintWriter out = null;
+        File file = new File(filePath);
+        File tempFile = new File(filePath + ".tmp");
+        FileOutputStream out = null;
         try {
-            out = new PrintWriter(filePath);
-            out.print(content);
+            out = new FileOutputStream(tempFile);
+            out.write(content.getBytes("UTF-8"));
+            out.getFD().sync();
         } finally {
             if (out != null) out.close();
         }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Unable to move " + tempFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+        }
     }
 }
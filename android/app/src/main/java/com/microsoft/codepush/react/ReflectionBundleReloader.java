@@ -0,0 +1,75 @@
+package com.microsoft.codepush.react;
+
+import android.content.Context;
+
+import com.facebook.react.ReactInstanceManager;
+import com.facebook.react.bridge.JSBundleLoader;
+
+import java.lang.reflect.Field;
+
+// Use reflection to find and set the bundle loader field on ReactInstanceManager. See #556 for a
+// proposal for a less brittle way to approach this. The field is looked up only once per process
+// (per ReactInstanceManager class), instead of on every restart.
+class ReflectionBundleReloader implements BundleReloader {
+
+    private static final String BUNDLE_LOADER_FIELD_NAME = "mBundleLoader";
+
+    private static Class<?> sResolvedClass;
+    private static Field sBundleLoaderField;
+
+    private final Context mContext;
+
+    ReflectionBundleReloader(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public String getName() {
+        return "reflection";
+    }
+
+    @Override
+    public boolean reload(ReactInstanceManager instanceManager, String latestJSBundleFile) throws Exception {
+        Field bundleLoaderField = getBundleLoaderField(instanceManager.getClass());
+        if (bundleLoaderField == null) {
+            CodePushUtils.log("Unable to set JSBundle - CodePush may not support this version of React Native");
+            return false;
+        }
+
+        JSBundleLoader latestJSBundleLoader;
+        if (latestJSBundleFile.toLowerCase().startsWith(CodePushConstants.ASSETS_BUNDLE_PREFIX)) {
+            latestJSBundleLoader = JSBundleLoader.createAssetLoader(mContext, latestJSBundleFile, false);
+        } else {
+            latestJSBundleLoader = JSBundleLoader.createFileLoader(latestJSBundleFile);
+        }
+
+        bundleLoaderField.set(instanceManager, latestJSBundleLoader);
+        instanceManager.recreateReactContextInBackground();
+        return true;
+    }
+
+    // Returns null if the class has no bundle loader field, which is remembered as well.
+    private static synchronized Field getBundleLoaderField(Class<?> instanceManagerClass) {
+        if (instanceManagerClass == sResolvedClass) {
+            return sBundleLoaderField;
+        }
+
+        Field bundleLoaderField = null;
+        // Apps may use a subclass of ReactInstanceManager, so the field is looked up in the superclasses too.
+        for (Class<?> clazz = instanceManagerClass; clazz != null && bundleLoaderField == null; clazz = clazz.getSuperclass()) {
+            try {
+                Field field = clazz.getDeclaredField(BUNDLE_LOADER_FIELD_NAME);
+                field.setAccessible(true);
+                bundleLoaderField = field;
+            } catch (NoSuchFieldException e) {
+                // Try the superclass.
+            } catch (SecurityException e) {
+                break;
+            }
+        }
+
+        sResolvedClass = instanceManagerClass;
+        sBundleLoaderField = bundleLoaderField;
+        return bundleLoaderField;
+    }
+}
@@ -7,64 +7,71 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class SettingsManager {
 
     private SharedPreferences mSettings;
 
+    // Failed updates are loaded once into memory, keyed by package hash, and persisted to an
+    // append-only log (one JSON object per line) which is rewritten once it holds too many
+    // superseded entries. Losing the last few records in a crash only means that a failed
+    // update may be offered again, so these writes are done off the calling thread, in order, on
+    // the maintenance lane.
+    private final File mFailedUpdatesLogFile;
+    private LinkedHashMap<String, CodePushPackage> mFailedUpdates;
+    private int mFailedUpdatesLogLength;
+
+    // The pending update decides whether an update gets rolled back after a crash, so it is
+    // cached in memory but always written with a synchronous commit().
+    private boolean mIsPendingUpdateLoaded;
+    private String mPendingUpdateString;
+
     public SettingsManager(Context applicationContext) {
         mSettings = applicationContext.getSharedPreferences(CodePushConstants.CODE_PUSH_PREFERENCES, 0);
+        mFailedUpdatesLogFile = new File(applicationContext.getFilesDir(), CodePushConstants.FAILED_UPDATES_LOG_FILE_NAME);
     }
 
-    public JSONArray getFailedUpdates() {
-        String failedUpdatesString = mSettings.getString(CodePushConstants.FAILED_UPDATES_KEY, null);
-        if (failedUpdatesString == null) {
-            return new JSONArray();
-        }
+    // Ordered from the oldest to the most recent failure. The packages are immutable, so they
+    // are handed out without copying.
+    public synchronized List<CodePushPackage> getFailedUpdates() {
+        return new ArrayList<>(getFailedUpdatesMap().values());
+    }
 
-        try {
-            return new JSONArray(failedUpdatesString);
-        } catch (JSONException e) {
-            // Unrecognized data format, clear and replace with expected format.
-            JSONArray emptyArray = new JSONArray();
-            mSettings.edit().putString(CodePushConstants.FAILED_UPDATES_KEY, emptyArray.toString()).commit();
-            return emptyArray;
+    public synchronized JSONObject getPendingUpdate() {
+        if (!mIsPendingUpdateLoaded) {
+            mPendingUpdateString = mSettings.getString(CodePushConstants.PENDING_UPDATE_KEY, null);
+            mIsPendingUpdateLoaded = true;
         }
-    }
 
-    public JSONObject getPendingUpdate() {
-        String pendingUpdateString = mSettings.getString(CodePushConstants.PENDING_UPDATE_KEY, null);
-        if (pendingUpdateString == null) {
+        if (mPendingUpdateString == null) {
             return null;
         }
 
         try {
-            return new JSONObject(pendingUpdateString);
+            return new JSONObject(mPendingUpdateString);
         } catch (JSONException e) {
             // Should not happen.
-            CodePushUtils.log("Unable to parse pending update metadata " + pendingUpdateString +
+            CodePushUtils.log("Unable to parse pending update metadata " + mPendingUpdateString +
                     " stored in SharedPreferences");
             return null;
         }
     }
 
 
-    public boolean isFailedHash(String packageHash) {
-        JSONArray failedUpdates = getFailedUpdates();
-        if (packageHash != null) {
-            for (int i = 0; i < failedUpdates.length(); i++) {
-                try {
-                    JSONObject failedPackage = failedUpdates.getJSONObject(i);
-                    String failedPackageHash = failedPackage.getString(CodePushConstants.PACKAGE_HASH_KEY);
-                    if (packageHash.equals(failedPackageHash)) {
-                        return true;
-                    }
-                } catch (JSONException e) {
-                    throw new CodePushUnknownException("Unable to read failedUpdates data stored in SharedPreferences.", e);
-                }
-            }
-        }
-
-        return false;
+    public synchronized boolean isFailedHash(String packageHash) {
+        return packageHash != null && getFailedUpdatesMap().containsKey(packageHash);
     }
 
     public boolean isPendingUpdate(String packageHash) {
@@ -80,43 +87,193 @@ public class SettingsManager {
         }
     }
 
-    public void removeFailedUpdates() {
-        mSettings.edit().remove(CodePushConstants.FAILED_UPDATES_KEY).commit();
+    public synchronized void removeFailedUpdates() {
+        mFailedUpdates = new LinkedHashMap<>();
+        mFailedUpdatesLogLength = 0;
+        scheduleWrite(new Runnable() {
+            @Override
+            public void run() {
+                mFailedUpdatesLogFile.delete();
+                mSettings.edit().remove(CodePushConstants.FAILED_UPDATES_KEY).apply();
+            }
+        });
     }
 
-    public void removePendingUpdate() {
+    public synchronized void removePendingUpdate() {
+        if (getPendingUpdate() == null) {
+            // Nothing to remove, skip the synchronous disk write.
+            return;
+        }
+
         mSettings.edit().remove(CodePushConstants.PENDING_UPDATE_KEY).commit();
+        mPendingUpdateString = null;
     }
 
-    public void saveFailedUpdate(JSONObject failedPackage) {
-        String failedUpdatesString = mSettings.getString(CodePushConstants.FAILED_UPDATES_KEY, null);
-        JSONArray failedUpdates;
-        if (failedUpdatesString == null) {
-            failedUpdates = new JSONArray();
+    public synchronized void saveFailedUpdate(CodePushPackage failedPackage) {
+        String packageHash = failedPackage.getPackageHash();
+        Map<String, CodePushPackage> failedUpdates = getFailedUpdatesMap();
+        // Re-inserting moves the package to the end, so that it is reported as the last failed update.
+        failedUpdates.remove(packageHash);
+        failedUpdates.put(packageHash, failedPackage);
+        mFailedUpdatesLogLength++;
+
+        if (mFailedUpdatesLogLength > failedUpdates.size() * 2 + CodePushConstants.FAILED_UPDATES_LOG_SLACK) {
+            compactFailedUpdatesLog();
         } else {
-            try {
-                failedUpdates = new JSONArray(failedUpdatesString);
-            } catch (JSONException e) {
-                // Should not happen.
-                throw new CodePushMalformedDataException("Unable to parse failed updates information " +
-                        failedUpdatesString + " stored in SharedPreferences", e);
-            }
+            final String failedPackageString = failedPackage.toJsonString();
+            scheduleWrite(new Runnable() {
+                @Override
+                public void run() {
+                    appendToFailedUpdatesLog(failedPackageString);
+                }
+            });
         }
-
-        failedUpdates.put(failedPackage);
-        mSettings.edit().putString(CodePushConstants.FAILED_UPDATES_KEY, failedUpdates.toString()).commit();
     }
 
-    public void savePendingUpdate(String packageHash, boolean isLoading) {
+    public synchronized void savePendingUpdate(String packageHash, boolean isLoading) {
         JSONObject pendingUpdate = new JSONObject();
         try {
             pendingUpdate.put(CodePushConstants.PENDING_UPDATE_HASH_KEY, packageHash);
             pendingUpdate.put(CodePushConstants.PENDING_UPDATE_IS_LOADING_KEY, isLoading);
-            mSettings.edit().putString(CodePushConstants.PENDING_UPDATE_KEY, pendingUpdate.toString()).commit();
+            String pendingUpdateString = pendingUpdate.toString();
+            mSettings.edit().putString(CodePushConstants.PENDING_UPDATE_KEY, pendingUpdateString).commit();
+            mPendingUpdateString = pendingUpdateString;
+            mIsPendingUpdateLoaded = true;
         } catch (JSONException e) {
             // Should not happen.
             throw new CodePushUnknownException("Unable to save pending update.", e);
         }
     }
 
+    private LinkedHashMap<String, CodePushPackage> getFailedUpdatesMap() {
+        if (mFailedUpdates == null) {
+            mFailedUpdates = new LinkedHashMap<>();
+            mFailedUpdatesLogLength = 0;
+            loadFailedUpdatesLog();
+            migrateFailedUpdatesFromSettings();
+        }
+
+        return mFailedUpdates;
+    }
+
+    private void loadFailedUpdatesLog() {
+        if (!mFailedUpdatesLogFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFailedUpdatesLogFile), "UTF-8"));
+            String line;
+            boolean hasUnreadableRecords = false;
+            while ((line = reader.readLine()) != null) {
+                mFailedUpdatesLogLength++;
+                try {
+                    CodePushPackage failedPackage = CodePushPackage.fromJsonString(line);
+                    String packageHash = failedPackage.getPackageHash();
+                    mFailedUpdates.remove(packageHash);
+                    mFailedUpdates.put(packageHash, failedPackage);
+                } catch (JSONException e) {
+                    // A partially written last line, e.g. after a crash.
+                    CodePushUtils.log("Skipping unreadable failed update record.");
+                    hasUnreadableRecords = true;
+                }
+            }
+
+            if (hasUnreadableRecords) {
+                // Rewrite the log, so that the next record is not appended to the broken line.
+                compactFailedUpdatesLog();
+            }
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to read failed updates: " + e.getMessage());
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Earlier versions kept the failed updates as one JSON array in SharedPreferences.
+    private void migrateFailedUpdatesFromSettings() {
+        String failedUpdatesString = mSettings.getString(CodePushConstants.FAILED_UPDATES_KEY, null);
+        if (failedUpdatesString == null) {
+            return;
+        }
+
+        try {
+            JSONArray failedUpdates = new JSONArray(failedUpdatesString);
+            LinkedHashMap<String, CodePushPackage> migratedUpdates = new LinkedHashMap<>();
+            for (int i = 0; i < failedUpdates.length(); i++) {
+                CodePushPackage failedPackage = CodePushPackage.fromJson(failedUpdates.getJSONObject(i));
+                migratedUpdates.put(failedPackage.getPackageHash(), failedPackage);
+            }
+
+            // Anything already in the log was recorded later.
+            for (Map.Entry<String, CodePushPackage> entry : mFailedUpdates.entrySet()) {
+                migratedUpdates.remove(entry.getKey());
+                migratedUpdates.put(entry.getKey(), entry.getValue());
+            }
+
+            mFailedUpdates = migratedUpdates;
+        } catch (JSONException e) {
+            // Unrecognized data format, drop it.
+            CodePushUtils.log("Discarding unreadable failed updates stored in SharedPreferences.");
+        }
+
+        compactFailedUpdatesLog();
+        scheduleWrite(new Runnable() {
+            @Override
+            public void run() {
+                mSettings.edit().remove(CodePushConstants.FAILED_UPDATES_KEY).commit();
+            }
+        });
+    }
+
+    private void compactFailedUpdatesLog() {
+        final List<String> records = new ArrayList<>(mFailedUpdates.size());
+        for (CodePushPackage failedPackage : mFailedUpdates.values()) {
+            records.add(failedPackage.toJsonString());
+        }
+
+        mFailedUpdatesLogLength = records.size();
+        scheduleWrite(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder content = new StringBuilder();
+                for (String record : records) {
+                    content.append(record).append('\n');
+                }
+
+                try {
+                    FileUtils.writeStringToFile(content.toString(), mFailedUpdatesLogFile.getAbsolutePath());
+                } catch (IOException e) {
+                    CodePushUtils.log("Unable to save failed updates: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static void scheduleWrite(Runnable write) {
+        CodePushTaskScheduler.getInstance().schedule(CodePushTaskScheduler.Lane.MAINTENANCE, CodePushTaskScheduler.Priority.NORMAL,
+                "saveFailedUpdates", write, null);
+    }
+
+    private void appendToFailedUpdatesLog(String record) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mFailedUpdatesLogFile, true), "UTF-8");
+            writer.write(record);
+            writer.write('\n');
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to save failed update: " + e.getMessage());
+        } finally {
+            try {
+                if (writer != null) writer.close();
+            } catch (IOException e) {
+                CodePushUtils.log("Unable to save failed update: " + e.getMessage());
+            }
+        }
+    }
 }
@@ -0,0 +1,47 @@
+package com.microsoft.codepush.react;
+
+import java.util.Arrays;
+
+import static org.junit.Assume.assumeTrue;
+
+// Benchmarks are JUnit tests which are skipped unless they are asked for, because they take a
+// while and their numbers only mean something on a quiet machine:
+//
+//     ./gradlew :app:testDebugUnitTest -PcodePushBenchmarks
+//
+// The results are printed to the test output.
+final class CodePushBenchmark {
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private CodePushBenchmark() {
+    }
+
+    static void assumeEnabled() {
+        assumeTrue("Benchmarks are only run with -PcodePushBenchmarks", Boolean.getBoolean("codepush.benchmarks"));
+    }
+
+    // Runs task warmupCount times, then measureCount times, and returns the median of the
+    // measured runs in milliseconds. Setup that should not be measured belongs in the caller.
+    static double measure(int warmupCount, int measureCount, Task task) throws Exception {
+        for (int i = 0; i < warmupCount; i++) {
+            task.run();
+        }
+
+        double[] times = new double[measureCount];
+        for (int i = 0; i < measureCount; i++) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = (System.nanoTime() - start) / 1e6;
+        }
+
+        Arrays.sort(times);
+        return times[measureCount / 2];
+    }
+
+    static void report(String format, Object... args) {
+        System.out.println("[benchmark] " + String.format(format, args));
+    }
+}
@@ -0,0 +1,251 @@
+package com.microsoft.codepush.react;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Applies a patch created by scripts/generateBinaryPatch.js, and corrupted copies of it. The files in
+// resources/com/microsoft/codepush/react/binaryPatch were created with
+//
+//   node generateBinaryPatch.js index.android.bundle.old index.android.bundle.new index.android.bundle.patch CodePush/index.android.bundle
+//
+// and hotcodepush.json holds the "patchedFiles" entry it printed. The old bundle is larger than the
+// patcher's window, and the patch seeks back in it, so the window is refilled.
+public class CodePushBinaryPatcherTest {
+
+    private static final String BUNDLE_PATH = "CodePush/index.android.bundle";
+    // The magic and the size of the new file.
+    private static final int HEADER_LENGTH = 16;
+    private static final int CONTROL_LENGTH = 24;
+
+    private byte[] mOldBundle;
+    private byte[] mNewBundle;
+    private byte[] mPatch;
+    private File mFolder;
+    private File mOldFile;
+    private File mPatchFile;
+    private File mNewFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mOldBundle = readResource("index.android.bundle.old");
+        mNewBundle = readResource("index.android.bundle.new");
+        mPatch = readResource("index.android.bundle.patch");
+        mFolder = File.createTempFile("CodePushBinaryPatcherTest", "");
+        mFolder.delete();
+        mFolder.mkdirs();
+        mOldFile = writeFile(new File(mFolder, "old"), mOldBundle);
+        mPatchFile = new File(mFolder, "patch");
+        mNewFile = new File(mFolder, "new");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectoryAtPath(mFolder.getAbsolutePath());
+    }
+
+    @Test
+    public void patchReproducesNewFile() throws IOException {
+        writeFile(mPatchFile, mPatch);
+        String hash = CodePushBinaryPatcher.applyPatch(mOldFile, mPatchFile, mNewFile);
+        assertArrayEquals(mNewBundle, readFile(mNewFile));
+        assertEquals(getHash(mNewBundle), hash);
+    }
+
+    @Test
+    public void patchedFileReplacesPatchInUpdateContents() throws IOException {
+        File currentPackageFolder = new File(mFolder, "current");
+        File updateContentsFolder = new File(mFolder, "update");
+        File diffManifestFile = writeFile(new File(updateContentsFolder, CodePushConstants.DIFF_MANIFEST_FILE_NAME),
+                readResource(CodePushConstants.DIFF_MANIFEST_FILE_NAME));
+        writeFile(new File(currentPackageFolder, BUNDLE_PATH), mOldBundle);
+        writeFile(new File(updateContentsFolder, BUNDLE_PATH + ".patch"), mPatch);
+        CodePushUpdateManifest updateContentsManifest = new CodePushUpdateManifest();
+        updateContentsManifest.addFileHash(BUNDLE_PATH + ".patch", getHash(mPatch));
+
+        assertEquals(1, CodePushUpdateUtils.applyPatches(diffManifestFile.getAbsolutePath(), currentPackageFolder.getAbsolutePath(),
+                updateContentsFolder.getAbsolutePath(), updateContentsManifest));
+        assertArrayEquals(mNewBundle, readFile(new File(updateContentsFolder, BUNDLE_PATH)));
+        assertFalse(new File(updateContentsFolder, BUNDLE_PATH + ".patch").exists());
+        assertEquals(1, updateContentsManifest.size());
+        assertEquals(getHash(mNewBundle), updateContentsManifest.getFileHash(BUNDLE_PATH));
+    }
+
+    @Test
+    public void patchForOtherFileIsRejectedByHash() throws IOException {
+        File currentPackageFolder = new File(mFolder, "current");
+        File updateContentsFolder = new File(mFolder, "update");
+        File diffManifestFile = writeFile(new File(updateContentsFolder, CodePushConstants.DIFF_MANIFEST_FILE_NAME),
+                readResource(CodePushConstants.DIFF_MANIFEST_FILE_NAME));
+        // Every byte the patch reads from the old file is off by one.
+        byte[] otherBundle = mOldBundle.clone();
+        for (int i = 0; i < otherBundle.length; i++) {
+            otherBundle[i]++;
+        }
+
+        writeFile(new File(currentPackageFolder, BUNDLE_PATH), otherBundle);
+        writeFile(new File(updateContentsFolder, BUNDLE_PATH + ".patch"), mPatch);
+        try {
+            CodePushUpdateUtils.applyPatches(diffManifestFile.getAbsolutePath(), currentPackageFolder.getAbsolutePath(),
+                    updateContentsFolder.getAbsolutePath(), new CodePushUpdateManifest());
+            fail("The patched file should not match its hash.");
+        } catch (CodePushInvalidUpdateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("does not match its expected hash"));
+        }
+
+        assertFalse(new File(updateContentsFolder, BUNDLE_PATH).exists());
+    }
+
+    @Test
+    public void corruptedDataChangesHash() throws IOException {
+        byte[] patch = mPatch.clone();
+        patch[HEADER_LENGTH + CONTROL_LENGTH + 100]++;
+        writeFile(mPatchFile, patch);
+        assertFalse(getHash(mNewBundle).equals(CodePushBinaryPatcher.applyPatch(mOldFile, mPatchFile, mNewFile)));
+    }
+
+    @Test
+    public void truncatedPatchIsRejected() throws IOException {
+        int[] controlOffsets = getControlOffsets(mPatch);
+        int secondControlOffset = controlOffsets[1];
+        // In the magic, the size of the new file, a control block, diff bytes, extra bytes, and before the last block.
+        for (int length : new int[] { 4, 12, HEADER_LENGTH + 10, HEADER_LENGTH + CONTROL_LENGTH + 10, secondControlOffset - 1,
+                controlOffsets[controlOffsets.length - 1], mPatch.length - 1 }) {
+            writeFile(mPatchFile, Arrays.copyOf(mPatch, length));
+            assertInvalid("truncated");
+        }
+    }
+
+    @Test
+    public void unknownFormatIsRejected() throws IOException {
+        byte[] patch = mPatch.clone();
+        patch[7] = '2';
+        writeFile(mPatchFile, patch);
+        assertInvalid("Unsupported patch format");
+    }
+
+    @Test
+    public void negativeNewSizeIsRejected() throws IOException {
+        assertCorrupted(8, -1);
+    }
+
+    @Test
+    public void negativeLengthsAreRejected() throws IOException {
+        assertCorrupted(HEADER_LENGTH, -1);
+        assertCorrupted(HEADER_LENGTH + 8, -1);
+    }
+
+    @Test
+    public void blocksBeyondNewFileAreRejected() throws IOException {
+        assertCorrupted(HEADER_LENGTH, mNewBundle.length + 1);
+        assertCorrupted(HEADER_LENGTH + 8, mNewBundle.length);
+    }
+
+    @Test
+    public void diffBeyondOldFileIsRejected() throws IOException {
+        // A new file this large could take a diff of every old byte and one more.
+        byte[] patch = setLong(mPatch, 8, Long.MAX_VALUE);
+        writeFile(mPatchFile, setLong(patch, HEADER_LENGTH, mOldBundle.length + 1));
+        assertInvalid("corrupted");
+    }
+
+    @Test
+    public void seekBeforeOldFileIsRejected() throws IOException {
+        int secondControlOffset = getControlOffsets(mPatch)[1];
+        assertTrue(ByteBuffer.wrap(mPatch, secondControlOffset, CONTROL_LENGTH).getLong() > 0);
+        // The second block has a diff, which would start before the old file.
+        assertCorrupted(HEADER_LENGTH + 16, -(mOldBundle.length * 2L));
+        // And one that would end after it.
+        assertCorrupted(HEADER_LENGTH + 16, mOldBundle.length);
+    }
+
+    private void assertCorrupted(int offset, long value) throws IOException {
+        writeFile(mPatchFile, setLong(mPatch, offset, value));
+        assertInvalid("corrupted");
+    }
+
+    private void assertInvalid(String expectedMessage) throws IOException {
+        try {
+            CodePushBinaryPatcher.applyPatch(mOldFile, mPatchFile, mNewFile);
+            fail("The patch should have been rejected.");
+        } catch (CodePushInvalidUpdateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expectedMessage));
+        }
+    }
+
+    // Returns the offsets of the control blocks in patch.
+    private static int[] getControlOffsets(byte[] patch) {
+        int[] offsets = new int[patch.length / CONTROL_LENGTH];
+        int count = 0;
+        ByteBuffer buffer = ByteBuffer.wrap(patch);
+        for (int offset = HEADER_LENGTH; offset < patch.length; ) {
+            offsets[count++] = offset;
+            offset += CONTROL_LENGTH + buffer.getLong(offset) + buffer.getLong(offset + 8);
+        }
+
+        return Arrays.copyOf(offsets, count);
+    }
+
+    private static byte[] setLong(byte[] patch, int offset, long value) {
+        byte[] copy = patch.clone();
+        ByteBuffer.wrap(copy).putLong(offset, value);
+        return copy;
+    }
+
+    private static String getHash(byte[] data) {
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        messageDigest.update(data);
+        return CodePushUpdateUtils.getHashString(messageDigest);
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        return readFully(CodePushBinaryPatcherTest.class.getResourceAsStream("binaryPatch/" + name));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        return readFully(new FileInputStream(file));
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int numBytesRead;
+            while ((numBytesRead = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, numBytesRead);
+            }
+
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static File writeFile(File file, byte[] contents) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(contents);
+        } finally {
+            output.close();
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,357 @@
+package com.microsoft.codepush.react;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Assembles CodePushChunkerTest's input from local chunks and a local stand-in for the CDN. Each
+// chunk that should be found locally is a file of its own in the current package, so which chunks
+// are missing doesn't depend on how the chunker resynchronizes after a change.
+public class CodePushChunkAssemblerTest {
+
+    private static final String BUNDLE_PATH = "CodePush/index.android.bundle";
+    // CodePushChunkAssembler.RANGE_MERGE_GAP
+    private static final int RANGE_MERGE_GAP = 1024 * 16;
+
+    private final byte[] mBody = CodePushChunkerTest.createInput();
+    private final List<long[]> mChunks = new ArrayList<>();
+    private final List<String> mChunkHashes = new ArrayList<>();
+    private final JSONArray mChunkIndex = new JSONArray();
+    private CodePushTestServer mServer;
+    private File mFolder;
+    private File mCurrentPackageFolder;
+    private File mUpdateContentsFolder;
+    private File mDiffManifestFile;
+    private CodePushChunkAssembler mChunkAssembler;
+    private CodePushUpdateManifest mUpdateContentsManifest;
+
+    @Before
+    public void setUp() throws IOException, JSONException {
+        CodePushChunker.findChunks(new ByteArrayInputStream(mBody), true, new CodePushChunker.ChunkListener() {
+            @Override
+            public void onChunk(long offset, int length, String hash) {
+                mChunks.add(new long[] { offset, length });
+                mChunkHashes.add(hash);
+                mChunkIndex.put(new JSONArray().put(hash).put(length));
+            }
+        });
+
+        mServer = new CodePushTestServer(null);
+        serveBody(true);
+        mFolder = File.createTempFile("CodePushChunkAssemblerTest", "");
+        mFolder.delete();
+        mCurrentPackageFolder = new File(mFolder, "current");
+        mUpdateContentsFolder = new File(mFolder, "update");
+        mUpdateContentsFolder.mkdirs();
+        mDiffManifestFile = new File(mUpdateContentsFolder, CodePushConstants.DIFF_MANIFEST_FILE_NAME);
+        writeDiffManifest(getHash(mBody));
+        mChunkAssembler = new CodePushChunkAssembler(new CodePushDownloadHandler(3, 10), new CodePushMetrics());
+        mUpdateContentsManifest = new CodePushUpdateManifest();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        FileUtils.deleteDirectoryAtPath(mFolder.getAbsolutePath());
+    }
+
+    @Test
+    public void fileIsCopiedFromLocalChunks() throws IOException {
+        writeLocalChunks();
+        ProgressRecorder progress = assemble();
+        assertAssembled();
+        assertEquals(0, mServer.getRequestCount());
+        assertTrue(progress.events.isEmpty());
+    }
+
+    @Test
+    public void missingChunksAreFetchedWithRanges() throws IOException {
+        int lastChunk = mChunks.size() - 1;
+        writeLocalChunks(1, lastChunk);
+        ProgressRecorder progress = assemble();
+        assertAssembled();
+        assertEquals(new HashSet<>(Arrays.asList(getRequest(1, 1), getRequest(lastChunk, lastChunk))),
+                new HashSet<>(mServer.getRequests()));
+        progress.assertCompleted(mChunks.get(1)[1] + mChunks.get(lastChunk)[1]);
+    }
+
+    @Test
+    public void nearbyMissingChunksAreFetchedWithOneRange() throws IOException {
+        int firstChunk = 1;
+        while (mChunks.get(firstChunk + 1)[1] > RANGE_MERGE_GAP) {
+            firstChunk++;
+        }
+
+        // The local chunk in between is fetched again, rather than making a second request.
+        writeLocalChunks(firstChunk, firstChunk + 2);
+        ProgressRecorder progress = assemble();
+        assertAssembled();
+        assertEquals(Collections.singletonList(getRequest(firstChunk, firstChunk + 2)), mServer.getRequests());
+        progress.assertCompleted(getEnd(firstChunk + 2) - mChunks.get(firstChunk)[0]);
+    }
+
+    @Test
+    public void serverIgnoringRangesSendsFileOnce() throws IOException {
+        serveBody(false);
+        writeLocalChunks(1, 10, 20);
+        assemble();
+        assertAssembled();
+        assertEquals(Collections.singletonList(getRequest(1, 1)), mServer.getRequests());
+    }
+
+    @Test
+    public void serverErrorsAreRetried() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                if (requestNumber == 1) {
+                    CodePushTestServer.send(exchange, 503, new byte[0]);
+                } else {
+                    CodePushTestServer.sendFile(exchange, mBody, true);
+                }
+            }
+        });
+
+        writeLocalChunks(1);
+        assemble();
+        assertAssembled();
+        assertEquals(Arrays.asList(getRequest(1, 1), getRequest(1, 1)), mServer.getRequests());
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                CodePushTestServer.send(exchange, 404, new byte[0]);
+            }
+        });
+
+        writeLocalChunks(1, 10);
+        try {
+            assemble();
+            fail("The chunks should not have been found.");
+        } catch (CodePushUnknownException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void unexpectedRangeIsRetriedUntilAttemptsRunOut() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                CodePushTestServer.sendRange(exchange, mBody, 0, mBody.length - 1);
+            }
+        });
+
+        writeLocalChunks(1);
+        try {
+            assemble();
+            fail("The range should not have been accepted.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Received bytes 0-"));
+        }
+
+        assertEquals(CodePushConstants.DOWNLOAD_MAX_ATTEMPTS, mServer.getRequestCount());
+    }
+
+    @Test
+    public void cancellationStopsFetching() throws IOException {
+        writeLocalChunks(1, 10, 20);
+        ProgressRecorder progress = new ProgressRecorder() {
+            @Override
+            public synchronized void call(long totalBytes, long receivedBytes) {
+                super.call(totalBytes, receivedBytes);
+                if (receivedBytes > 0) {
+                    throw new CodePushDownloadCancelledException("Cancelled.");
+                }
+            }
+        };
+
+        try {
+            mChunkAssembler.assembleChunkedFiles(mDiffManifestFile.getAbsolutePath(), mCurrentPackageFolder.getAbsolutePath(),
+                    mUpdateContentsFolder.getAbsolutePath(), mUpdateContentsManifest, progress);
+            fail("The download should have been cancelled.");
+        } catch (CodePushDownloadCancelledException e) {
+            // Expected.
+        }
+
+        // The first range is fetched alone, so the others were never requested.
+        assertEquals(Collections.singletonList(getRequest(1, 1)), mServer.getRequests());
+    }
+
+    @Test
+    public void cancellationBeforeFirstRequestFetchesNothing() throws IOException {
+        writeLocalChunks(1);
+        try {
+            mChunkAssembler.assembleChunkedFiles(mDiffManifestFile.getAbsolutePath(), mCurrentPackageFolder.getAbsolutePath(),
+                    mUpdateContentsFolder.getAbsolutePath(), mUpdateContentsManifest, new DownloadProgressCallback() {
+                        @Override
+                        public void call(long totalBytes, long receivedBytes) {
+                            throw new CodePushDownloadCancelledException("Cancelled.");
+                        }
+                    });
+            fail("The download should have been cancelled.");
+        } catch (CodePushDownloadCancelledException e) {
+            // Expected.
+        }
+
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    @Test
+    public void assembledFileIsVerified() throws IOException, JSONException {
+        writeDiffManifest(getHash(new byte[0]));
+        writeLocalChunks(1);
+        try {
+            assemble();
+            fail("The assembled file should not match its hash.");
+        } catch (CodePushInvalidUpdateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("does not match its expected hash"));
+        }
+
+        assertFalse(new File(mUpdateContentsFolder, BUNDLE_PATH).exists());
+    }
+
+    private ProgressRecorder assemble() throws IOException {
+        ProgressRecorder progress = new ProgressRecorder();
+        assertEquals(1, mChunkAssembler.assembleChunkedFiles(mDiffManifestFile.getAbsolutePath(), mCurrentPackageFolder.getAbsolutePath(),
+                mUpdateContentsFolder.getAbsolutePath(), mUpdateContentsManifest, progress));
+        return progress;
+    }
+
+    private void assertAssembled() throws IOException {
+        File bundleFile = new File(mUpdateContentsFolder, BUNDLE_PATH);
+        assertArrayEquals(mBody, readFile(bundleFile));
+        assertEquals(CodePushUpdateUtils.computeFileHash(bundleFile), mUpdateContentsManifest.getFileHash(BUNDLE_PATH));
+    }
+
+    // Writes every chunk except the missing ones into the current package, one file each.
+    private void writeLocalChunks(int... missingChunks) throws IOException {
+        Set<Integer> missingChunkSet = new HashSet<>();
+        for (int missingChunk : missingChunks) {
+            missingChunkSet.add(missingChunk);
+        }
+
+        for (int i = 0; i < mChunks.size(); i++) {
+            if (missingChunkSet.contains(i)) {
+                continue;
+            }
+
+            File chunkFile = new File(mCurrentPackageFolder, "CodePush/chunks/" + i);
+            chunkFile.getParentFile().mkdirs();
+            FileOutputStream output = new FileOutputStream(chunkFile);
+            try {
+                output.write(mBody, (int) mChunks.get(i)[0], (int) mChunks.get(i)[1]);
+            } finally {
+                output.close();
+            }
+        }
+
+        // The zeros in the middle are identical chunks, of which a missing one would be found locally.
+        for (int missingChunk : missingChunks) {
+            assertEquals(1, Collections.frequency(mChunkHashes, mChunkHashes.get(missingChunk)));
+        }
+    }
+
+    private void writeDiffManifest(String hash) throws IOException, JSONException {
+        JSONObject chunkedFile = new JSONObject();
+        chunkedFile.put(CodePushConstants.CHUNKED_FILE_PATH_KEY, BUNDLE_PATH);
+        chunkedFile.put(CodePushConstants.CHUNKED_FILE_HASH_KEY, hash);
+        chunkedFile.put(CodePushConstants.CHUNKED_FILE_URL_KEY, mServer.getUrl("/bundle"));
+        chunkedFile.put(CodePushConstants.CHUNKED_FILE_CHUNKS_KEY, mChunkIndex);
+        JSONObject diffManifest = new JSONObject();
+        diffManifest.put(CodePushConstants.DIFF_MANIFEST_CHUNKED_FILES_KEY, new JSONArray().put(chunkedFile));
+        FileUtils.writeStringToFile(diffManifest.toString(), mDiffManifestFile.getAbsolutePath());
+    }
+
+    private void serveBody(final boolean isRangeSupported) {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                CodePushTestServer.sendFile(exchange, mBody, isRangeSupported);
+            }
+        });
+    }
+
+    // The request for the chunks firstChunk to lastChunk.
+    private String getRequest(int firstChunk, int lastChunk) {
+        return "GET /bundle bytes=" + mChunks.get(firstChunk)[0] + "-" + (getEnd(lastChunk) - 1);
+    }
+
+    private long getEnd(int chunk) {
+        return mChunks.get(chunk)[0] + mChunks.get(chunk)[1];
+    }
+
+    private static String getHash(byte[] data) {
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        messageDigest.update(data);
+        return CodePushUpdateUtils.getHashString(messageDigest);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            int offset = 0;
+            int numBytesRead;
+            while (offset < contents.length && (numBytesRead = input.read(contents, offset, contents.length - offset)) >= 0) {
+                offset += numBytesRead;
+            }
+
+            return contents;
+        } finally {
+            input.close();
+        }
+    }
+
+    // Records the progress events, which arrive from the fetching threads.
+    private static class ProgressRecorder implements DownloadProgressCallback {
+        final List<long[]> events = new ArrayList<>();
+
+        @Override
+        public synchronized void call(long totalBytes, long receivedBytes) {
+            events.add(new long[] { totalBytes, receivedBytes });
+        }
+
+        // The total is known up front, and the received bytes only grow until they reach it.
+        synchronized void assertCompleted(long expectedTotalBytes) {
+            long lastReceivedBytes = 0;
+            for (long[] event : events) {
+                assertEquals(expectedTotalBytes, event[0]);
+                assertTrue(event[1] >= lastReceivedBytes);
+                lastReceivedBytes = event[1];
+            }
+
+            assertEquals(expectedTotalBytes, lastReceivedBytes);
+        }
+    }
+}
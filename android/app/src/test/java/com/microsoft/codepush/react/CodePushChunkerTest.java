@@ -0,0 +1,210 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CodePushChunkerTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("CodePushChunkerTest", "");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    // resources/com/microsoft/codepush/react/chunkIndex/chunkedFile.json was created from the bytes
+    // of createInput() with
+    //
+    //   node generateChunkIndex.js chunkerInput http://localhost/chunkerInput
+    @Test
+    public void chunkIndexMatchesGenerateChunkIndexScript() throws Exception {
+        byte[] input = createInput();
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(input);
+        } finally {
+            output.close();
+        }
+
+        JSONObject chunkedFile = new JSONObject(new String(readResource("chunkIndex/chunkedFile.json"), "UTF-8"));
+        assertEquals(chunkedFile.getString("hash"), CodePushUpdateUtils.computeFileHash(mFile));
+        JSONArray expectedChunkIndex = chunkedFile.getJSONArray("chunks");
+        JSONArray chunkIndex = CodePushChunker.createChunkIndex(mFile);
+        assertEquals(expectedChunkIndex.length(), chunkIndex.length());
+        for (int i = 0; i < chunkIndex.length(); i++) {
+            assertEquals("chunk " + i, expectedChunkIndex.getJSONArray(i).toString(), chunkIndex.getJSONArray(i).toString());
+        }
+    }
+
+    @Test
+    public void chunksAreWithinChunkSizes() throws IOException {
+        byte[] input = createInput();
+        List<Chunk> chunks = findChunks(new ByteArrayInputStream(input));
+        long offset = 0;
+        int maxSizeChunkCount = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            assertEquals(offset, chunk.offset);
+            assertTrue("chunk " + i + " has " + chunk.length + " bytes", chunk.length <= CodePushChunker.MAX_CHUNK_SIZE);
+            if (i < chunks.size() - 1) {
+                assertTrue("chunk " + i + " has " + chunk.length + " bytes", chunk.length > CodePushChunker.MIN_CHUNK_SIZE);
+            }
+
+            if (chunk.length == CodePushChunker.MAX_CHUNK_SIZE) {
+                maxSizeChunkCount++;
+            }
+
+            assertEquals(getChunkHash(input, chunk), chunk.hash);
+            offset += chunk.length;
+        }
+
+        assertEquals(input.length, offset);
+        // The zeros never match the mask, so they are cut at the maximum size.
+        assertTrue(maxSizeChunkCount >= 3);
+    }
+
+    @Test
+    public void boundariesDoNotDependOnReads() throws IOException {
+        byte[] input = createInput();
+        List<Chunk> chunks = findChunks(new ByteArrayInputStream(input));
+        // Reads that end in the middle of chunks, and at odd positions within the buffer.
+        List<Chunk> chunksFromShortReads = findChunks(new ByteArrayInputStream(input) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                return super.read(buffer, offset, Math.min(length, 777));
+            }
+        });
+
+        assertEquals(chunks.toString(), chunksFromShortReads.toString());
+    }
+
+    @Test
+    public void insertionOnlyChangesChunksAroundIt() throws IOException {
+        byte[] input = createInput();
+        int insertionOffset = 300 * 1000;
+        ByteArrayOutputStream changedInput = new ByteArrayOutputStream();
+        changedInput.write(input, 0, insertionOffset);
+        changedInput.write(new byte[100], 0, 100);
+        changedInput.write(input, insertionOffset, input.length - insertionOffset);
+
+        List<Chunk> chunks = findChunks(new ByteArrayInputStream(input));
+        Set<String> chunkHashes = new HashSet<>();
+        for (Chunk chunk : chunks) {
+            chunkHashes.add(chunk.hash);
+        }
+
+        int changedChunkCount = 0;
+        for (Chunk chunk : findChunks(new ByteArrayInputStream(changedInput.toByteArray()))) {
+            if (!chunkHashes.contains(chunk.hash)) {
+                changedChunkCount++;
+            }
+        }
+
+        // The chunk with the insertion, and a few more until the boundaries are in step again.
+        assertTrue(changedChunkCount + " of " + chunks.size() + " chunks changed", changedChunkCount > 0 && changedChunkCount <= 4);
+    }
+
+    @Test
+    public void emptyInputHasNoChunks() throws IOException {
+        assertEquals(0, findChunks(new ByteArrayInputStream(new byte[0])).size());
+    }
+
+    // 512 KB of pseudo-random bytes, 256 KB of zeros, 256 KB of pseudo-random bytes and 1000 more.
+    // The pseudo-random bytes are the SHA-256 hashes of a big-endian int32 counter.
+    static byte[] createInput() {
+        ByteBuffer input = ByteBuffer.allocate(1024 * 1024 + 1000);
+        int counter = 0;
+        while (input.position() < 512 * 1024) {
+            input.put(getCounterHash(counter++));
+        }
+
+        input.position(input.position() + 256 * 1024);
+        while (input.hasRemaining()) {
+            byte[] hash = getCounterHash(counter++);
+            input.put(hash, 0, Math.min(hash.length, input.remaining()));
+        }
+
+        return input.array();
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream input = CodePushChunkerTest.class.getResourceAsStream(name);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int numBytesRead;
+            while ((numBytesRead = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, numBytesRead);
+            }
+
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] getCounterHash(int counter) {
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        messageDigest.update(ByteBuffer.allocate(4).putInt(counter).array());
+        return messageDigest.digest();
+    }
+
+    private static String getChunkHash(byte[] input, Chunk chunk) {
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        messageDigest.update(input, (int) chunk.offset, chunk.length);
+        return CodePushChunker.getChunkHash(messageDigest);
+    }
+
+    private static List<Chunk> findChunks(InputStream input) throws IOException {
+        final List<Chunk> chunks = new ArrayList<>();
+        CodePushChunker.findChunks(input, true, new CodePushChunker.ChunkListener() {
+            @Override
+            public void onChunk(long offset, int length, String hash) {
+                chunks.add(new Chunk(offset, length, hash));
+            }
+        });
+
+        return chunks;
+    }
+
+    private static class Chunk {
+        final long offset;
+        final int length;
+        final String hash;
+
+        Chunk(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        @Override
+        public String toString() {
+            return offset + "+" + length + ":" + hash;
+        }
+    }
+}
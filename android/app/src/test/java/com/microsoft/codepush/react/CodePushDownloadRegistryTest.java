@@ -0,0 +1,154 @@
+package com.microsoft.codepush.react;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CodePushDownloadRegistryTest {
+
+    private static final int THREAD_COUNT = 8;
+    private static final int REQUESTS_PER_THREAD = 500;
+
+    @Test
+    public void requestForSamePackageJoinsDownload() {
+        CodePushDownloadRegistry registry = new CodePushDownloadRegistry();
+        CountingListener first = new CountingListener();
+        CountingListener second = new CountingListener();
+
+        CodePushDownloadRegistry.Download download = registry.join("a", false, first);
+        assertNotNull(download);
+        assertNull(registry.join("a", true, second));
+        assertTrue(download.isProgressRequested());
+
+        download.complete(null);
+        assertEquals(1, first.mCompleteCount.get());
+        assertEquals(1, second.mCompleteCount.get());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void requestForPreemptedPackageStartsNewDownload() {
+        CodePushDownloadRegistry registry = new CodePushDownloadRegistry();
+        registry.setPreemptionEnabled(true);
+        CountingListener preempted = new CountingListener();
+        CountingListener newer = new CountingListener();
+        CountingListener retried = new CountingListener();
+
+        CodePushDownloadRegistry.Download preemptedDownload = registry.join("a", false, preempted);
+        CodePushDownloadRegistry.Download newerDownload = registry.join("b", false, newer);
+        assertTrue(preemptedDownload.isCancelled());
+
+        // Until the preempted download notices that it was cancelled, it is still registered.
+        CodePushDownloadRegistry.Download retriedDownload = registry.join("a", false, retried);
+        assertNotNull(retriedDownload);
+        assertNotSame(preemptedDownload, retriedDownload);
+        assertFalse(retriedDownload.isCancelled());
+        assertTrue(newerDownload.isCancelled());
+
+        preemptedDownload.fail(new CodePushDownloadCancelledException("cancelled"));
+        assertEquals(1, preempted.mErrorCount.get());
+        assertEquals(0, retried.mErrorCount.get());
+        // The preempted download must not unregister the one that replaced it.
+        assertEquals(2, registry.size());
+
+        retriedDownload.complete(null);
+        newerDownload.fail(new CodePushDownloadCancelledException("cancelled"));
+        assertEquals(1, retried.mCompleteCount.get());
+        assertEquals(1, newer.mErrorCount.get());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void concurrentRequestsAreEachSettledOnce() throws InterruptedException {
+        runConcurrentRequests(false);
+    }
+
+    @Test
+    public void concurrentRequestsWithPreemptionAreEachSettledOnce() throws InterruptedException {
+        runConcurrentRequests(true);
+    }
+
+    // Several threads request a few packages at once. Whoever gets a download to run finishes it
+    // after a moment, failing it if it was preempted in the meantime, as the native module does.
+    // Every request has to be settled exactly once, whichever download it ended up with.
+    private static void runConcurrentRequests(boolean isPreemptionEnabled) throws InterruptedException {
+        final CodePushDownloadRegistry registry = new CodePushDownloadRegistry();
+        registry.setPreemptionEnabled(isPreemptionEnabled);
+        final List<CountingListener> listeners = Collections.synchronizedList(new ArrayList<CountingListener>());
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicInteger downloadCount = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(THREAD_COUNT);
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final Random random = new Random(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+                            CountingListener listener = new CountingListener();
+                            listeners.add(listener);
+                            CodePushDownloadRegistry.Download download = registry.join("package" + random.nextInt(3), random.nextBoolean(), listener);
+                            if (download == null) {
+                                continue;
+                            }
+
+                            downloadCount.incrementAndGet();
+                            Thread.yield();
+                            if (download.isCancelled()) {
+                                download.fail(new CodePushDownloadCancelledException("cancelled"));
+                            } else {
+                                download.complete(null);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(THREAD_COUNT * REQUESTS_PER_THREAD, listeners.size());
+        assertTrue(downloadCount.get() <= listeners.size());
+        for (CountingListener listener : listeners) {
+            assertEquals(1, listener.mCompleteCount.get() + listener.mErrorCount.get());
+        }
+
+        assertEquals(0, registry.size());
+    }
+
+    private static class CountingListener implements CodePushDownloadRegistry.Listener {
+        final AtomicInteger mCompleteCount = new AtomicInteger();
+        final AtomicInteger mErrorCount = new AtomicInteger();
+
+        @Override
+        public void onComplete(CodePushPackage newPackage) {
+            mCompleteCount.incrementAndGet();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            mErrorCount.incrementAndGet();
+        }
+    }
+}
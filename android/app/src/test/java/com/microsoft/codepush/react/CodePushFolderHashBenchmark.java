@@ -0,0 +1,150 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Compares the serial folder hashing CodePush used to verify every update with, the parallel
+// verifyFolderHash, and the check downloads do now against the hashes recorded while writing the
+// files, on packages with 100, 1,000 and 10,000 files.
+public class CodePushFolderHashBenchmark {
+
+    private File mFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        CodePushBenchmark.assumeEnabled();
+        mFolder = File.createTempFile("CodePushFolderHashBenchmark", "");
+        mFolder.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (mFolder != null) {
+            FileUtils.deleteDirectoryAtPath(mFolder.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void hashPackagesWith100To10000Files() throws Exception {
+        for (int fileCount : new int[] { 100, 1000, 10000 }) {
+            final String folderPath = new File(mFolder, String.valueOf(fileCount)).getAbsolutePath();
+            final CodePushUpdateManifest recordedManifest = createPackage(folderPath, fileCount);
+            final String expectedHash = CodePushUpdateUtils.computeManifestHash(recordedManifest);
+            assertEquals(expectedHash, getSerialFolderHash(folderPath));
+
+            double serialMillis = CodePushBenchmark.measure(2, 5, new CodePushBenchmark.Task() {
+                @Override
+                public void run() {
+                    getSerialFolderHash(folderPath);
+                }
+            });
+            double parallelMillis = CodePushBenchmark.measure(2, 5, new CodePushBenchmark.Task() {
+                @Override
+                public void run() {
+                    CodePushUpdateUtils.verifyFolderHash(folderPath, expectedHash);
+                }
+            });
+            double recordedMillis = CodePushBenchmark.measure(2, 5, new CodePushBenchmark.Task() {
+                @Override
+                public void run() {
+                    CodePushUpdateUtils.verifyManifestHash(recordedManifest, expectedHash);
+                }
+            });
+
+            CodePushBenchmark.report("%d files: serial %.1f ms, verifyFolderHash %.1f ms (%.1fx), recorded hashes %.1f ms",
+                    fileCount, serialMillis, parallelMillis, serialMillis / parallelMillis, recordedMillis);
+        }
+    }
+
+    // A bundle and fileCount - 1 images of a few KB in drawable folders, like a React Native app.
+    private static CodePushUpdateManifest createPackage(String folderPath, int fileCount) throws IOException {
+        Random random = new Random(fileCount);
+        CodePushUpdateManifest manifest = new CodePushUpdateManifest();
+        for (int i = 0; i < fileCount; i++) {
+            String relativePath = i == 0
+                    ? "CodePush/index.android.bundle"
+                    : "CodePush/drawable-" + (i % 5) + "dpi/assets_image_" + i + ".png";
+            byte[] contents = new byte[i == 0 ? 2 * 1024 * 1024 : 1024 + random.nextInt(8 * 1024)];
+            random.nextBytes(contents);
+
+            File file = new File(folderPath, relativePath);
+            file.getParentFile().mkdirs();
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                output.write(contents);
+            } finally {
+                output.close();
+            }
+
+            MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+            messageDigest.update(contents);
+            manifest.addFileHash(relativePath, CodePushUpdateUtils.getHashString(messageDigest));
+        }
+
+        return manifest;
+    }
+
+    // verifyFolderHash as it was before it was parallelized: one file at a time with a new digest
+    // and buffer each, then the manifest is built as a JSONArray string.
+    private static String getSerialFolderHash(String folderPath) {
+        ArrayList<String> updateContentsManifest = new ArrayList<>();
+        addContentsOfFolderToManifest(folderPath, "", updateContentsManifest);
+        Collections.sort(updateContentsManifest);
+        JSONArray updateContentsJSONArray = new JSONArray();
+        for (String manifestEntry : updateContentsManifest) {
+            updateContentsJSONArray.put(manifestEntry);
+        }
+
+        String updateContentsManifestString = updateContentsJSONArray.toString().replace("\\/", "/");
+        CodePushUtils.log("Manifest string: " + updateContentsManifestString);
+        return computeHash(new ByteArrayInputStream(updateContentsManifestString.getBytes()));
+    }
+
+    private static void addContentsOfFolderToManifest(String folderPath, String pathPrefix, ArrayList<String> manifest) {
+        for (File file : new File(folderPath).listFiles()) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + file.getName();
+            if (CodePushUpdateUtils.isHashIgnored(relativePath)) {
+                continue;
+            }
+
+            if (file.isDirectory()) {
+                addContentsOfFolderToManifest(file.getAbsolutePath(), relativePath, manifest);
+            } else {
+                try {
+                    manifest.add(relativePath + ":" + computeHash(new FileInputStream(file)));
+                } catch (IOException e) {
+                    throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
+                }
+            }
+        }
+    }
+
+    private static String computeHash(InputStream dataStream) {
+        DigestInputStream digestInputStream = new DigestInputStream(dataStream, CodePushUpdateUtils.createHashDigest());
+        try {
+            byte[] byteBuffer = new byte[1024 * 8];
+            while (digestInputStream.read(byteBuffer) != -1) ;
+            digestInputStream.close();
+        } catch (IOException e) {
+            throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
+        }
+
+        return CodePushUpdateUtils.getHashString(digestInputStream.getMessageDigest());
+    }
+}
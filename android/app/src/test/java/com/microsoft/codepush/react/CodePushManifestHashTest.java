@@ -0,0 +1,304 @@
+package com.microsoft.codepush.react;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+// The package hash has to match the one the CLI computes, which the client used to reproduce by
+// hashing every file of the package folder again and serializing the sorted "path:hash" entries
+// with JSONArray. These tests compare the hashes recorded while a package is extracted, and the
+// manifest serialized straight into the digest, against that original algorithm.
+public class CodePushManifestHashTest {
+
+    // Paths that exercise every branch of the JSON string escaping.
+    private static final String[] TRICKY_PATHS = {
+            "CodePush/index.android.bundle",
+            "CodePush/assets/quo\"te.png",
+            "CodePush/back\\slash.png",
+            // A backslash followed by a slash, where replace("\\/", "/") must leave the escaped backslash alone.
+            "CodePush/back\\/slash.png",
+            "CodePush//double/slash.png",
+            "CodePush/tab\tnewline\nreturn\rformfeed\fbackspace\b.png",
+            "CodePush/control\u0000\u0001\u001f\u007f.png",
+            "CodePush/line\u2028separator\u2029.png",
+            "CodePush/\u00fcmlaut/\u65e5\u672c\u8a9e.png",
+            "CodePush/emoji\ud83d\ude00.png",
+            "CodePush/lone\ud800high.png",
+            "CodePush/lone\udc00low.png",
+            "CodePush/reversed\udc00\ud800pair.png",
+            "CodePush/colon:in:name.png",
+            "CodePush/</script>.png",
+    };
+
+    // Names that can be created on the usual file systems. Non-ASCII names are skipped when the
+    // JVM's locale cannot represent them in file names, which is never the case on a device.
+    private static final String[] EXTRACTABLE_PATHS = {
+            "CodePush/index.android.bundle",
+            "CodePush/assets/with space.png",
+            "CodePush/assets/apostrophe's.png",
+            "CodePush/\u00fcmlaut/\u65e5\u672c\u8a9e.png",
+            "CodePush/emoji\ud83d\ude00.png",
+            "CodePush/deeply/nested/folder/file.json",
+            "CodePush/empty.txt",
+            // Ignored by the package hash.
+            "__MACOSX/CodePush/._index.android.bundle",
+            "CodePush/.DS_Store",
+            "CodePush/.codepushrelease",
+    };
+
+    @Test
+    public void manifestHashMatchesJsonArrayForTrickyPaths() throws IOException {
+        for (String path : TRICKY_PATHS) {
+            CodePushUpdateManifest manifest = new CodePushUpdateManifest();
+            manifest.addFileHash(path, sha256(path.getBytes("UTF-8")));
+            assertEquals(path, getJsonArrayManifestHash(manifest.getHashEntries()), CodePushUpdateUtils.computeManifestHash(manifest));
+        }
+
+        CodePushUpdateManifest manifest = new CodePushUpdateManifest();
+        for (String path : TRICKY_PATHS) {
+            manifest.addFileHash(path, sha256(path.getBytes("UTF-8")));
+        }
+
+        assertEquals(getJsonArrayManifestHash(manifest.getHashEntries()), CodePushUpdateUtils.computeManifestHash(manifest));
+    }
+
+    @Test
+    public void manifestHashMatchesJsonArrayForLargeManifests() throws IOException {
+        Random random = new Random(42);
+        for (int fileCount : new int[] { 0, 1, 100, 10000 }) {
+            CodePushUpdateManifest manifest = new CodePushUpdateManifest();
+            for (int i = 0; i < fileCount; i++) {
+                String path = i % 50 == 0
+                        ? TRICKY_PATHS[random.nextInt(TRICKY_PATHS.length)] + i
+                        : "CodePush/drawable-xhdpi/image_" + i + ".png";
+                byte[] contents = new byte[16];
+                random.nextBytes(contents);
+                manifest.addFileHash(path, sha256(contents));
+            }
+
+            assertEquals(getJsonArrayManifestHash(manifest.getHashEntries()), CodePushUpdateUtils.computeManifestHash(manifest));
+        }
+    }
+
+    @Test
+    public void hashesRecordedWhileUnzippingMatchFolderHash() throws IOException {
+        File folder = createTempFolder();
+        try {
+            File zipFile = new File(folder, "package.zip");
+            writeFile(zipFile, createPackageZip(folder));
+            String destination = new File(folder, "unzipped").getAbsolutePath();
+
+            for (int threadCount : new int[] { 1, 4 }) {
+                CodePushUpdateManifest manifest = new CodePushUpdateManifest();
+                FileUtils.unzipFile(zipFile, destination, manifest, threadCount);
+                assertEquals(getFolderHash(destination), CodePushUpdateUtils.computeManifestHash(manifest));
+            }
+        } finally {
+            FileUtils.deleteDirectoryAtPath(folder.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void hashesRecordedWhileUnzippingStreamMatchFolderHash() throws IOException {
+        File folder = createTempFolder();
+        try {
+            String destination = new File(folder, "unzipped").getAbsolutePath();
+            CodePushUpdateManifest manifest = new CodePushUpdateManifest();
+            FileUtils.unzipStream(new ByteArrayInputStream(createPackageZip(folder)), destination, manifest);
+            assertEquals(getFolderHash(destination), CodePushUpdateUtils.computeManifestHash(manifest));
+        } finally {
+            FileUtils.deleteDirectoryAtPath(folder.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void folderHashVerifierMatchesFolderHash() throws IOException {
+        File folder = createTempFolder();
+        try {
+            String destination = new File(folder, "unzipped").getAbsolutePath();
+            FileUtils.unzipStream(new ByteArrayInputStream(createPackageZip(folder)), destination, null);
+            CodePushUpdateUtils.verifyFolderHash(destination, getFolderHash(destination));
+
+            try {
+                CodePushUpdateUtils.verifyFolderHash(destination, sha256(new byte[0]));
+                fail("A folder with different contents was verified.");
+            } catch (CodePushInvalidUpdateException e) {
+                // Expected.
+            }
+        } finally {
+            FileUtils.deleteDirectoryAtPath(folder.getAbsolutePath());
+        }
+    }
+
+    // The package hash as it used to be computed: every file in the folder is read again.
+    private static String getFolderHash(String folderPath) throws IOException {
+        List<String> entries = new ArrayList<>();
+        addFolderEntries(new File(folderPath), "", entries);
+        Collections.sort(entries);
+        return getJsonArrayManifestHash(entries);
+    }
+
+    private static void addFolderEntries(File folder, String pathPrefix, List<String> entries) throws IOException {
+        for (File file : folder.listFiles()) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + file.getName();
+            if (CodePushUpdateUtils.isHashIgnored(relativePath)) {
+                continue;
+            }
+
+            if (file.isDirectory()) {
+                addFolderEntries(file, relativePath, entries);
+            } else {
+                entries.add(relativePath + ":" + sha256(readFile(file)));
+            }
+        }
+    }
+
+    // The manifest hash as it used to be computed: the sorted entries are put into a JSONArray,
+    // whose string has its escaped slashes restored and is hashed as UTF-8.
+    private static String getJsonArrayManifestHash(List<String> sortedEntries) throws IOException {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < sortedEntries.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+
+            appendJsonString(json, sortedEntries.get(i));
+        }
+
+        json.append(']');
+        return sha256(json.toString().replace("\\/", "/").getBytes("UTF-8"));
+    }
+
+    // Android's org.json is not available to JVM tests (and other implementations escape
+    // differently), so this is what JSONArray.toString() does on a device, see JSONStringer.string().
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    json.append('\\').append(c);
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                case '\b':
+                    json.append("\\b");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\f':
+                    json.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+
+        json.append('"');
+    }
+
+    private static byte[] createPackageZip(File folder) throws IOException {
+        Random random = new Random(7);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("CodePush/"));
+        zip.closeEntry();
+        for (String path : EXTRACTABLE_PATHS) {
+            if (!canCreateFiles(folder, path)) {
+                continue;
+            }
+
+            zip.putNextEntry(new ZipEntry(path));
+            byte[] contents = new byte[path.endsWith("empty.txt") ? 0 : random.nextInt(200000)];
+            random.nextBytes(contents);
+            zip.write(contents);
+            zip.closeEntry();
+        }
+
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static boolean canCreateFiles(File folder, String path) throws IOException {
+        for (String name : path.split("/")) {
+            File file = new File(folder, name);
+            boolean isCreated = file.createNewFile();
+            boolean isListed = Arrays.asList(folder.list()).contains(name);
+            if (isCreated) {
+                file.delete();
+            }
+
+            if (!isListed) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static File createTempFolder() throws IOException {
+        File folder = File.createTempFile("CodePushManifestHashTest", "");
+        folder.delete();
+        folder.mkdirs();
+        return folder;
+    }
+
+    private static void writeFile(File file, byte[] contents) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(contents);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int numBytesRead;
+            while ((numBytesRead = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, numBytesRead);
+            }
+
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        messageDigest.update(bytes);
+        return CodePushUpdateUtils.getHashString(messageDigest);
+    }
+}
@@ -0,0 +1,62 @@
+package com.microsoft.codepush.react;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CodePushPackageProgressTest {
+
+    private final List<long[]> mEvents = new ArrayList<>();
+    private final CodePushPackageProgress mPackageProgress = new CodePushPackageProgress(new DownloadProgressCallback() {
+        @Override
+        public void call(long totalBytes, long receivedBytes) {
+            mEvents.add(new long[] { totalBytes, receivedBytes });
+        }
+    });
+
+    @Test
+    public void downloadAndFetchAreReportedAsOneDownload() {
+        DownloadProgressCallback downloadCallback = mPackageProgress.getDownloadCallback();
+        downloadCallback.call(1000, 400);
+        downloadCallback.call(1000, 1000);
+        DownloadProgressCallback fetchCallback = mPackageProgress.getFetchCallback();
+        fetchCallback.call(500, 0);
+        fetchCallback.call(500, 200);
+        fetchCallback.call(500, 500);
+        mPackageProgress.complete();
+
+        assertEvents(new long[][] { { 1000, 400 }, { 1500, 1000 }, { 1500, 1200 }, { 1500, 1500 } });
+    }
+
+    @Test
+    public void downloadWithoutFetchIsCompletedOnce() {
+        mPackageProgress.getDownloadCallback().call(1000, 1000);
+        mPackageProgress.complete();
+        // Reports after completion, e.g. from a range request that was still running, are dropped.
+        mPackageProgress.getFetchCallback().call(500, 100);
+
+        assertEvents(new long[][] { { 1000, 1000 } });
+    }
+
+    @Test
+    public void unknownPackageSizeIsPassedOn() {
+        mPackageProgress.getDownloadCallback().call(-1, 300);
+        mPackageProgress.getFetchCallback().call(100, 50);
+        mPackageProgress.complete();
+
+        assertEvents(new long[][] { { -1, 300 }, { -1, 350 }, { 350, 350 } });
+    }
+
+    private void assertEvents(long[][] expectedEvents) {
+        assertEquals(expectedEvents.length, mEvents.size());
+        for (int i = 0; i < expectedEvents.length; i++) {
+            assertEquals("total of event " + i, expectedEvents[i][0], mEvents.get(i)[0]);
+            assertEquals("received bytes of event " + i, expectedEvents[i][1], mEvents.get(i)[1]);
+            assertTrue(i == 0 || mEvents.get(i)[1] >= mEvents.get(i - 1)[1]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.microsoft.codepush.react;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Downloads a package from a local server that adds a round trip of latency to every request
+// and caps the throughput of each connection, as a mobile network would, with 1 to 8 segments.
+public class CodePushSegmentedDownloadBenchmark {
+
+    private static final int PACKAGE_SIZE = 8 * 1024 * 1024;
+    private static final long LATENCY_MILLIS = 50;
+    private static final int BYTES_PER_WRITE = 64 * 1024;
+    // About 6.4 MB/s per connection.
+    private static final long MILLIS_PER_WRITE = 10;
+
+    private final byte[] mBody = new byte[PACKAGE_SIZE];
+    private CodePushTestServer mServer;
+    private File mFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        CodePushBenchmark.assumeEnabled();
+        new Random(1).nextBytes(mBody);
+        mServer = new CodePushTestServer(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                sendThrottled(exchange);
+            }
+        });
+        mFolder = File.createTempFile("CodePushSegmentedDownloadBenchmark", "");
+        mFolder.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.stop();
+            FileUtils.deleteDirectoryAtPath(mFolder.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void downloadWithOneToEightSegments() throws Exception {
+        double singleStreamMillis = 0;
+        for (final int segmentCount : new int[] { 1, 2, 4, 8 }) {
+            final File downloadFile = new File(mFolder, segmentCount + "/" + CodePushConstants.DOWNLOAD_FILE_NAME);
+            double millis = CodePushBenchmark.measure(1, 5, new CodePushBenchmark.Task() {
+                @Override
+                public void run() throws Exception {
+                    FileUtils.deleteFileOrFolderSilently(downloadFile);
+                    CodePushDownloadHandler downloadHandler = new CodePushDownloadHandler();
+                    downloadHandler.setSegmentCount(segmentCount);
+                    downloadHandler.download("hash", mServer.getUrl("/package"), downloadFile, new DownloadProgressCallback() {
+                        @Override
+                        public void call(long totalBytes, long receivedBytes) {
+                        }
+                    });
+                }
+            });
+
+            assertEquals(PACKAGE_SIZE, downloadFile.length());
+            if (segmentCount == 1) {
+                singleStreamMillis = millis;
+            }
+
+            CodePushBenchmark.report("%d MB with %d ms latency, %d segment(s): %.0f ms, %.1fx", PACKAGE_SIZE >> 20,
+                    LATENCY_MILLIS, segmentCount, millis, singleStreamMillis / millis);
+        }
+    }
+
+    private void sendThrottled(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(LATENCY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        int start = 0;
+        int end = mBody.length - 1;
+        exchange.getResponseHeaders().add("ETag", "\"benchmark\"");
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null) {
+            exchange.sendResponseHeaders(200, mBody.length);
+        } else {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            end = bounds[1].isEmpty() ? end : Integer.parseInt(bounds[1]);
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + mBody.length);
+            exchange.sendResponseHeaders(206, end - start + 1);
+        }
+
+        OutputStream output = exchange.getResponseBody();
+        try {
+            for (int position = start; position <= end; position += BYTES_PER_WRITE) {
+                output.write(mBody, position, Math.min(BYTES_PER_WRITE, end - position + 1));
+                Thread.sleep(MILLIS_PER_WRITE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.microsoft.codepush.react;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CodePushSegmentedDownloaderTest {
+
+    private static final int SEGMENT_COUNT = 4;
+
+    private final byte[] mBody = new byte[SEGMENT_COUNT * CodePushConstants.DOWNLOAD_MIN_SEGMENT_SIZE + 12345];
+    private CodePushTestServer mServer;
+    private File mFolder;
+    private File mDownloadFile;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(2).nextBytes(mBody);
+        mServer = new CodePushTestServer(null);
+        mFolder = File.createTempFile("CodePushSegmentedDownloaderTest", "");
+        mFolder.delete();
+        mDownloadFile = new File(mFolder, CodePushConstants.DOWNLOAD_FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        FileUtils.deleteDirectoryAtPath(mFolder.getAbsolutePath());
+    }
+
+    @Test
+    public void downloadsRangesOverParallelConnections() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                CodePushTestServer.sendFile(exchange, mBody, true);
+            }
+        });
+
+        ProgressRecorder progress = download();
+        assertArrayEquals(mBody, readDownloadFile());
+        progress.assertCompleted(mBody.length, 0);
+
+        // The probe, then one request per segment.
+        List<String> requests = mServer.getRequests();
+        assertEquals(1 + SEGMENT_COUNT, requests.size());
+        assertEquals("GET /package bytes=0-0", requests.get(0));
+        for (String request : requests.subList(1, requests.size())) {
+            assertTrue(request, request.startsWith("GET /package bytes="));
+        }
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWhenServerIgnoresRange() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                CodePushTestServer.sendFile(exchange, mBody, false);
+            }
+        });
+
+        ProgressRecorder progress = download();
+        assertArrayEquals(mBody, readDownloadFile());
+        progress.assertCompleted(mBody.length, 0);
+
+        // The probe is answered with the whole body, which is not read. The single stream follows.
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWhenSegmentIsAnsweredWithWholeBody() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                // E.g. the resource changed after the probe, so If-Range did not match.
+                CodePushTestServer.sendFile(exchange, mBody, requestNumber <= 2);
+            }
+        });
+
+        ProgressRecorder progress = download();
+        assertArrayEquals(mBody, readDownloadFile());
+        progress.assertCompleted(mBody.length, 1);
+        assertTrue(mServer.getRequests().contains("GET /package"));
+        assertFalse(CodePushDownloadHandler.getStateFile(mDownloadFile).exists());
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWhenSegmentStartsAtWrongByte() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range == null || requestNumber <= 2) {
+                    CodePushTestServer.sendFile(exchange, mBody, true);
+                    return;
+                }
+
+                // A misbehaving proxy answers with a range that starts elsewhere.
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                CodePushTestServer.sendRange(exchange, mBody, start + 10, mBody.length - 1);
+            }
+        });
+
+        ProgressRecorder progress = download();
+        assertArrayEquals(mBody, readDownloadFile());
+        progress.assertCompleted(mBody.length, 1);
+        assertTrue(mServer.getRequests().contains("GET /package"));
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWhenSegmentKeepsFailing() throws IOException {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null && range.startsWith("bytes=0-") && !range.equals("bytes=0-0")) {
+                    CodePushTestServer.send(exchange, 503, new byte[0]);
+                } else {
+                    CodePushTestServer.sendFile(exchange, mBody, true);
+                }
+            }
+        });
+
+        ProgressRecorder progress = download();
+        assertArrayEquals(mBody, readDownloadFile());
+        progress.assertCompleted(mBody.length, 1);
+        assertTrue(mServer.getRequests().contains("GET /package"));
+    }
+
+    private ProgressRecorder download() throws IOException {
+        CodePushDownloadHandler downloadHandler = new CodePushDownloadHandler(3, 10);
+        downloadHandler.setSegmentCount(SEGMENT_COUNT);
+        ProgressRecorder progress = new ProgressRecorder();
+        assertFalse(downloadHandler.download("hash", mServer.getUrl("/package"), mDownloadFile, progress));
+        return progress;
+    }
+
+    private byte[] readDownloadFile() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mDownloadFile, "r");
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            file.readFully(contents);
+            return contents;
+        } finally {
+            file.close();
+        }
+    }
+
+    // Called from the segment threads, so it records what it saw instead of failing there.
+    private static class ProgressRecorder implements DownloadProgressCallback {
+        private long mTotalBytes = -1;
+        private long mReceivedBytes;
+        private int mRestartCount;
+        private boolean mIsOverrun;
+
+        @Override
+        public synchronized void call(long totalBytes, long receivedBytes) {
+            if (receivedBytes < mReceivedBytes) {
+                mRestartCount++;
+            }
+
+            mIsOverrun |= receivedBytes > totalBytes;
+            mTotalBytes = totalBytes;
+            mReceivedBytes = receivedBytes;
+        }
+
+        // A fallback to the single stream starts the progress over once, otherwise it only moves forward.
+        synchronized void assertCompleted(long totalBytes, int maxRestartCount) {
+            assertEquals(totalBytes, mTotalBytes);
+            assertEquals(totalBytes, mReceivedBytes);
+            assertFalse(mIsOverrun);
+            assertTrue("Progress restarted " + mRestartCount + " times", mRestartCount <= maxRestartCount);
+        }
+    }
+}
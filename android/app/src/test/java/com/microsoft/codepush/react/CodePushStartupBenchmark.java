@@ -0,0 +1,85 @@
+package com.microsoft.codepush.react;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+// Resolves the bundle of an installed update the way a cold start does, by reading codepush.json
+// and the package metadata, and by reading the startup descriptor. Every run uses a new update
+// manager, so nothing is served from its caches.
+public class CodePushStartupBenchmark {
+
+    private static final String PACKAGE_HASH = "a3f1c0ffee0123456789abcdef0123456789abcdef0123456789abcdef012345";
+    private static final String BUNDLE_FILE_NAME = "index.android.bundle";
+    private static final int STARTUPS_PER_RUN = 1000;
+
+    private File mDocumentsDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        CodePushBenchmark.assumeEnabled();
+        mDocumentsDirectory = File.createTempFile("CodePushStartupBenchmark", "");
+        mDocumentsDirectory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (mDocumentsDirectory != null) {
+            FileUtils.deleteDirectoryAtPath(mDocumentsDirectory.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void resolveBundleWithAndWithoutDescriptor() throws Exception {
+        final String documentsDirectory = mDocumentsDirectory.getAbsolutePath();
+        CodePushUpdateManager updateManager = new CodePushUpdateManager(documentsDirectory);
+        CodePushStartupDescriptorTest.writeInstalledPackage(updateManager, PACKAGE_HASH);
+        updateManager.saveStartupDescriptor();
+        assertEquals(resolveWithMetadata(documentsDirectory), resolveWithDescriptor(documentsDirectory));
+
+        double metadataMillis = CodePushBenchmark.measure(2, 5, new CodePushBenchmark.Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < STARTUPS_PER_RUN; i++) {
+                    resolveWithMetadata(documentsDirectory);
+                }
+            }
+        });
+        double descriptorMillis = CodePushBenchmark.measure(2, 5, new CodePushBenchmark.Task() {
+            @Override
+            public void run() {
+                for (int i = 0; i < STARTUPS_PER_RUN; i++) {
+                    resolveWithDescriptor(documentsDirectory);
+                }
+            }
+        });
+
+        CodePushBenchmark.report("bundle path from package metadata %.1f us, from startup descriptor %.1f us (%.1fx)",
+                metadataMillis * 1000 / STARTUPS_PER_RUN, descriptorMillis * 1000 / STARTUPS_PER_RUN,
+                metadataMillis / descriptorMillis);
+    }
+
+    // The checks getJSBundleFileInternal does without a descriptor.
+    private static String resolveWithMetadata(String documentsDirectory) {
+        CodePushUpdateManager updateManager = new CodePushUpdateManager(documentsDirectory);
+        String packageFilePath = updateManager.getCurrentPackageBundlePath(BUNDLE_FILE_NAME);
+        CodePushPackage packageMetadata = updateManager.getCurrentPackage();
+        Long.parseLong(packageMetadata.getBinaryModifiedTime());
+        packageMetadata.getAppVersion();
+        return packageFilePath;
+    }
+
+    private static String resolveWithDescriptor(String documentsDirectory) {
+        CodePushUpdateManager updateManager = new CodePushUpdateManager(documentsDirectory);
+        CodePushStartupDescriptor startupDescriptor = updateManager.getStartupDescriptor();
+        startupDescriptor.getBinaryModifiedTime();
+        startupDescriptor.getAppVersion();
+        return updateManager.getPackageBundlePath(startupDescriptor.getPackageHash(),
+                startupDescriptor.getRelativeBundlePath(), BUNDLE_FILE_NAME);
+    }
+}
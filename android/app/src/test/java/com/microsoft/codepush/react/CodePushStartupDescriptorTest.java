@@ -0,0 +1,111 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CodePushStartupDescriptorTest {
+
+    private static final String PACKAGE_HASH = "a3f1c0ffee0123456789abcdef0123456789abcdef0123456789abcdef012345";
+
+    private File mDocumentsDirectory;
+    private CodePushUpdateManager mUpdateManager;
+
+    @Before
+    public void setUp() throws IOException {
+        mDocumentsDirectory = File.createTempFile("CodePushStartupDescriptorTest", "");
+        mDocumentsDirectory.delete();
+        mUpdateManager = new CodePushUpdateManager(mDocumentsDirectory.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteDirectoryAtPath(mDocumentsDirectory.getAbsolutePath());
+    }
+
+    @Test
+    public void installWritesDescriptor() throws Exception {
+        writePackage(mUpdateManager, PACKAGE_HASH);
+        JSONObject packageInfo = new JSONObject();
+        packageInfo.put(CodePushConstants.CURRENT_PACKAGE_KEY, PACKAGE_HASH);
+        mUpdateManager.updateCurrentPackageInfo(packageInfo);
+
+        assertDescriptorMatchesPackage(mUpdateManager.getStartupDescriptor());
+    }
+
+    @Test
+    public void upgradedInstallGetsDescriptorAfterSlowPath() throws Exception {
+        // codepush.json as a version without startup descriptors left it.
+        writeInstalledPackage(mUpdateManager, PACKAGE_HASH);
+        assertNull(mUpdateManager.getStartupDescriptor());
+
+        mUpdateManager.saveStartupDescriptor();
+        CodePushStartupDescriptor startupDescriptor = new CodePushUpdateManager(mDocumentsDirectory.getAbsolutePath()).getStartupDescriptor();
+        assertDescriptorMatchesPackage(startupDescriptor);
+    }
+
+    @Test
+    public void binaryOnlyInstallGetsEmptyDescriptor() {
+        mUpdateManager.saveStartupDescriptor();
+        CodePushStartupDescriptor startupDescriptor = mUpdateManager.getStartupDescriptor();
+        assertNotNull(startupDescriptor);
+        assertNull(startupDescriptor.getPackageHash());
+    }
+
+    @Test
+    public void unreadableDescriptorIsIgnored() throws Exception {
+        writeInstalledPackage(mUpdateManager, PACKAGE_HASH);
+        mUpdateManager.saveStartupDescriptor();
+        File descriptorFile = new File(mDocumentsDirectory, CodePushConstants.CODE_PUSH_FOLDER_PREFIX + "/"
+                + CodePushConstants.STARTUP_DESCRIPTOR_FILE_NAME);
+        FileUtils.writeStringToFile("CPSD", descriptorFile.getAbsolutePath());
+        assertNull(mUpdateManager.getStartupDescriptor());
+    }
+
+    private void assertDescriptorMatchesPackage(CodePushStartupDescriptor startupDescriptor) {
+        assertNotNull(startupDescriptor);
+        CodePushPackage currentPackage = mUpdateManager.getCurrentPackage();
+        assertEquals(PACKAGE_HASH, startupDescriptor.getPackageHash());
+        assertEquals(currentPackage.getRelativeBundlePath(), startupDescriptor.getRelativeBundlePath());
+        assertEquals(currentPackage.getAppVersion(), startupDescriptor.getAppVersion());
+        assertEquals(Long.parseLong(currentPackage.getBinaryModifiedTime()), startupDescriptor.getBinaryModifiedTime());
+        assertEquals(mUpdateManager.getCurrentPackageBundlePath("index.android.bundle"),
+                mUpdateManager.getPackageBundlePath(startupDescriptor.getPackageHash(),
+                        startupDescriptor.getRelativeBundlePath(), "index.android.bundle"));
+    }
+
+    // Writes the package metadata and a codepush.json referencing it, without a descriptor.
+    static void writeInstalledPackage(CodePushUpdateManager updateManager, String packageHash) throws IOException, JSONException {
+        writePackage(updateManager, packageHash);
+        JSONObject packageInfo = new JSONObject();
+        packageInfo.put(CodePushConstants.CURRENT_PACKAGE_KEY, packageHash);
+        File statusFile = new File(updateManager.getPackageFolderPath(packageHash)).getParentFile();
+        CodePushUtils.writeJsonToFile(packageInfo, new File(statusFile, CodePushConstants.STATUS_FILE).getAbsolutePath());
+    }
+
+    private static void writePackage(CodePushUpdateManager updateManager, String packageHash) throws IOException, JSONException {
+        JSONObject packageMetadata = new JSONObject();
+        packageMetadata.put("appVersion", "1.4.0");
+        packageMetadata.put("binaryModifiedTime", "1539849217000");
+        packageMetadata.put("bundlePath", "/CodePush/index.android.bundle");
+        packageMetadata.put("deploymentKey", "deployment-key");
+        packageMetadata.put("description", "Fixes the checkout flow");
+        packageMetadata.put("downloadUrl", "https://example.com/package");
+        packageMetadata.put("label", "v42");
+        packageMetadata.put("packageHash", packageHash);
+        packageMetadata.put("packageSize", 2345678);
+        String packageFolderPath = updateManager.getPackageFolderPath(packageHash);
+        new File(packageFolderPath).mkdirs();
+        CodePushUtils.writeJsonToFile(packageMetadata,
+                CodePushUtils.appendPathComponent(packageFolderPath, CodePushConstants.PACKAGE_FILE_NAME));
+    }
+}
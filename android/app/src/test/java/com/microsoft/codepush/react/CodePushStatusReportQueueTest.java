@@ -0,0 +1,162 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CodePushStatusReportQueueTest {
+
+    private static final long BASE_RETRY_DELAY_MILLIS = 200;
+    private static final long MAX_RETRY_DELAY_MILLIS = 400;
+
+    private File mQueueFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mQueueFile = File.createTempFile("CodePushStatusReportQueueTest", ".json");
+        mQueueFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        waitForMaintenanceLane();
+        mQueueFile.delete();
+    }
+
+    @Test
+    public void queueingSameKeyReplacesReportInPlace() throws JSONException {
+        CodePushStatusReportQueue queue = createQueue(10);
+        queue.add("a", createReport("a", 1));
+        queue.add("b", createReport("b", 1));
+        queue.add("a", createReport("a", 2));
+
+        List<JSONObject> reports = queue.getAll();
+        assertEquals(2, reports.size());
+        assertEquals("a", reports.get(0).getString("id"));
+        assertEquals(2, reports.get(0).getInt("version"));
+        assertEquals("b", reports.get(1).getString("id"));
+    }
+
+    @Test
+    public void fullQueueDropsOldestReport() throws JSONException {
+        CodePushStatusReportQueue queue = createQueue(3);
+        for (String key : new String[] { "a", "b", "c", "d" }) {
+            queue.add(key, createReport(key, 1));
+        }
+
+        List<JSONObject> reports = queue.getBatch(10);
+        assertEquals(3, reports.size());
+        assertEquals("b", reports.get(0).getString("id"));
+        assertEquals("d", reports.get(2).getString("id"));
+
+        // Replacing a queued report does not make room by dropping another one.
+        queue.add("c", createReport("c", 2));
+        assertEquals(3, queue.size());
+        assertEquals("b", queue.getBatch(1).get(0).getString("id"));
+    }
+
+    @Test
+    public void failedDeliveriesBackOffExponentially() throws Exception {
+        CodePushStatusReportQueue queue = createQueue(10);
+        queue.add("a", createReport("a", 1));
+        queue.add("b", createReport("b", 1));
+        assertEquals(2, queue.getBatch(10).size());
+
+        queue.recordDeliveryFailure();
+        assertTrue(queue.isBackingOff());
+        assertTrue(queue.getBatch(10).isEmpty());
+        assertEquals(2, queue.size());
+
+        Thread.sleep(BASE_RETRY_DELAY_MILLIS + 50);
+        assertFalse(queue.isBackingOff());
+        assertEquals(2, queue.getBatch(10).size());
+
+        // The second failure waits twice as long.
+        queue.recordDeliveryFailure();
+        Thread.sleep(BASE_RETRY_DELAY_MILLIS + 50);
+        assertTrue(queue.isBackingOff());
+        Thread.sleep(BASE_RETRY_DELAY_MILLIS);
+        assertFalse(queue.isBackingOff());
+
+        // A delivery ends the backoff right away.
+        queue.recordDeliveryFailure();
+        queue.recordDeliverySuccess("a");
+        assertFalse(queue.isBackingOff());
+        assertEquals(1, queue.getBatch(10).size());
+    }
+
+    @Test
+    public void backoffIsCappedAtMaxDelay() throws Exception {
+        CodePushStatusReportQueue queue = createQueue(10);
+        queue.add("a", createReport("a", 1));
+        for (int i = 0; i < 40; i++) {
+            queue.recordDeliveryFailure();
+        }
+
+        assertTrue(queue.isBackingOff());
+        Thread.sleep(MAX_RETRY_DELAY_MILLIS + 50);
+        assertFalse(queue.isBackingOff());
+    }
+
+    @Test
+    public void queueIsReloadedFromDisk() throws Exception {
+        CodePushStatusReportQueue queue = createQueue(10);
+        queue.add("a", createReport("a", 1));
+        queue.add("b", createReport("b", 1));
+        queue.recordDeliveryFailure();
+        waitForMaintenanceLane();
+
+        CodePushStatusReportQueue reloadedQueue = createQueue(10);
+        assertTrue(reloadedQueue.isBackingOff());
+        List<JSONObject> reports = reloadedQueue.getAll();
+        assertEquals(2, reports.size());
+        assertEquals("a", reports.get(0).getString("id"));
+        assertEquals("b", reports.get(1).getString("id"));
+
+        // Once every report was delivered, there is nothing left to keep on disk.
+        reloadedQueue.recordDeliverySuccess("a");
+        reloadedQueue.recordDeliverySuccess("b");
+        waitForMaintenanceLane();
+        assertFalse(mQueueFile.exists());
+    }
+
+    @Test
+    public void unreadableQueueFileIsDiscarded() throws Exception {
+        FileUtils.writeStringToFile("{\"reports\":", mQueueFile.getAbsolutePath());
+        CodePushStatusReportQueue queue = createQueue(10);
+        assertEquals(0, queue.size());
+        assertFalse(queue.isBackingOff());
+    }
+
+    private CodePushStatusReportQueue createQueue(int capacity) {
+        return new CodePushStatusReportQueue(mQueueFile, capacity, BASE_RETRY_DELAY_MILLIS, MAX_RETRY_DELAY_MILLIS);
+    }
+
+    private static JSONObject createReport(String id, int version) throws JSONException {
+        JSONObject report = new JSONObject();
+        report.put("id", id);
+        report.put("version", version);
+        return report;
+    }
+
+    // The queue is written on the maintenance lane, which runs one task at a time.
+    static void waitForMaintenanceLane() throws InterruptedException, ExecutionException {
+        CodePushTaskScheduler.getInstance().schedule(CodePushTaskScheduler.Lane.MAINTENANCE, CodePushTaskScheduler.Priority.LOW,
+                "waitForMaintenanceLane", new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                }, null).get();
+    }
+}
@@ -0,0 +1,171 @@
+package com.microsoft.codepush.react;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Delivers queued status reports with flushStatusReports to a local stand-in for the
+// reportStatus/deploy endpoint.
+public class CodePushTelemetryManagerTest {
+
+    private static final String DEPLOYMENT_KEY = "deployment-key";
+    private static final String CLIENT_UNIQUE_ID = "client-id";
+
+    private final List<JSONObject> mReceivedReports = Collections.synchronizedList(new ArrayList<JSONObject>());
+    private CodePushTestServer mServer;
+    private File mQueueFile;
+    private CodePushTestSharedPreferences mSettings;
+    private CodePushStatusReportQueue mQueue;
+    private CodePushTelemetryManager mTelemetryManager;
+
+    @Before
+    public void setUp() throws IOException, JSONException {
+        mServer = new CodePushTestServer(null);
+        respondWith(200, 200, 200);
+        mQueueFile = File.createTempFile("CodePushTelemetryManagerTest", ".json");
+        mQueueFile.delete();
+        mSettings = new CodePushTestSharedPreferences();
+        mQueue = new CodePushStatusReportQueue(mQueueFile, 10, 60 * 1000, 60 * 1000);
+        mTelemetryManager = new CodePushTelemetryManager(mSettings, mQueue);
+
+        // A binary report, then the update to v1 and the update from v1 to v2.
+        mTelemetryManager.getBinaryUpdateReport("1.0");
+        mTelemetryManager.getUpdateReport(createPackage("v1"));
+        mTelemetryManager.getUpdateReport(createPackage("v2"));
+        assertEquals(3, mQueue.size());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+        CodePushStatusReportQueueTest.waitForMaintenanceLane();
+        mQueueFile.delete();
+    }
+
+    @Test
+    public void deliveredReportsAreRemoved() throws Exception {
+        assertEquals(3, mTelemetryManager.flushStatusReports(getServerUrl(), DEPLOYMENT_KEY, CLIENT_UNIQUE_ID));
+        assertEquals(0, mQueue.size());
+        assertFalse(mTelemetryManager.hasQueuedStatusReports());
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals("POST /v0.1/public/codepush/reportStatus/deploy", mServer.getRequests().get(0));
+
+        JSONObject binaryReport = mReceivedReports.get(0);
+        assertEquals("1.0", binaryReport.getString("appVersion"));
+        assertEquals(DEPLOYMENT_KEY, binaryReport.getString("deploymentKey"));
+        assertEquals(CLIENT_UNIQUE_ID, binaryReport.getString("clientUniqueId"));
+
+        JSONObject secondUpdateReport = mReceivedReports.get(2);
+        assertEquals("v2", secondUpdateReport.getString("label"));
+        assertEquals("DeploymentSucceeded", secondUpdateReport.getString("status"));
+        assertEquals("v1", secondUpdateReport.getString("previousLabelOrAppVersion"));
+
+        // The last delivered report is the previous one for the next report.
+        assertEquals(DEPLOYMENT_KEY + ":v2", mSettings.getString("CODE_PUSH_LAST_DEPLOYMENT_REPORT", null));
+    }
+
+    @Test
+    public void rejectedReportIsDroppedWithoutBlockingTheOthers() throws Exception {
+        respondWith(400, 200, 200);
+        assertEquals(2, mTelemetryManager.flushStatusReports(getServerUrl(), DEPLOYMENT_KEY, CLIENT_UNIQUE_ID));
+        assertEquals(0, mQueue.size());
+        assertFalse(mQueue.isBackingOff());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void serverErrorKeepsReportsAndBacksOff() throws Exception {
+        assertRetriedLater(503);
+    }
+
+    @Test
+    public void rateLimitedReportsAreRetriedLater() throws Exception {
+        assertRetriedLater(429);
+    }
+
+    @Test
+    public void timedOutReportsAreRetriedLater() throws Exception {
+        assertRetriedLater(408);
+    }
+
+    @Test
+    public void unreachableServerKeepsReportsAndBacksOff() throws Exception {
+        mServer.stop();
+        assertEquals(0, mTelemetryManager.flushStatusReports(getServerUrl(), DEPLOYMENT_KEY, CLIENT_UNIQUE_ID));
+        assertEquals(3, mQueue.size());
+        assertTrue(mQueue.isBackingOff());
+    }
+
+    private void assertRetriedLater(int responseCode) throws Exception {
+        respondWith(responseCode, 200, 200);
+        assertEquals(0, mTelemetryManager.flushStatusReports(getServerUrl(), DEPLOYMENT_KEY, CLIENT_UNIQUE_ID));
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(3, mQueue.size());
+        assertTrue(mQueue.isBackingOff());
+        assertTrue(mTelemetryManager.hasQueuedStatusReports());
+
+        // Nothing is sent until the backoff is over.
+        assertEquals(0, mTelemetryManager.flushStatusReports(getServerUrl(), DEPLOYMENT_KEY, CLIENT_UNIQUE_ID));
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    private String getServerUrl() {
+        return mServer.getUrl("/v0.1/public/codepush/");
+    }
+
+    // The server answers the nth request with the nth response code, and any further ones with 200.
+    private void respondWith(final int... responseCodes) {
+        mReceivedReports.clear();
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                try {
+                    mReceivedReports.add(new JSONObject(readBody(exchange)));
+                } catch (Exception e) {
+                    CodePushTestServer.send(exchange, 500, new byte[0]);
+                    return;
+                }
+
+                int responseCode = requestNumber <= responseCodes.length ? responseCodes[requestNumber - 1] : 200;
+                CodePushTestServer.send(exchange, responseCode, "{}".getBytes("UTF-8"));
+            }
+        });
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        InputStream input = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int numBytesRead;
+        while ((numBytesRead = input.read(buffer)) >= 0) {
+            body.write(buffer, 0, numBytesRead);
+        }
+
+        return body.toString("UTF-8");
+    }
+
+    private static CodePushPackage createPackage(String label) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("appVersion", "1.0");
+        json.put("deploymentKey", DEPLOYMENT_KEY);
+        json.put("label", label);
+        json.put("packageHash", "hash-" + label);
+        return CodePushPackage.fromJsonString(json.toString());
+    }
+}
@@ -0,0 +1,102 @@
+package com.microsoft.codepush.react;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A local stand-in for the CodePush server and CDN. Every request is answered by the responder
+// that is current when it arrives, and the requests are recorded so tests can check them.
+class CodePushTestServer {
+
+    interface Responder {
+        void respond(HttpExchange exchange, int requestNumber) throws IOException;
+    }
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final List<String> mRequests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile Responder mResponder;
+
+    CodePushTestServer(Responder responder) throws IOException {
+        mResponder = responder;
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                mRequests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath() + (range == null ? "" : " " + range));
+                try {
+                    mResponder.respond(exchange, mRequests.size());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    void setResponder(Responder responder) {
+        mResponder = responder;
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    int getRequestCount() {
+        return mRequests.size();
+    }
+
+    // Each request as "<method> <path>[ <range>]", in the order they arrived.
+    List<String> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    static void send(HttpExchange exchange, int responseCode, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(responseCode, body.length == 0 ? -1 : body.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body);
+        output.close();
+    }
+
+    // Serves body as a static file with a strong ETag. A "bytes=<start>-[<end>]" range is answered
+    // with 206 if isRangeSupported, otherwise the whole body is sent.
+    static void sendFile(HttpExchange exchange, byte[] body, boolean isRangeSupported) throws IOException {
+        exchange.getResponseHeaders().add("ETag", "\"" + body.length + "\"");
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (!isRangeSupported || range == null) {
+            send(exchange, 200, body);
+            return;
+        }
+
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        int start = Integer.parseInt(bounds[0]);
+        int end = bounds[1].isEmpty() ? body.length - 1 : Math.min(Integer.parseInt(bounds[1]), body.length - 1);
+        sendRange(exchange, body, start, end);
+    }
+
+    static void sendRange(HttpExchange exchange, byte[] body, int start, int end) throws IOException {
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body, start, end - start + 1);
+        output.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.microsoft.codepush.react;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Checks which downloaded packages garbage collection keeps while they are not installed yet.
+public class CodePushUpdateManagerTest {
+
+    private static final String PACKAGE_HASH = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    private static final DownloadProgressCallback NO_PROGRESS = new DownloadProgressCallback() {
+        @Override
+        public void call(long totalBytes, long receivedBytes) {
+        }
+    };
+
+    private CodePushTestServer mServer;
+    private File mDocumentsDirectory;
+    private CodePushUpdateManager mUpdateManager;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new CodePushTestServer(null);
+        mDocumentsDirectory = File.createTempFile("CodePushUpdateManagerTest", "");
+        mDocumentsDirectory.delete();
+        mUpdateManager = new CodePushUpdateManager(mDocumentsDirectory.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        FileUtils.deleteDirectoryAtPath(mDocumentsDirectory.getAbsolutePath());
+    }
+
+    @Test
+    public void downloadedPackageIsKeptUntilUpdatesAreCleared() throws Exception {
+        respondWithBundle(200);
+        mUpdateManager.downloadPackage(createPackage(), "index.android.bundle", NO_PROGRESS, null);
+        mUpdateManager.collectGarbage(false);
+        assertTrue(packageFolderExists());
+
+        mUpdateManager.clearUpdates();
+        new File(mUpdateManager.getPackageFolderPath(PACKAGE_HASH)).mkdirs();
+        mUpdateManager.collectGarbage(false);
+        assertFalse(packageFolderExists());
+    }
+
+    @Test
+    public void failedDownloadIsNotKept() throws Exception {
+        respondWithBundle(404);
+        try {
+            mUpdateManager.downloadPackage(createPackage(), "index.android.bundle", NO_PROGRESS, null);
+            fail("The download should have failed.");
+        } catch (CodePushUnknownException e) {
+            // Expected.
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // A package folder left behind, e.g. by a crash during an earlier attempt.
+        new File(mUpdateManager.getPackageFolderPath(PACKAGE_HASH)).mkdirs();
+        mUpdateManager.collectGarbage(false);
+        assertFalse(packageFolderExists());
+    }
+
+    private boolean packageFolderExists() {
+        return FileUtils.fileAtPathExists(mUpdateManager.getPackageFolderPath(PACKAGE_HASH));
+    }
+
+    private void respondWithBundle(final int responseCode) {
+        mServer.setResponder(new CodePushTestServer.Responder() {
+            @Override
+            public void respond(HttpExchange exchange, int requestNumber) throws IOException {
+                CodePushTestServer.send(exchange, responseCode, "var bundle = 1;".getBytes("UTF-8"));
+            }
+        });
+    }
+
+    private CodePushPackage createPackage() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("appVersion", "1.0");
+        json.put("downloadUrl", mServer.getUrl("/package"));
+        json.put("label", "v1");
+        json.put("packageHash", PACKAGE_HASH);
+        return CodePushPackage.fromJsonString(json.toString());
+    }
+}
@@ -8,7 +8,7 @@ import RestartManager from "./RestartManager";
 module.exports = (NativeCodePush) => {
   const remote = (reportStatusDownload) => {
     return {
-      async download(downloadProgressCallback) {
+      async download(downloadProgressCallback, downloadProgressOptions) {
         if (!this.downloadUrl) {
           throw new Error("Cannot download an update without a download url");
         }
@@ -21,6 +21,12 @@ module.exports = (NativeCodePush) => {
             "CodePushDownloadProgress",
             downloadProgressCallback
           );
+
+          // Older native modules (and iOS) don't support throttling the progress events. The options are
+          // always sent, so that the ones of a previous download don't stick.
+          if (NativeCodePush.setDownloadProgressOptions) {
+            NativeCodePush.setDownloadProgressOptions(downloadProgressOptions || {});
+          }
         }
 
         // Use the downloaded package info. Native code will save the package info
@@ -0,0 +1,327 @@
+/*
+ * This script generates a binary patch that turns one version of a file (usually the JS bundle)
+ * into another, in the format that the Android plugin applies for the "patchedFiles" section of a
+ * diff update's "hotcodepush.json":
+ *
+ *     node generateBinaryPatch.js <oldFile> <newFile> <patchFile> [<pathInPackage>]
+ *
+ * It prints the "patchedFiles" entry for the patch, assuming that the patch is added to the update
+ * next to where the file lives in the package. The matching is the one of bsdiff (a suffix array of
+ * the old file, with approximate matches that are extended while at least half of the bytes agree),
+ * and the control, diff and extra blocks are interleaved so that the patch can be applied in one
+ * sequential pass. The patch is not compressed, the update archive deflates it.
+ *
+ * The patch is applied to the old file again before it is written, so a patch that was written is
+ * known to reproduce the new file.
+ */
+
+var crypto = require("crypto");
+var fs = require("fs");
+var path = require("path");
+
+var HASH_ALGORITHM = "sha256";
+var PATCH_MAGIC = "CPPATCH1";
+
+function generatePatch(oldData, newData) {
+    var suffixArray = createSuffixArray(oldData);
+    var chunks = [Buffer.from(PATCH_MAGIC, "ascii"), encodeLongs([newData.length])];
+
+    var oldSize = oldData.length;
+    var newSize = newData.length;
+    var scan = 0, length = 0, position = 0;
+    var lastScan = 0, lastPosition = 0, lastOffset = 0;
+    while (scan < newSize) {
+        var oldScore = 0;
+        for (var scsc = scan += length; scan < newSize; scan++) {
+            var match = search(suffixArray, oldData, newData, scan);
+            length = match.length;
+            position = match.position;
+            for (; scsc < scan + length; scsc++) {
+                if (scsc + lastOffset < oldSize && oldData[scsc + lastOffset] === newData[scsc]) oldScore++;
+            }
+
+            if ((length === oldScore && length !== 0) || length > oldScore + 8) break;
+            if (scan + lastOffset < oldSize && oldData[scan + lastOffset] === newData[scan]) oldScore--;
+        }
+
+        if (length === oldScore && scan !== newSize) continue;
+
+        // Extend the previous match forward and this one backward, as long as at least half of the bytes match.
+        var i, score = 0, bestScore = 0, forwardLength = 0;
+        for (i = 0; lastScan + i < scan && lastPosition + i < oldSize;) {
+            if (oldData[lastPosition + i] === newData[lastScan + i]) score++;
+            i++;
+            if (score * 2 - i > bestScore * 2 - forwardLength) {
+                bestScore = score;
+                forwardLength = i;
+            }
+        }
+
+        var backwardLength = 0;
+        if (scan < newSize) {
+            score = 0;
+            bestScore = 0;
+            for (i = 1; scan >= lastScan + i && position >= i; i++) {
+                if (oldData[position - i] === newData[scan - i]) score++;
+                if (score * 2 - i > bestScore * 2 - backwardLength) {
+                    bestScore = score;
+                    backwardLength = i;
+                }
+            }
+        }
+
+        if (lastScan + forwardLength > scan - backwardLength) {
+            var overlap = (lastScan + forwardLength) - (scan - backwardLength);
+            var overlapLength = 0;
+            score = 0;
+            bestScore = 0;
+            for (i = 0; i < overlap; i++) {
+                if (newData[lastScan + forwardLength - overlap + i] === oldData[lastPosition + forwardLength - overlap + i]) score++;
+                if (newData[scan - backwardLength + i] === oldData[position - backwardLength + i]) score--;
+                if (score > bestScore) {
+                    bestScore = score;
+                    overlapLength = i + 1;
+                }
+            }
+
+            forwardLength += overlapLength - overlap;
+            backwardLength -= overlapLength;
+        }
+
+        var extraLength = (scan - backwardLength) - (lastScan + forwardLength);
+        var diff = Buffer.alloc(forwardLength);
+        for (i = 0; i < forwardLength; i++) {
+            diff[i] = newData[lastScan + i] - oldData[lastPosition + i];
+        }
+
+        chunks.push(encodeLongs([forwardLength, extraLength, (position - backwardLength) - (lastPosition + forwardLength)]));
+        chunks.push(diff);
+        chunks.push(newData.subarray(lastScan + forwardLength, lastScan + forwardLength + extraLength));
+
+        lastScan = scan - backwardLength;
+        lastPosition = position - backwardLength;
+        lastOffset = position - scan;
+    }
+
+    return Buffer.concat(chunks);
+}
+
+function applyPatch(oldData, patch) {
+    if (patch.toString("ascii", 0, PATCH_MAGIC.length) !== PATCH_MAGIC) {
+        throw new Error("Unsupported patch format.");
+    }
+
+    var offset = PATCH_MAGIC.length;
+    var newData = Buffer.alloc(readLong(patch, offset));
+    offset += 8;
+    var oldPosition = 0, newPosition = 0;
+    while (newPosition < newData.length) {
+        var diffLength = readLong(patch, offset);
+        var extraLength = readLong(patch, offset + 8);
+        var seekAdjustment = readLong(patch, offset + 16);
+        offset += 24;
+        for (var i = 0; i < diffLength; i++) {
+            newData[newPosition++] = patch[offset++] + oldData[oldPosition++];
+        }
+
+        patch.copy(newData, newPosition, offset, offset + extraLength);
+        newPosition += extraLength;
+        offset += extraLength;
+        oldPosition += seekAdjustment;
+    }
+
+    return newData;
+}
+
+// Finds the longest match for newData[scan...] among the sorted suffixes of oldData.
+function search(suffixArray, oldData, newData, scan) {
+    var start = 0, end = oldData.length;
+    var newLength = newData.length - scan;
+    while (end - start >= 2) {
+        var middle = start + ((end - start) >> 1);
+        var length = Math.min(oldData.length - suffixArray[middle], newLength);
+        if (oldData.compare(newData, scan, scan + length, suffixArray[middle], suffixArray[middle] + length) < 0) {
+            start = middle;
+        } else {
+            end = middle;
+        }
+    }
+
+    var startLength = matchLength(oldData, suffixArray[start], newData, scan);
+    var endLength = matchLength(oldData, suffixArray[end], newData, scan);
+    return startLength > endLength ?
+        { position: suffixArray[start], length: startLength } :
+        { position: suffixArray[end], length: endLength };
+}
+
+function matchLength(oldData, oldPosition, newData, newPosition) {
+    var i = 0;
+    while (oldPosition + i < oldData.length && newPosition + i < newData.length && oldData[oldPosition + i] === newData[newPosition + i]) {
+        i++;
+    }
+
+    return i;
+}
+
+// Larsson and Sadakane's qsufsort, as used by bsdiff. Returns the start positions of the suffixes
+// of data (including the empty one) in sorted order.
+function createSuffixArray(data) {
+    var size = data.length;
+    var I = new Int32Array(size + 1);
+    var V = new Int32Array(size + 1);
+    var buckets = new Int32Array(256);
+    var i, h, length;
+    for (i = 0; i < size; i++) buckets[data[i]]++;
+    for (i = 1; i < 256; i++) buckets[i] += buckets[i - 1];
+    for (i = 255; i > 0; i--) buckets[i] = buckets[i - 1];
+    buckets[0] = 0;
+    for (i = 0; i < size; i++) I[++buckets[data[i]]] = i;
+    I[0] = size;
+    for (i = 0; i < size; i++) V[i] = buckets[data[i]];
+    V[size] = 0;
+    for (i = 1; i < 256; i++) {
+        if (buckets[i] === buckets[i - 1] + 1) I[buckets[i]] = -1;
+    }
+    I[0] = -1;
+
+    for (h = 1; I[0] !== -(size + 1); h += h) {
+        length = 0;
+        for (i = 0; i < size + 1;) {
+            if (I[i] < 0) {
+                length -= I[i];
+                i -= I[i];
+            } else {
+                if (length) I[i - length] = -length;
+                length = V[I[i]] + 1 - i;
+                split(I, V, i, length, h);
+                i += length;
+                length = 0;
+            }
+        }
+
+        if (length) I[i - length] = -length;
+    }
+
+    for (i = 0; i < size + 1; i++) I[V[i]] = i;
+    return I;
+}
+
+// The recursion of bsdiff's split(), with an explicit stack so that repetitive files can't overflow
+// the call stack. A task with a negative length assigns the group [start, -length) its final rank.
+function split(I, V, start, length, h) {
+    var tasks = [start, length];
+    while (tasks.length) {
+        length = tasks.pop();
+        start = tasks.pop();
+        var i, j, k, x, tmp;
+        if (length < 0) {
+            var groupEnd = -length;
+            for (i = start; i < groupEnd; i++) V[I[i]] = groupEnd - 1;
+            if (start === groupEnd - 1) I[start] = -1;
+            continue;
+        }
+
+        if (length < 16) {
+            for (k = start; k < start + length; k += j) {
+                j = 1;
+                x = V[I[k] + h];
+                for (i = 1; k + i < start + length; i++) {
+                    if (V[I[k + i] + h] < x) {
+                        x = V[I[k + i] + h];
+                        j = 0;
+                    }
+                    if (V[I[k + i] + h] === x) {
+                        tmp = I[k + j]; I[k + j] = I[k + i]; I[k + i] = tmp;
+                        j++;
+                    }
+                }
+
+                for (i = 0; i < j; i++) V[I[k + i]] = k + j - 1;
+                if (j === 1) I[k] = -1;
+            }
+            continue;
+        }
+
+        x = V[I[start + (length >> 1)] + h];
+        var jj = 0, kk = 0;
+        for (i = start; i < start + length; i++) {
+            if (V[I[i] + h] < x) jj++;
+            if (V[I[i] + h] === x) kk++;
+        }
+        jj += start;
+        kk += jj;
+
+        i = start; j = 0; k = 0;
+        while (i < jj) {
+            if (V[I[i] + h] < x) {
+                i++;
+            } else if (V[I[i] + h] === x) {
+                tmp = I[i]; I[i] = I[jj + j]; I[jj + j] = tmp;
+                j++;
+            } else {
+                tmp = I[i]; I[i] = I[kk + k]; I[kk + k] = tmp;
+                k++;
+            }
+        }
+
+        while (jj + j < kk) {
+            if (V[I[jj + j] + h] === x) {
+                j++;
+            } else {
+                tmp = I[jj + j]; I[jj + j] = I[kk + k]; I[kk + k] = tmp;
+                k++;
+            }
+        }
+
+        // Same order as the recursive version: the smaller suffixes, the equal ones, the larger ones.
+        if (start + length > kk) tasks.push(kk, start + length - kk);
+        tasks.push(jj, -kk);
+        if (jj > start) tasks.push(start, jj - start);
+    }
+}
+
+// Patches use big-endian int64s, which are written as two 32 bit halves.
+function encodeLongs(values) {
+    var buffer = Buffer.alloc(values.length * 8);
+    values.forEach(function(value, index) {
+        buffer.writeInt32BE(Math.floor(value / 0x100000000), index * 8);
+        buffer.writeUInt32BE(value >>> 0, index * 8 + 4);
+    });
+
+    return buffer;
+}
+
+function readLong(buffer, offset) {
+    return buffer.readInt32BE(offset) * 0x100000000 + buffer.readUInt32BE(offset + 4);
+}
+
+if (require.main === module) {
+    var oldFilePath = process.argv[2];
+    var newFilePath = process.argv[3];
+    var patchFilePath = process.argv[4];
+    var pathInPackage = process.argv[5] || path.basename(newFilePath);
+    if (!patchFilePath) {
+        console.error("Usage: node generateBinaryPatch.js <oldFile> <newFile> <patchFile> [<pathInPackage>]");
+        process.exit(1);
+    }
+
+    var oldData = fs.readFileSync(oldFilePath);
+    var newData = fs.readFileSync(newFilePath);
+    var patch = generatePatch(oldData, newData);
+    if (!applyPatch(oldData, patch).equals(newData)) {
+        console.error("The generated patch does not reproduce " + newFilePath + ".");
+        process.exit(1);
+    }
+
+    fs.writeFileSync(patchFilePath, patch);
+    console.log(JSON.stringify({
+        path: pathInPackage,
+        patch: pathInPackage + ".patch",
+        hash: crypto.createHash(HASH_ALGORITHM).update(newData).digest("hex")
+    }));
+}
+
+module.exports = {
+    applyPatch: applyPatch,
+    generatePatch: generatePatch
+};
@@ -8,7 +8,8 @@
  * snapshot with the one saved earlier in "recordFilesBeforeBundleCommand.js" to figure
  * out which files were generated by the "react-native bundle" command. It then computes
  * the hash for each file to generate a manifest, and then computes a hash over the entire
- * manifest to generate the final hash, which is saved to the APK's assets directory.
+ * manifest to generate the final hash, which is saved to the APK's assets directory
+ * along with the manifest.
  */
 
 var crypto = require("crypto");
@@ -19,6 +20,7 @@ var getFilesInFolder = require("./getFilesInFolder");
 
 var CODE_PUSH_FOLDER_PREFIX = "CodePush";
 var CODE_PUSH_HASH_FILE_NAME = "CodePushHash";
+var CODE_PUSH_MANIFEST_FILE_NAME = "CodePushManifest";
 var CODE_PUSH_HASH_OLD_FILE_NAME = "CodePushHash.json";
 var HASH_ALGORITHM = "sha256";
 
@@ -76,6 +78,10 @@ function addJsBundleAndMetaToManifest() {
             var savedResourcesManifestPath = assetsDir + "/" + CODE_PUSH_HASH_FILE_NAME;
             fs.writeFileSync(savedResourcesManifestPath, finalHash);
 
+            // The manifest itself lets the app copy these files out of the APK, so that diff updates
+            // can be applied against the binary's contents.
+            fs.writeFileSync(assetsDir + "/" + CODE_PUSH_MANIFEST_FILE_NAME, JSON.stringify(manifest));
+
             // "CodePushHash.json" file name breaks flow type checking.
             // To fix the issue we need to delete "CodePushHash.json" file and
             // use "CodePushHash" file name instead to store the hash value.
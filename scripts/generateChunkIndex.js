@@ -0,0 +1,112 @@
+/*
+ * This script generates the "chunkedFiles" entry of a diff update's "hotcodepush.json" for a file
+ * of the new package (usually the JS bundle):
+ *
+ *     node generateChunkIndex.js <file> <url> [<pathInPackage>]
+ *
+ * The Android plugin copies every chunk it finds in the current package, and fetches the missing
+ * ones from <url> with range requests, so <url> must serve the exact bytes of <file>. The chunk
+ * boundaries must be the ones the plugin finds in the current package, so this is a port of
+ * CodePushChunker: a Gear rolling hash with FastCDC's normalized chunking, no boundary within the
+ * first 2 KB of a chunk, a harder condition until 8 KB and an easier one after it, and a forced
+ * boundary at 64 KB. The Gear table is created from SplitMix64, seeded with "CodePush" in ASCII.
+ * Chunks are identified by the first 16 bytes of their SHA-256, as hex.
+ *
+ * The 64 bit Gear hash is kept as two unsigned 32 bit halves. Only the high half is masked.
+ */
+
+var crypto = require("crypto");
+var fs = require("fs");
+var path = require("path");
+
+var HASH_ALGORITHM = "sha256";
+var MIN_CHUNK_SIZE = 1024 * 2;
+var AVERAGE_CHUNK_SIZE = 1024 * 8;
+var MAX_CHUNK_SIZE = 1024 * 64;
+var CHUNK_HASH_LENGTH = 32;
+
+// The high halves of 0xFFFE000000000000 and 0xFFE0000000000000.
+var MASK_BEFORE_AVERAGE = 0xFFFE0000;
+var MASK_AFTER_AVERAGE = 0xFFE00000;
+
+var GEAR_HIGH = new Uint32Array(256);
+var GEAR_LOW = new Uint32Array(256);
+(function() {
+    var MASK_64 = (BigInt(1) << BigInt(64)) - BigInt(1);
+    var seed = BigInt("0x436F646550757368");
+    for (var i = 0; i < 256; i++) {
+        seed = (seed + BigInt("0x9E3779B97F4A7C15")) & MASK_64;
+        var value = seed;
+        value = ((value ^ (value >> BigInt(30))) * BigInt("0xBF58476D1CE4E5B9")) & MASK_64;
+        value = ((value ^ (value >> BigInt(27))) * BigInt("0x94D049BB133111EB")) & MASK_64;
+        value = value ^ (value >> BigInt(31));
+        GEAR_HIGH[i] = Number(value >> BigInt(32));
+        GEAR_LOW[i] = Number(value & BigInt(0xFFFFFFFF));
+    }
+})();
+
+// Returns the [offset, length] pairs of the chunks of data, in order.
+function findChunks(data) {
+    var chunks = [];
+    var chunkOffset = 0;
+    var chunkLength = 0;
+    var high = 0, low = 0;
+    for (var i = 0; i < data.length; i++) {
+        chunkLength++;
+        if (chunkLength <= MIN_CHUNK_SIZE) {
+            continue;
+        }
+
+        // hash = (hash << 1) + GEAR[byte], modulo 2^64.
+        var shiftedLow = (low << 1) >>> 0;
+        var newLow = shiftedLow + GEAR_LOW[data[i]];
+        high = (((high << 1) | (low >>> 31)) + GEAR_HIGH[data[i]] + (newLow > 0xFFFFFFFF ? 1 : 0)) >>> 0;
+        low = newLow >>> 0;
+
+        var mask = chunkLength < AVERAGE_CHUNK_SIZE ? MASK_BEFORE_AVERAGE : MASK_AFTER_AVERAGE;
+        if ((high & mask) === 0 || chunkLength === MAX_CHUNK_SIZE) {
+            chunks.push([chunkOffset, chunkLength]);
+            chunkOffset += chunkLength;
+            chunkLength = 0;
+            high = 0;
+            low = 0;
+        }
+    }
+
+    if (chunkLength > 0) {
+        chunks.push([chunkOffset, chunkLength]);
+    }
+
+    return chunks;
+}
+
+// Returns the chunk index of data as used by "chunkedFiles": an array of [hash, length] pairs.
+function createChunkIndex(data) {
+    return findChunks(data).map(function(chunk) {
+        var hash = crypto.createHash(HASH_ALGORITHM).update(data.subarray(chunk[0], chunk[0] + chunk[1])).digest("hex");
+        return [hash.substring(0, CHUNK_HASH_LENGTH), chunk[1]];
+    });
+}
+
+if (require.main === module) {
+    var filePath = process.argv[2];
+    var url = process.argv[3];
+    var pathInPackage = process.argv[4] || path.basename(filePath);
+    if (!url) {
+        console.error("Usage: node generateChunkIndex.js <file> <url> [<pathInPackage>]");
+        process.exit(1);
+    }
+
+    var data = fs.readFileSync(filePath);
+    console.log(JSON.stringify({
+        path: pathInPackage,
+        hash: crypto.createHash(HASH_ALGORITHM).update(data).digest("hex"),
+        url: url,
+        chunks: createChunkIndex(data)
+    }));
+}
+
+module.exports = {
+    createChunkIndex: createChunkIndex,
+    findChunks: findChunks
+};
@@ -41,6 +41,18 @@ export interface DownloadProgress {
     receivedBytes: number;
 }
 
+export interface DownloadProgressOptions {
+    /**
+     * The minimum number of milliseconds between two progress events. Defaults to 0. Only supported on Android.
+     */
+    minimumInterval?: number;
+
+    /**
+     * The minimum number of bytes that need to be received before the next progress event. Defaults to 0. Only supported on Android.
+     */
+    minimumBytes?: number;
+}
+
 export interface LocalPackage extends Package {
     /**
      * Installs the update by saving it to the location on disk where the runtime expects to find the latest version of the app.
@@ -110,8 +122,9 @@ export interface RemotePackage extends Package {
      * Downloads the available update from the CodePush service.
      *
      * @param downloadProgressCallback An optional callback that allows tracking the progress of the update while it is being downloaded.
+     * @param downloadProgressOptions Optionally limits how often the downloadProgressCallback is called.
      */
-    download(downloadProgressCallback?: DowloadProgressCallback): Promise<LocalPackage>;
+    download(downloadProgressCallback?: DowloadProgressCallback, downloadProgressOptions?: DownloadProgressOptions): Promise<LocalPackage>;
 
     /**
      * The URL at which the package is available for download.
@@ -127,6 +140,13 @@ export interface SyncOptions {
      */
     deploymentKey?: string;
 
+    /**
+     * Limits how often the downloadProgressCallback is called. Progress is reported at most once per frame, and if either option
+     * is set, only once the given time has passed or the given number of bytes was received since the previous report. The
+     * completed download is always reported. Defaults to null, which reports the progress once per frame.
+     */
+    downloadProgressOptions?: DownloadProgressOptions;
+
     /**
      * Specifies when you would like to install optional updates (i.e. those that aren't marked as mandatory).
      * Defaults to codePush.InstallMode.ON_NEXT_RESTART.